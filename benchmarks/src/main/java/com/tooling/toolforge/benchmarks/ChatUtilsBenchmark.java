@@ -0,0 +1,65 @@
+package com.tooling.toolforge.benchmarks;
+
+import com.tooling.toolforge.utils.ChatUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import reactor.core.publisher.Flux;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The static helpers on the chat request path: SSE chunk formatting over a whole answer, and the
+ * day labels used to group chat history.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChatUtilsBenchmark {
+
+    /**
+     * Answer length in chars: a one-liner, a typical answer, a long code answer.
+     */
+    @Param({"1024", "16384", "262144"})
+    public int answerSize;
+
+    private List<String> chunks;
+    private LocalDate[] days;
+
+    @Setup
+    public void setUp() {
+        chunks = Payloads.chunks(Payloads.text(answerSize, 7), 7);
+        days = new LocalDate[366];
+        LocalDate day = LocalDate.of(2024, 1, 1);
+        for (int i = 0; i < days.length; i++) {
+            days[i] = day.plusDays(i);
+        }
+    }
+
+    @Benchmark
+    public void formatStringFlux(Blackhole blackhole) {
+        ChatUtils.formatStringFlux("question", Flux.fromIterable(chunks))
+                .doOnNext(blackhole::consume)
+                .blockLast();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(31)
+    public void dayWithOrdinalSuffix(Blackhole blackhole) {
+        for (int day = 1; day <= 31; day++) {
+            blackhole.consume(ChatUtils.getDayWithOrdinalSuffix(day));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(366)
+    public void historyDateLabel(Blackhole blackhole) {
+        for (LocalDate day : days) {
+            blackhole.consume(ChatUtils.formatHistoryDateLabel(day));
+        }
+    }
+}
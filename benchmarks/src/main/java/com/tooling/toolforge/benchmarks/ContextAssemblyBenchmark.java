@@ -0,0 +1,124 @@
+package com.tooling.toolforge.benchmarks;
+
+import com.tooling.toolforge.service.ContextAssembler;
+import com.tooling.toolforge.utils.ConversationCodec;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.ListOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ContextAssembler#assemble(String, String)}, which builds the prompt for every chat turn,
+ * over sessions of 10 to 5000 messages. Redis is replaced by an in-memory map so only the
+ * assembly itself is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ContextAssemblyBenchmark {
+
+    private static final String SESSION = "benchmark-session";
+
+    @Param({"10", "100", "1000", "5000"})
+    public int sessionMessages;
+
+    /**
+     * Average message length in chars.
+     */
+    @Param({"200", "2000"})
+    public int messageSize;
+
+    private ContextAssembler contextAssembler;
+    private String newMessage;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        Map<String, List<String>> lists = new ConcurrentHashMap<>();
+        List<String> conversation = new ArrayList<>(sessionMessages);
+        for (int i = 0; i < sessionMessages; i++) {
+            String role = i % 2 == 0 ? ConversationCodec.ROLE_USER : ConversationCodec.ROLE_BOT;
+            conversation.add(ConversationCodec.encode(role, Payloads.text(messageSize / 2 + (i * 37) % messageSize, i)));
+        }
+        lists.put(SESSION, conversation);
+
+        contextAssembler = new ContextAssembler(new InMemoryRedisTemplate(lists));
+        // Defaults from application.properties
+        setField(contextAssembler, "maxMessages", 20);
+        setField(contextAssembler, "maxChars", 24000);
+        setField(contextAssembler, "summaryMaxChars", 2000);
+        setField(contextAssembler, "summaryLineChars", 160);
+        // Keep every session whole; trimming is a Redis write, not part of the assembly being measured
+        setField(contextAssembler, "maxEntries", Long.MAX_VALUE);
+        newMessage = Payloads.text(messageSize, -1);
+    }
+
+    @Benchmark
+    public List<Message> assemble() {
+        return contextAssembler.assemble(SESSION, newMessage);
+    }
+
+    private static void setField(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * Serves the list and hash reads and writes ContextAssembler makes from memory.
+     */
+    private static final class InMemoryRedisTemplate extends RedisTemplate<String, String> {
+        private final ListOperations<String, String> listOperations;
+        private final HashOperations<String, Object, Object> hashOperations;
+
+        @SuppressWarnings("unchecked")
+        InMemoryRedisTemplate(Map<String, List<String>> lists) {
+            Map<String, Map<Object, Object>> hashes = new ConcurrentHashMap<>();
+            this.listOperations = (ListOperations<String, String>) Proxy.newProxyInstance(
+                    getClass().getClassLoader(), new Class<?>[]{ListOperations.class}, (proxy, method, args) -> {
+                        List<String> list = lists.getOrDefault((String) args[0], List.of());
+                        return switch (method.getName()) {
+                            case "size" -> (long) list.size();
+                            case "range" -> {
+                                int size = list.size();
+                                long start = (Long) args[1] < 0 ? Math.max(0, size + (Long) args[1]) : (Long) args[1];
+                                long end = (Long) args[2] < 0 ? size + (Long) args[2] : Math.min((Long) args[2], size - 1);
+                                yield start > end ? List.of() : new ArrayList<>(list.subList((int) start, (int) end + 1));
+                            }
+                            default -> throw new UnsupportedOperationException(method.getName());
+                        };
+                    });
+            this.hashOperations = (HashOperations<String, Object, Object>) Proxy.newProxyInstance(
+                    getClass().getClassLoader(), new Class<?>[]{HashOperations.class}, (proxy, method, args) ->
+                            switch (method.getName()) {
+                                case "entries" -> new HashMap<>(hashes.getOrDefault((String) args[0], Map.of()));
+                                case "putAll" -> {
+                                    hashes.computeIfAbsent((String) args[0], key -> new ConcurrentHashMap<>())
+                                            .putAll((Map<?, ?>) args[1]);
+                                    yield null;
+                                }
+                                default -> throw new UnsupportedOperationException(method.getName());
+                            });
+        }
+
+        @Override
+        public ListOperations<String, String> opsForList() {
+            return listOperations;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <HK, HV> HashOperations<String, HK, HV> opsForHash() {
+            return (HashOperations<String, HK, HV>) (HashOperations<?, ?, ?>) hashOperations;
+        }
+    }
+}
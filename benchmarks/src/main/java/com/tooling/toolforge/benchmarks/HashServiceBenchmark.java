@@ -0,0 +1,51 @@
+package com.tooling.toolforge.benchmarks;
+
+import com.tooling.toolforge.service.HashAlgorithm;
+import com.tooling.toolforge.service.HashService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HashService} on inputs from a short form field up to a 10 MB upload, one-shot and streamed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HashServiceBenchmark {
+
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int inputSize;
+
+    @Param({"sha256", "md5", "sha512", "crc32c", "xxh64"})
+    public String algorithm;
+
+    private final HashService hashService = new HashService(1000, 16 * 1024 * 1024, 0);
+    private HashAlgorithm hashAlgorithm;
+    private String input;
+    private byte[] inputBytes;
+
+    @Setup
+    public void setUp() {
+        hashAlgorithm = HashAlgorithm.fromId(algorithm);
+        input = Payloads.text(inputSize, 42);
+        inputBytes = input.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String hashString() {
+        return hashService.hash(hashAlgorithm, input);
+    }
+
+    @Benchmark
+    public Object hashStream() throws IOException {
+        return hashService.hash(List.of(hashAlgorithm), new ByteArrayInputStream(inputBytes));
+    }
+}
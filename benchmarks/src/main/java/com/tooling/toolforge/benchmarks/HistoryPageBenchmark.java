@@ -0,0 +1,55 @@
+package com.tooling.toolforge.benchmarks;
+
+import com.tooling.toolforge.dto.chat.ChatRepositoryCustomImpl;
+import com.tooling.toolforge.dto.history.PaginatedHistoryResponse;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Java side of GET /stream/history: turning one page of day groups from the aggregation
+ * into the response, with date labels and session titles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HistoryPageBenchmark {
+
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"1", "10", "250"})
+    public int sessionsPerDay;
+
+    private Document result;
+
+    @Setup
+    public void setUp() {
+        List<Document> days = new ArrayList<>(PAGE_SIZE);
+        LocalDate day = LocalDate.of(2025, 5, 31);
+        for (int d = 0; d < PAGE_SIZE; d++, day = day.minusDays(1)) {
+            List<Document> sessions = new ArrayList<>(sessionsPerDay);
+            for (int s = 0; s < sessionsPerDay; s++) {
+                sessions.add(new Document("sessionId", "session-" + d + "-" + s)
+                        .append("lastUpdated", Date.from(day.atTime(12, s % 60).toInstant(ZoneOffset.UTC)))
+                        .append("title", Payloads.text(51, d * 1000L + s)));
+            }
+            days.add(new Document("_id", day.toString()).append("sessions", sessions));
+        }
+        result = new Document("total", List.of(new Document("count", 365)))
+                .append("days", days);
+    }
+
+    @Benchmark
+    public PaginatedHistoryResponse toHistoryPage() {
+        return ChatRepositoryCustomImpl.toHistoryPage(result, 1, PAGE_SIZE);
+    }
+}
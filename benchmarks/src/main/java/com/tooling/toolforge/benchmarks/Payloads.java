@@ -0,0 +1,60 @@
+package com.tooling.toolforge.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic test data shaped like real chat traffic: prose with markdown and code,
+ * answers split into the small chunks an upstream model streams.
+ */
+final class Payloads {
+
+    private static final String[] WORDS = {
+            "the", "request", "stream", "token", "session", "history", "model", "answer", "json", "format",
+            "please", "explain", "why", "function", "returns", "null", "when", "the", "input", "is", "empty",
+            "```java", "```", "**note**", "-", "1.", "café", "naïve", "日本語", "emoji🙂", "\n", "\n\n"
+    };
+
+    private Payloads() {
+    }
+
+    /**
+     * Text of roughly the given number of UTF-16 chars.
+     */
+    static String text(int chars, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        StringBuilder text = new StringBuilder(chars + 16);
+        while (text.length() < chars) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        text.setLength(chars);
+        // Never end on half a surrogate pair
+        if (Character.isHighSurrogate(text.charAt(chars - 1))) {
+            text.setCharAt(chars - 1, ' ');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Splits an answer into the 1-5 word chunks models stream, keeping the leading spaces.
+     */
+    static List<String> chunks(String answer, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < answer.length()) {
+            int end = start;
+            int words = 1 + random.nextInt(5);
+            for (int i = 0; i < words && end < answer.length(); i++) {
+                end = answer.indexOf(' ', end + 1);
+                if (end < 0) {
+                    end = answer.length();
+                }
+            }
+            chunks.add(answer.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,344 @@
+package com.tooling.toolforge.benchmarks;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import com.tooling.toolforge.config.MongoConfig;
+import com.tooling.toolforge.dto.chat.ChatRepositoryCustomImpl;
+import com.tooling.toolforge.dto.chat.ChatSession;
+import com.tooling.toolforge.dto.history.PaginatedHistoryResponse;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A burst of GET /stream/history requests against a slow MongoDB, in each request-thread mode:
+ * <ul>
+ *     <li>platform: Tomcat's default pool of 200 platform threads (server.tomcat.threads.max)</li>
+ *     <li>platform-per-request: a platform thread per request, which is what raising max-threads
+ *     to the burst size amounts to</li>
+ *     <li>virtual: a virtual thread per request (spring.threads.virtual.enabled)</li>
+ * </ul>
+ * Each request runs the history aggregation through a real MongoClient, built with the app's pool
+ * settings ({@link MongoConfig#applyPoolSettings}), against an in-memory MongoDB behind a proxy that
+ * holds every reply for mongoLatencyMs. The heap and thread stack sizes are fixed, so the modes are
+ * compared at the same memory budget.
+ * <p>
+ * The score is the time until the whole burst has been answered. After each iteration the forked
+ * VM prints how many requests were answered, how many gave up waiting for a connection, the most
+ * queries MongoDB saw at once, the pool's connections and the process RSS (Linux only). However
+ * many threads the mode starts, no more than poolMaxSize queries are in flight, so try
+ * -p poolMaxSize=500 as well. The in-memory server shares the machine's cores with the client, so
+ * run it with at least four.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx256m", "-Xss512k"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class SlowMongoConcurrencyBenchmark {
+
+    private static final int TOMCAT_MAX_THREADS = 200;
+    private static final int PAGE_SIZE = 20;
+    private static final String USER_ID = "user-1";
+
+    @Param({"platform", "platform-per-request", "virtual"})
+    public String mode;
+
+    @Param({"200", "1000", "5000"})
+    public int concurrentRequests;
+
+    @Param({"50"})
+    public int mongoLatencyMs;
+
+    // toolforge.mongodb.pool.max-size and max-wait
+    @Param({"100"})
+    public int poolMaxSize;
+
+    @Param({"2000"})
+    public int poolMaxWaitMs;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicInteger answered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private MongoServer mongoServer;
+    private LatencyProxy proxy;
+    private MongoClient mongoClient;
+    private ChatRepositoryCustomImpl repository;
+    private ExecutorService requestThreads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        mongoServer = new MongoServer(new MemoryBackend());
+        proxy = new LatencyProxy(mongoServer.bind(), Duration.ofMillis(mongoLatencyMs));
+
+        MongoClientSettings.Builder settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString("mongodb://127.0.0.1:" + proxy.port()))
+                .addCommandListener(new AggregateCounter())
+                .applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(new ConnectionCounter()));
+        MongoConfig.applyPoolSettings(settings, poolMaxSize, 0, 2, Duration.ofMillis(poolMaxWaitMs));
+        mongoClient = MongoClients.create(settings.build());
+        MongoTemplate mongoTemplate = new MongoTemplate(mongoClient, "toolforge_benchmark");
+
+        // A session a day, one page of them; the in-memory server's own work should stay negligible
+        List<Document> sessions = new ArrayList<>();
+        Instant day = Instant.parse("2025-05-31T12:00:00Z");
+        for (int d = 0; d < PAGE_SIZE; d++, day = day.minus(1, ChronoUnit.DAYS)) {
+            sessions.add(new Document("_id", "session-" + d)
+                    .append("userId", USER_ID)
+                    .append("lastUpdated", Date.from(day))
+                    .append("title", Payloads.text(51, d))
+                    .append("messageCount", 2));
+        }
+        mongoTemplate.insert(sessions, mongoTemplate.getCollectionName(ChatSession.class));
+        repository = new ChatRepositoryCustomImpl(mongoTemplate);
+        warmPool();
+
+        requestThreads = switch (mode) {
+            case "platform" -> Executors.newFixedThreadPool(TOMCAT_MAX_THREADS);
+            case "platform-per-request" -> Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+            case "virtual" -> Executors.newVirtualThreadPerTaskExecutor();
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        };
+    }
+
+    /**
+     * Opens the whole pool before measuring. max-connecting lets the driver open only two
+     * connections at a time, so a cold pool serves the first bursts with a fraction of max-size.
+     */
+    private void warmPool() throws InterruptedException {
+        List<Callable<PaginatedHistoryResponse>> round = new ArrayList<>(poolMaxSize);
+        for (int i = 0; i < poolMaxSize; i++) {
+            round.add(this::getHistory);
+        }
+        try (ExecutorService warmUp = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int r = 0; r < 200 && connections.get() < poolMaxSize; r++) {
+                warmUp.invokeAll(round);
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounters() {
+        peakInFlight.set(0);
+        answered.set(0);
+        failed.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        System.out.printf("%n%s, %d requests: %d answered, %d failed waiting for a connection, "
+                        + "at most %d queries in flight on %d connections, RSS %s (peak %s)%n",
+                mode, concurrentRequests, answered.get(), failed.get(), peakInFlight.get(), connections.get(),
+                memoryStatus("VmRSS"), memoryStatus("VmHWM"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        requestThreads.shutdownNow();
+        mongoClient.close();
+        proxy.close();
+        mongoServer.shutdownNow();
+    }
+
+    @Benchmark
+    public int burst() throws InterruptedException, ExecutionException {
+        List<Future<PaginatedHistoryResponse>> responses = new ArrayList<>(concurrentRequests);
+        for (int i = 0; i < concurrentRequests; i++) {
+            responses.add(requestThreads.submit(this::getHistory));
+        }
+        for (Future<PaginatedHistoryResponse> response : responses) {
+            response.get();
+        }
+        return answered.get();
+    }
+
+    private PaginatedHistoryResponse getHistory() {
+        try {
+            PaginatedHistoryResponse page = repository.findHistoryPage(USER_ID, 1, PAGE_SIZE);
+            answered.incrementAndGet();
+            return page;
+        } catch (DataAccessException e) {
+            // MongoWaitQueueFullException / MongoTimeoutException once max-wait is up
+            failed.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * A line of /proc/self/status, such as VmRSS, or "n/a" elsewhere.
+     */
+    private static String memoryStatus(String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith(field + ":")) {
+                    long kib = Long.parseLong(line.replaceAll("\\D", ""));
+                    return kib / 1024 + " MiB";
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+            // Not Linux
+        }
+        return "n/a";
+    }
+
+    /**
+     * Counts the aggregations sent to MongoDB and not yet answered.
+     */
+    private final class AggregateCounter implements CommandListener {
+
+        @Override
+        public void commandStarted(CommandStartedEvent event) {
+            if ("aggregate".equals(event.getCommandName())) {
+                int current = inFlight.incrementAndGet();
+                peakInFlight.accumulateAndGet(current, Math::max);
+            }
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+            if ("aggregate".equals(event.getCommandName())) {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event) {
+            if ("aggregate".equals(event.getCommandName())) {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Counts the connections the pool holds.
+     */
+    private final class ConnectionCounter implements ConnectionPoolListener {
+
+        @Override
+        public void connectionCreated(ConnectionCreatedEvent event) {
+            connections.incrementAndGet();
+        }
+
+        @Override
+        public void connectionClosed(ConnectionClosedEvent event) {
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Forwards each connection to the in-memory server and holds the server's replies for the
+     * given latency, so the query time is spent waiting on the network as with a slow MongoDB.
+     */
+    static final class LatencyProxy implements Closeable {
+
+        private final InetSocketAddress target;
+        private final long latencyNanos;
+        private final ServerSocket listener;
+        // One thread, so the replies on each connection stay in order
+        private final ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("latency-proxy-replies").factory());
+
+        LatencyProxy(InetSocketAddress target, Duration latency) throws IOException {
+            this.target = target;
+            this.latencyNanos = latency.toNanos();
+            this.listener = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+            Thread.ofPlatform().daemon().name("latency-proxy").start(this::accept);
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        private void accept() {
+            while (!listener.isClosed()) {
+                try {
+                    Socket client = listener.accept();
+                    Socket server = new Socket(target.getAddress(), target.getPort());
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    Thread.ofPlatform().daemon().start(() -> pump(client, server, false));
+                    Thread.ofPlatform().daemon().start(() -> pump(server, client, true));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void pump(Socket from, Socket to, boolean delayed) {
+            byte[] buffer = new byte[64 * 1024];
+            try (from; to) {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (!delayed) {
+                        out.write(buffer, 0, read);
+                        continue;
+                    }
+                    byte[] chunk = Arrays.copyOf(buffer, read);
+                    replies.schedule(() -> {
+                        try {
+                            out.write(chunk);
+                        } catch (IOException ignored) {
+                            // The client is gone
+                        }
+                    }, latencyNanos, TimeUnit.NANOSECONDS);
+                }
+            } catch (IOException ignored) {
+                // Either side closed the connection
+            }
+        }
+
+        @Override
+        public void close() {
+            replies.shutdownNow();
+            try {
+                listener.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+}
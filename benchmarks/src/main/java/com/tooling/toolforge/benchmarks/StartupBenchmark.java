@@ -0,0 +1,114 @@
+package com.tooling.toolforge.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cold start of the API: the time from launching a JVM on the executable jar until the application
+ * context is refreshed ({@code spring.context.exit=onRefresh}), which is when a pod could start
+ * taking traffic. Each operation is a new process.
+ * <ul>
+ *     <li>fat-jar: {@code java -jar} on the nested jar, without AOT, as the old image ran it</li>
+ *     <li>extracted: the unpacked layout the Dockerfile uses, with AOT if the jar has it</li>
+ *     <li>extracted-cds: the same plus the class data archive from a training run</li>
+ * </ul>
+ * Build the jar with {@code -Pfast-startup} to measure AOT. The jar is found in target/ or ../target/,
+ * or set TOOLFORGE_JAR. Nothing connects to Redis or MongoDB before the context is refreshed, so
+ * placeholder settings are passed.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class StartupBenchmark {
+
+    private static final String JAR_NAME = "toolforge-api-0.0.1-SNAPSHOT-exec.jar";
+    private static final Map<String, String> PLACEHOLDER_ENV = Map.of(
+            "CHAT_REDIS_HOST", "localhost",
+            "REDIS_PORT", "6379",
+            "REDIS_PASSWORD", "",
+            "MONGO_URI", "mongodb://localhost/startup-benchmark",
+            "CONVO_DB", "startup-benchmark",
+            "USERS_DB", "startup-benchmark",
+            "OPENROUTER_API_KEY", "startup-benchmark");
+
+    @Param({"fat-jar", "extracted", "extracted-cds"})
+    public String mode;
+
+    private Path workDir;
+    private List<String> command;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        Path jar = findJar();
+        workDir = Files.createTempDirectory("toolforge-startup");
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+        if (mode.equals("fat-jar")) {
+            command = List.of(java, "-Dspring.aot.enabled=false", "-Dspring.context.exit=onRefresh", "-jar", jar.toString());
+            return;
+        }
+        run(List.of(java, "-Djarmode=tools", "-jar", jar.toString(), "extract",
+                "--application-filename", "application.jar", "--destination", workDir.resolve("app").toString()));
+        String application = workDir.resolve("app").resolve("application.jar").toString();
+        if (mode.equals("extracted")) {
+            command = List.of(java, "-Dspring.context.exit=onRefresh", "-jar", application);
+            return;
+        }
+        String archive = workDir.resolve("application.jsa").toString();
+        run(List.of(java, "-XX:ArchiveClassesAtExit=" + archive, "-Dspring.context.exit=onRefresh", "-jar", application));
+        command = List.of(java, "-XX:SharedArchiveFile=" + archive, "-Dspring.context.exit=onRefresh", "-jar", application);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(workDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public int startUp() throws IOException, InterruptedException {
+        return run(command);
+    }
+
+    private int run(List<String> args) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(new ArrayList<>(args))
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.environment().putAll(PLACEHOLDER_ENV);
+        builder.environment().put("CHAT_JOURNAL_DIR", workDir.resolve("journal").toString());
+        int exitCode = builder.start().waitFor();
+        if (exitCode != 0) {
+            throw new IllegalStateException("Exit code " + exitCode + " from " + String.join(" ", args));
+        }
+        return exitCode;
+    }
+
+    private static Path findJar() {
+        String configured = System.getenv("TOOLFORGE_JAR");
+        List<Path> candidates = configured != null
+                ? List.of(Path.of(configured))
+                : List.of(Path.of("target", JAR_NAME), Path.of("..", "target", JAR_NAME));
+        return candidates.stream()
+                .filter(Files::isRegularFile)
+                .map(Path::toAbsolutePath)
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Executable jar not found in " + candidates
+                        + "; run mvn package in the project root or set TOOLFORGE_JAR"));
+    }
+}
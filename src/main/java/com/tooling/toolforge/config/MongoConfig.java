@@ -0,0 +1,101 @@
+package com.tooling.toolforge.config;
+
+import com.tooling.toolforge.dto.chat.ChatBucket;
+import com.tooling.toolforge.dto.chat.ChatMessagePart;
+import com.tooling.toolforge.dto.chat.ChatSession;
+import com.mongodb.MongoClientSettings;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+import org.springframework.data.mongodb.core.index.Index;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+@Slf4j
+public class MongoConfig {
+
+    private final MongoTemplate mongoTemplate;
+
+    public MongoConfig(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Connection pool limits of the MongoDB driver. The pool, not the number of request threads,
+     * bounds how many queries are in flight: with spring.threads.virtual.enabled every request gets a
+     * thread, and those beyond max-size wait for a connection. How long they wait is left at the
+     * driver's default of two minutes unless max-wait is set. The wait applies to every caller of
+     * the client, the write-behind flusher included, so a short one fails background writes too.
+     * Static so it does not depend on the MongoTemplate this class is built with.
+     */
+    @Bean
+    public static MongoClientSettingsBuilderCustomizer mongoPoolSettings(
+            @Value("${toolforge.mongodb.pool.max-size:100}") int maxSize,
+            @Value("${toolforge.mongodb.pool.min-size:0}") int minSize,
+            @Value("${toolforge.mongodb.pool.max-connecting:2}") int maxConnecting,
+            @Value("${toolforge.mongodb.pool.max-wait:#{null}}") Duration maxWait) {
+        log.info("Configuring MongoDB connection pool: maxSize={}, minSize={}, maxConnecting={}, maxWait={}",
+                maxSize, minSize, maxConnecting, maxWait != null ? maxWait : "driver default");
+        return builder -> applyPoolSettings(builder, maxSize, minSize, maxConnecting, maxWait);
+    }
+
+    /**
+     * @param maxWait How long to wait for a connection, or null to keep the driver's default.
+     */
+    public static MongoClientSettings.Builder applyPoolSettings(MongoClientSettings.Builder builder, int maxSize, int minSize,
+                                                                int maxConnecting, Duration maxWait) {
+        return builder.applyToConnectionPoolSettings(pool -> {
+            pool.maxSize(maxSize)
+                    .minSize(minSize)
+                    .maxConnecting(maxConnecting);
+            if (maxWait != null) {
+                pool.maxWaitTime(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Auto index creation is off in Spring Boot, so the indexes the chat queries rely on
+     * are created here once the application is up. ensureIndex is a no-op when they already exist.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureIndexes() {
+        try {
+            mongoTemplate.indexOps(ChatSession.class).ensureIndex(new Index()
+                    .on("userId", Sort.Direction.ASC)
+                    .on("lastUpdated", Sort.Direction.DESC)
+                    .named("userId_lastUpdated"));
+            // Lets search find sessions that still embed their messages; migrated sessions drop out of it
+            mongoTemplate.indexOps(ChatSession.class).ensureIndex(new CompoundIndexDefinition(
+                    new Document("userId", 1).append("messages.content", "text"))
+                    .named("userId_messages_text"));
+            mongoTemplate.indexOps(ChatBucket.class).ensureIndex(new Index()
+                    .on("sessionId", Sort.Direction.ASC)
+                    .on("bucket", Sort.Direction.ASC)
+                    .unique()
+                    .named("sessionId_bucket"));
+            mongoTemplate.indexOps(ChatBucket.class).ensureIndex(new CompoundIndexDefinition(
+                    new Document("userId", 1).append("messages.content", "text"))
+                    .named("userId_messages_text"));
+            mongoTemplate.indexOps(ChatMessagePart.class).ensureIndex(new Index()
+                    .on("sessionId", Sort.Direction.ASC)
+                    .on("seq", Sort.Direction.ASC)
+                    .on("part", Sort.Direction.ASC)
+                    .named("sessionId_seq_part"));
+            log.info("Ensured MongoDB indexes for chat, chat_buckets and chat_message_parts collections");
+        } catch (DataAccessException e) {
+            log.error("MongoDB Error: Failed to create indexes for chat collections. Reason: {}", e.getMessage(), e);
+        }
+    }
+}
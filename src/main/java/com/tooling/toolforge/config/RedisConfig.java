@@ -1,20 +1,45 @@
 package com.tooling.toolforge.config;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
+import io.lettuce.core.resource.ClientResources;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisConfiguration;
 import org.springframework.data.redis.connection.RedisPassword;
+import org.springframework.data.redis.connection.RedisSentinelConfiguration;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 
 @Configuration
 @Slf4j
 public class RedisConfig {
 
+    // commons-pool2 registers each pool as an MBean under this name, numbered from the second on
+    private static final String POOL_JMX_NAME_PREFIX = "toolforge-redis";
+
     @Value("${spring.redis.host}")
     private String redisHost;
 
@@ -24,25 +49,200 @@ public class RedisConfig {
     @Value("${spring.redis.password}")
     private String redisPassword;
 
+    // standalone, sentinel or cluster
+    @Value("${toolforge.redis.mode:standalone}")
+    private String mode;
+
+    @Value("${toolforge.redis.ssl:true}")
+    private boolean ssl;
+
+    @Value("${toolforge.redis.command-timeout:2s}")
+    private Duration commandTimeout;
+
+    @Value("${toolforge.redis.shutdown-timeout:100ms}")
+    private Duration shutdownTimeout;
+
+    @Value("${toolforge.redis.sentinel.master:}")
+    private String sentinelMaster;
+
+    @Value("${toolforge.redis.sentinel.nodes:}")
+    private String sentinelNodes;
+
+    @Value("${toolforge.redis.sentinel.password:}")
+    private String sentinelPassword;
+
+    @Value("${toolforge.redis.cluster.nodes:}")
+    private String clusterNodes;
+
+    @Value("${toolforge.redis.cluster.max-redirects:3}")
+    private int clusterMaxRedirects;
+
+    @Value("${toolforge.redis.cluster.topology-refresh:30s}")
+    private Duration clusterTopologyRefresh;
+
+    @Value("${toolforge.redis.pool.enabled:false}")
+    private boolean poolEnabled;
+
+    @Value("${toolforge.redis.pool.max-active:16}")
+    private int poolMaxActive;
+
+    @Value("${toolforge.redis.pool.max-idle:8}")
+    private int poolMaxIdle;
+
+    @Value("${toolforge.redis.pool.min-idle:0}")
+    private int poolMinIdle;
+
+    @Value("${toolforge.redis.pool.max-wait:1s}")
+    private Duration poolMaxWait;
+
+    /**
+     * Uses Spring Boot's Lettuce client resources when available, so Redis command latencies are
+     * published to Micrometer.
+     * <p>
+     * Ordinary and reactive commands always share one multiplexed native connection. With
+     * toolforge.redis.pool.enabled that connection is borrowed from the commons-pool2 pool once, and
+     * the pool serves the operations that need a connection of their own (pipelines, blocking
+     * commands and transactions).
+     */
     @Bean
-    public LettuceConnectionFactory redisConnectionFactory() {
-        log.info("Configuring Redis");
-        RedisStandaloneConfiguration config = new RedisStandaloneConfiguration();
-        config.setHostName(redisHost);
-        config.setPort(redisPort);
-        config.setPassword(RedisPassword.of(redisPassword));
-
-        LettuceClientConfiguration clientConfig = LettuceClientConfiguration.builder()
-                .useSsl()
-                .build();
+    public LettuceConnectionFactory redisConnectionFactory(ObjectProvider<ClientResources> clientResources) {
+        log.info("Configuring Redis: mode={}, ssl={}, commandTimeout={}, pool={}", mode, ssl, commandTimeout, poolEnabled);
+
+        LettuceClientConfiguration.LettuceClientConfigurationBuilder clientConfigBuilder = poolEnabled
+                ? LettucePoolingClientConfiguration.builder().poolConfig(poolConfig())
+                : LettuceClientConfiguration.builder();
+        if (ssl) {
+            clientConfigBuilder.useSsl();
+        }
+        clientConfigBuilder
+                .commandTimeout(commandTimeout)
+                .shutdownTimeout(shutdownTimeout)
+                .clientOptions(clientOptions());
+        clientResources.ifAvailable(clientConfigBuilder::clientResources);
+        LettuceClientConfiguration clientConfig = clientConfigBuilder.build();
+
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(redisConfiguration(), clientConfig);
+        factory.setShareNativeConnection(true);
+        return factory;
+    }
 
-        return new LettuceConnectionFactory(config, clientConfig);
+    /**
+     * Gauges of the connections in the commons-pool2 pool: borrowed, idle, and the callers waiting
+     * for one. The shared native connection is borrowed from the pool too, so active is at least 1
+     * once Redis has been used. Spring Data creates the pool on first use and does not expose it, so
+     * they are read from the pool's MBean and summed over the pools under POOL_JMX_NAME_PREFIX.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "toolforge.redis.pool.enabled", havingValue = "true")
+    public MeterBinder redisPoolMetrics() {
+        return registry -> {
+            Gauge.builder("chat.redis.pool.active", () -> poolAttribute("NumActive"))
+                    .description("Redis connections borrowed from the pool")
+                    .register(registry);
+            Gauge.builder("chat.redis.pool.idle", () -> poolAttribute("NumIdle"))
+                    .description("Redis connections idle in the pool")
+                    .register(registry);
+            Gauge.builder("chat.redis.pool.waiters", () -> poolAttribute("NumWaiters"))
+                    .description("Callers waiting for a Redis connection from the pool")
+                    .register(registry);
+        };
     }
 
+    /**
+     * Keys, values and hash entries are stored as plain UTF-8 strings rather than JDK-serialized
+     * objects, which makes them smaller, cheaper to encode, and readable from Lua scripts and redis-cli.
+     */
     @Bean
     public RedisTemplate<String, String> redisTemplate(LettuceConnectionFactory connectionFactory) {
         RedisTemplate<String, String> template = new RedisTemplate<>();
         template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(StringRedisSerializer.UTF_8);
+        template.setValueSerializer(StringRedisSerializer.UTF_8);
+        template.setHashKeySerializer(StringRedisSerializer.UTF_8);
+        template.setHashValueSerializer(StringRedisSerializer.UTF_8);
         return template;
     }
+
+    private RedisConfiguration redisConfiguration() {
+        RedisPassword password = RedisPassword.of(redisPassword);
+        switch (mode) {
+            case "sentinel" -> {
+                RedisSentinelConfiguration config = new RedisSentinelConfiguration(sentinelMaster, Set.copyOf(nodes(sentinelNodes)));
+                config.setPassword(password);
+                if (!sentinelPassword.isBlank()) {
+                    config.setSentinelPassword(RedisPassword.of(sentinelPassword));
+                }
+                return config;
+            }
+            case "cluster" -> {
+                RedisClusterConfiguration config = new RedisClusterConfiguration(nodes(clusterNodes));
+                config.setMaxRedirects(clusterMaxRedirects);
+                config.setPassword(password);
+                return config;
+            }
+            case "standalone" -> {
+                RedisStandaloneConfiguration config = new RedisStandaloneConfiguration();
+                config.setHostName(redisHost);
+                config.setPort(redisPort);
+                config.setPassword(password);
+                return config;
+            }
+            default -> throw new IllegalArgumentException("Unknown toolforge.redis.mode: " + mode);
+        }
+    }
+
+    private ClientOptions clientOptions() {
+        // Fail commands fast while disconnected instead of queueing them until the timeout
+        TimeoutOptions timeoutOptions = TimeoutOptions.enabled();
+        if ("cluster".equals(mode)) {
+            return ClusterClientOptions.builder()
+                    .timeoutOptions(timeoutOptions)
+                    .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                    .topologyRefreshOptions(ClusterTopologyRefreshOptions.builder()
+                            .enablePeriodicRefresh(clusterTopologyRefresh)
+                            .enableAllAdaptiveRefreshTriggers()
+                            .build())
+                    .build();
+        }
+        return ClientOptions.builder()
+                .timeoutOptions(timeoutOptions)
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                .build();
+    }
+
+    private GenericObjectPoolConfig<?> poolConfig() {
+        GenericObjectPoolConfig<?> config = new GenericObjectPoolConfig<>();
+        config.setMaxTotal(poolMaxActive);
+        config.setMaxIdle(poolMaxIdle);
+        config.setMinIdle(poolMinIdle);
+        config.setMaxWait(poolMaxWait);
+        config.setJmxEnabled(true);
+        config.setJmxNamePrefix(POOL_JMX_NAME_PREFIX);
+        return config;
+    }
+
+    private static long poolAttribute(String attribute) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        long total = 0;
+        try {
+            for (ObjectName pool : server.queryNames(new ObjectName(
+                    "org.apache.commons.pool2:type=GenericObjectPool,name=" + POOL_JMX_NAME_PREFIX + "*"), null)) {
+                total += ((Number) server.getAttribute(pool, attribute)).longValue();
+            }
+        } catch (JMException e) {
+            log.warn("Redis Error: Failed to read {} of the connection pool. Reason: {}", attribute, e.getMessage());
+        }
+        return total;
+    }
+
+    private static List<String> nodes(String commaSeparated) {
+        List<String> nodes = Arrays.stream(commaSeparated.split(","))
+                .map(String::trim)
+                .filter(node -> !node.isEmpty())
+                .toList();
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Redis nodes must be set as host:port,host:port");
+        }
+        return nodes;
+    }
 }
@@ -0,0 +1,47 @@
+package com.tooling.toolforge.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+@Configuration
+@Slf4j
+public class SchedulerConfig {
+
+    @Value("${toolforge.chat.io.thread-cap:64}")
+    private int threadCap;
+
+    @Value("${toolforge.chat.io.queued-task-cap:100000}")
+    private int queuedTaskCap;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${toolforge.chat.io.virtual-thread-cap:1000}")
+    private int virtualThreadCap;
+
+    /**
+     * Scheduler for the blocking Redis and MongoDB calls made by the chat stream.
+     * Keeps that work off the request threads and the reactor-netty threads that
+     * deliver upstream chunks, with a hard cap on how many threads it may use.
+     * <p>
+     * With spring.threads.virtual.enabled each task runs on its own virtual thread instead, capped
+     * at virtual-thread-cap concurrent tasks. The cap then only bounds how much work queues up on
+     * the Redis and MongoDB connection pools.
+     */
+    @Bean(destroyMethod = "dispose")
+    public Scheduler chatIoScheduler() {
+        if (virtualThreads) {
+            log.info("Configuring chat I/O scheduler on virtual threads with threadCap={}, queuedTaskCap={}", virtualThreadCap, queuedTaskCap);
+            Scheduler scheduler = new Schedulers.Factory() {
+            }.newThreadPerTaskBoundedElastic(virtualThreadCap, queuedTaskCap, Thread.ofVirtual().name("chat-io-", 0).factory());
+            scheduler.init();
+            return scheduler;
+        }
+        log.info("Configuring chat I/O scheduler with threadCap={}, queuedTaskCap={}", threadCap, queuedTaskCap);
+        return Schedulers.newBoundedElastic(threadCap, queuedTaskCap, "chat-io");
+    }
+}
@@ -0,0 +1,50 @@
+package com.tooling.toolforge.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.reactive.function.client.WebClientCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+
+@Configuration
+@Slf4j
+public class UpstreamHttpConfig {
+
+    @Value("${toolforge.chat.upstream.max-connections:500}")
+    private int maxConnections;
+
+    @Value("${toolforge.chat.upstream.pending-acquire-max:500}")
+    private int pendingAcquireMax;
+
+    @Value("${toolforge.chat.upstream.pending-acquire-timeout:5s}")
+    private Duration pendingAcquireTimeout;
+
+    /**
+     * Connections for the streamed completions. Every open chat stream holds one HTTP/1.1
+     * connection for as long as the answer streams, so reactor-netty's shared default pool
+     * (2 x max(cores, 8) connections) would fail streams beyond a few dozen.
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider upstreamConnectionProvider() {
+        log.info("Configuring upstream HTTP pool: maxConnections={}, pendingAcquireMax={}, pendingAcquireTimeout={}",
+                maxConnections, pendingAcquireMax, pendingAcquireTimeout);
+        return ConnectionProvider.builder("chat-upstream")
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMax)
+                .pendingAcquireTimeout(pendingAcquireTimeout)
+                .build();
+    }
+
+    /**
+     * Applies the pool to the WebClient.Builder that Spring AI's OpenAI client is built from.
+     */
+    @Bean
+    public WebClientCustomizer upstreamConnections(ConnectionProvider upstreamConnectionProvider) {
+        return builder -> builder.clientConnector(new ReactorClientHttpConnector(HttpClient.create(upstreamConnectionProvider)));
+    }
+}
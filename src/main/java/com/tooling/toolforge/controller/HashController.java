@@ -1,9 +1,20 @@
 package com.tooling.toolforge.controller;
 
+import com.tooling.toolforge.model.hash.HashBatchRequest;
+import com.tooling.toolforge.model.hash.HashBatchResponse;
+import com.tooling.toolforge.model.hash.HashResult;
+import com.tooling.toolforge.service.HashAlgorithm;
 import com.tooling.toolforge.service.HashService;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 
 @RestController
 @RequestMapping("/api/hash")
@@ -21,5 +32,56 @@ public class HashController {
         log.info("Hashing");
         return ResponseEntity.ok(hashService.generateSHA256(input));
     }
-}
 
+    /**
+     * Hashes a raw request body of any size, streaming it through the digests.
+     *
+     * @param algorithms One or more of md5, sha1, sha256, sha512, crc32c, xxh64.
+     */
+    @PostMapping(value = "/stream", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<?> hashStream(@RequestParam(name = "algorithm", defaultValue = "sha256") List<String> algorithms,
+                                        HttpServletRequest request) throws IOException {
+        try (InputStream body = request.getInputStream()) {
+            return hashInput(algorithms, body);
+        }
+    }
+
+    /**
+     * Hashes an uploaded file. Parts are spooled to disk by the servlet container, not held in memory.
+     *
+     * @param algorithms One or more of md5, sha1, sha256, sha512, crc32c, xxh64.
+     */
+    @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<?> hashUpload(@RequestParam(name = "algorithm", defaultValue = "sha256") List<String> algorithms,
+                                        @RequestParam("file") MultipartFile file) throws IOException {
+        try (InputStream body = file.getInputStream()) {
+            return hashInput(algorithms, body);
+        }
+    }
+
+    @PostMapping("/batch")
+    public ResponseEntity<?> hashBatch(@RequestBody HashBatchRequest request) {
+        if (request.getInputs() == null) {
+            return ResponseEntity.badRequest().body("inputs is required");
+        }
+        try {
+            HashAlgorithm algorithm = HashAlgorithm.fromId(request.getAlgorithm());
+            List<String> hashes = hashService.hashBatch(algorithm, request.getInputs());
+            return ResponseEntity.ok(new HashBatchResponse(algorithm.getId(), hashes));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    private ResponseEntity<?> hashInput(List<String> algorithmIds, InputStream body) throws IOException {
+        List<HashAlgorithm> algorithms;
+        try {
+            algorithms = algorithmIds.stream().map(HashAlgorithm::fromId).toList();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+        HashResult result = hashService.hash(algorithms, body);
+        log.info("Hashed {} bytes with {}", result.getBytes(), algorithmIds);
+        return ResponseEntity.ok(result);
+    }
+}
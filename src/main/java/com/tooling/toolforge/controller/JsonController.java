@@ -1,16 +1,43 @@
 package com.tooling.toolforge.controller;
 
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.exc.StreamConstraintsException;
 import com.tooling.toolforge.model.JsonRequest;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.tooling.toolforge.service.JsonFormatService;
+import com.tooling.toolforge.service.JsonToolkitService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/json")
 @CrossOrigin(origins = "http://localhost:4200") // Allow Angular frontend
+@Slf4j
 public class JsonController {
     private final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private final JsonFormatService jsonFormatService;
+    private final JsonToolkitService jsonToolkitService;
+
+    // The toolkit (schema validation, JSONPath, diff) is built on first use, not at startup
+    public JsonController(JsonFormatService jsonFormatService, @Lazy JsonToolkitService jsonToolkitService) {
+        this.jsonFormatService = jsonFormatService;
+        this.jsonToolkitService = jsonToolkitService;
+    }
 
     @PostMapping("/format")
     public ResponseEntity<String> formatJson(@RequestBody JsonRequest request) {
@@ -22,4 +49,133 @@ public class JsonController {
             return ResponseEntity.badRequest().body("Invalid JSON");
         }
     }
+
+    /**
+     * Pretty-prints or minifies a raw JSON request body, streaming it straight to the response.
+     * <p>
+     * Errors found before the first part of the response has been flushed are reported as a 400
+     * (or 413 when the body is larger than the size cap) with the line and column of the problem.
+     * An error further into a large document can only abort the response, so the client sees a
+     * truncated body.
+     *
+     * @param indent Spaces per level, 0 to 8.
+     * @param minify True to remove all insignificant whitespace instead of indenting.
+     */
+    @PostMapping(value = "/format/stream", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void formatJsonStream(@RequestParam(defaultValue = "2") int indent,
+                                 @RequestParam(defaultValue = "false") boolean minify,
+                                 HttpServletRequest request,
+                                 HttpServletResponse response) throws IOException {
+        if (indent < 0 || indent > JsonFormatService.MAX_INDENT) {
+            writeError(response, HttpStatus.BAD_REQUEST, "indent must be between 0 and " + JsonFormatService.MAX_INDENT, null);
+            return;
+        }
+        if (request.getContentLengthLong() > jsonFormatService.getMaxBytes()) {
+            writeError(response, HttpStatus.PAYLOAD_TOO_LARGE, "JSON is larger than " + jsonFormatService.getMaxBytes() + " bytes", null);
+            return;
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        try {
+            jsonFormatService.format(request.getInputStream(), response.getOutputStream(), indent, minify);
+        } catch (StreamConstraintsException e) {
+            handleFormatError(response, HttpStatus.PAYLOAD_TOO_LARGE, e);
+        } catch (JsonProcessingException e) {
+            handleFormatError(response, HttpStatus.BAD_REQUEST, e);
+        }
+    }
+
+    /**
+     * Validates a document against a JSON Schema. Both are multipart file parts; a schema that only
+     * constrains the items of a top-level array is checked item by item without reading the whole
+     * document into memory.
+     */
+    @PostMapping(value = "/validate", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<?> validateJson(@RequestPart("schema") MultipartFile schema,
+                                          @RequestPart("document") MultipartFile document) throws IOException {
+        if (schema.getSize() > jsonToolkitService.getMaxTreeBytes()) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(errorBody("Schema is larger than " + jsonToolkitService.getMaxTreeBytes() + " bytes", null));
+        }
+        String schemaText = new String(schema.getBytes(), StandardCharsets.UTF_8);
+        try (InputStream in = document.getInputStream()) {
+            return ResponseEntity.ok(jsonToolkitService.validate(schemaText, in));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(errorBody(e.getMessage(), null));
+        } catch (StreamConstraintsException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(errorBody(e.getOriginalMessage(), e.getLocation()));
+        } catch (JsonProcessingException e) {
+            return ResponseEntity.badRequest().body(errorBody(e.getOriginalMessage(), e.getLocation()));
+        }
+    }
+
+    /**
+     * Structural diff of two multipart file parts, returned as the JSON Patch that turns left into right.
+     */
+    @PostMapping(value = "/diff", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<?> diffJson(@RequestPart("left") MultipartFile left,
+                                      @RequestPart("right") MultipartFile right) throws IOException {
+        try (InputStream leftIn = left.getInputStream(); InputStream rightIn = right.getInputStream()) {
+            return ResponseEntity.ok(jsonToolkitService.diff(leftIn, rightIn));
+        } catch (StreamConstraintsException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(errorBody(e.getOriginalMessage(), e.getLocation()));
+        } catch (JsonProcessingException e) {
+            return ResponseEntity.badRequest().body(errorBody(e.getOriginalMessage(), e.getLocation()));
+        }
+    }
+
+    /**
+     * Streams a JSON array of the values in the raw request body that match a JSONPath expression.
+     * Errors are reported the same way as for {@code /format/stream}.
+     *
+     * @param path JSONPath, e.g. {@code $.items[*].id} or {@code $..name}.
+     */
+    @PostMapping(value = "/query", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void queryJson(@RequestParam String path,
+                          HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        if (request.getContentLengthLong() > jsonToolkitService.getMaxBytes()) {
+            writeError(response, HttpStatus.PAYLOAD_TOO_LARGE, "JSON is larger than " + jsonToolkitService.getMaxBytes() + " bytes", null);
+            return;
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        try {
+            jsonToolkitService.query(path, request.getInputStream(), response.getOutputStream());
+        } catch (IllegalArgumentException e) {
+            writeError(response, HttpStatus.BAD_REQUEST, e.getMessage(), null);
+        } catch (StreamConstraintsException e) {
+            handleFormatError(response, HttpStatus.PAYLOAD_TOO_LARGE, e);
+        } catch (JsonProcessingException e) {
+            handleFormatError(response, HttpStatus.BAD_REQUEST, e);
+        }
+    }
+
+    private void handleFormatError(HttpServletResponse response, HttpStatus status, JsonProcessingException e) throws IOException {
+        if (response.isCommitted()) {
+            log.warn("Aborting streamed JSON format after output was sent. Reason: {}", e.getOriginalMessage());
+            throw e;
+        }
+        response.resetBuffer();
+        writeError(response, status, e.getOriginalMessage(), e.getLocation());
+    }
+
+    private void writeError(HttpServletResponse response, HttpStatus status, String message, JsonLocation location) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        objectMapper.writeValue(response.getOutputStream(), errorBody(message, location));
+    }
+
+    private static Map<String, Object> errorBody(String message, JsonLocation location) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", message);
+        if (location != null) {
+            error.put("line", location.getLineNr());
+            error.put("column", location.getColumnNr());
+        }
+        return error;
+    }
 }
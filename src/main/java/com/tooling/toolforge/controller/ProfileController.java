@@ -1,16 +1,24 @@
 package com.tooling.toolforge.controller;
 
+import com.tooling.toolforge.dto.user.UserProfile;
 import com.tooling.toolforge.model.user.ProfileRequest;
 import com.tooling.toolforge.model.user.ProfileResponse;
+import com.tooling.toolforge.service.UserProfileStore;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 @RestController
+@Lazy // Created on the first request, with its user store, instead of at startup
 @RequestMapping("/users")
 @CrossOrigin(origins = {
         "http://localhost:4200",
@@ -21,37 +29,79 @@ import org.springframework.web.bind.annotation.*;
 @Slf4j
 public class ProfileController {
 
-    @PostMapping("/user")
-    public ResponseEntity<ProfileResponse> handleProfile(@RequestBody ProfileRequest profileRequest) {
+    private static final int MAX_BATCH_SIZE = 100;
 
-        MongoTemplate mongoTemplate;
+    private final UserProfileStore userProfileStore;
 
-        if (profileRequest.getEmail() == null || profileRequest.getEmail().isBlank()) {
-            return ResponseEntity.badRequest().body(new ProfileResponse("Username, email, and password are required."));
-        }
+    public ProfileController(UserProfileStore userProfileStore) {
+        this.userProfileStore = userProfileStore;
+    }
 
-        try {
-            log.debug("Attempting to store user: {}", profileRequest.getEmail());
-            log.debug("Email: {}", profileRequest.getEmail());
-            Long createdUserId = 123L;
+    @PostMapping("/user")
+    public ResponseEntity<ProfileResponse> handleProfile(@RequestBody ProfileRequest profileRequest) {
+        if (StringUtils.isBlank(profileRequest.getUid()) || StringUtils.isBlank(profileRequest.getEmail())) {
+            return ResponseEntity.badRequest().body(new ProfileResponse("uid and email are required."));
+        }
 
-            ProfileResponse response = new ProfileResponse("User stored successfully!", createdUserId);
-            return ResponseEntity.status(HttpStatus.CREATED).body(response);
+        UserProfile profile = new UserProfile();
+        profile.setUid(profileRequest.getUid());
+        profile.setEmail(profileRequest.getEmail());
+        profile.setDisplayName(profileRequest.getDisplayName());
+        profile.setPhotoURL(profileRequest.getPhotoURL());
+        profile.setEmailVerified(profileRequest.getEmailVerified() != null ? Boolean.valueOf(profileRequest.getEmailVerified()) : null);
+        profile.setProviderId(profileRequest.getProviderId());
 
-        } catch (Exception e) {
-            log.error("User transaction failed: {}", e.getMessage());
-            ProfileResponse errorResponse = new ProfileResponse("Profile processing failed: " + e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
+        try {
+            log.debug("Attempting to store user: {}", profileRequest.getUid());
+            UserProfileStore.Upserted upserted = userProfileStore.upsert(profile);
+            return upserted.created()
+                    ? ResponseEntity.status(HttpStatus.CREATED).body(new ProfileResponse("User stored successfully!", upserted.profile()))
+                    : ResponseEntity.ok(new ProfileResponse("User updated successfully!", upserted.profile()));
+        } catch (DuplicateKeyException e) {
+            if (!UserProfileStore.isEmailConflict(e)) {
+                log.error("MongoDB Error: Failed to store user {}. Reason: {}", profileRequest.getUid(), e.getMessage(), e);
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(new ProfileResponse("Profile processing failed."));
+            }
+            log.warn("Email of user {} is already registered to another user", profileRequest.getUid());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(new ProfileResponse("Email is already registered to another user."));
+        } catch (DataAccessException e) {
+            log.error("MongoDB Error: Failed to store user {}. Reason: {}", profileRequest.getUid(), e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(new ProfileResponse("Profile processing failed."));
         }
     }
 
     @GetMapping("/user-details/{email}")
     public ResponseEntity<ProfileResponse> getUserByEmail(@PathVariable String email) {
-        if (!StringUtils.isEmpty(email)) {
-            ProfileResponse userDto = new ProfileResponse(email, 123L);
-            return ResponseEntity.ok(userDto);
-        } else {
+        if (StringUtils.isBlank(email)) {
             return ResponseEntity.notFound().build();
         }
+        try {
+            return userProfileStore.findByEmail(email)
+                    .map(profile -> ResponseEntity.ok(new ProfileResponse("User found.", profile)))
+                    .orElseGet(() -> ResponseEntity.notFound().build());
+        } catch (DataAccessException e) {
+            log.error("MongoDB Error: Failed to fetch user by email. Reason: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(new ProfileResponse("Error accessing user data."));
+        }
+    }
+
+    /**
+     * Looks up to MAX_BATCH_SIZE users up by email in one call. Unknown emails are left out of the
+     * result, which is keyed by lower-cased email.
+     */
+    @PostMapping("/user-details")
+    public ResponseEntity<?> getUsersByEmail(@RequestBody List<String> emails) {
+        if (emails.size() > MAX_BATCH_SIZE) {
+            return ResponseEntity.badRequest().body(new ProfileResponse(String.format("At most %d emails per request.", MAX_BATCH_SIZE)));
+        }
+        List<String> valid = emails.stream().filter(StringUtils::isNotBlank).toList();
+        try {
+            Map<String, ProfileResponse> users = new LinkedHashMap<>();
+            userProfileStore.findByEmails(valid).forEach((email, profile) -> users.put(email, new ProfileResponse("User found.", profile)));
+            return ResponseEntity.ok(users);
+        } catch (DataAccessException e) {
+            log.error("MongoDB Error: Failed to fetch {} users by email. Reason: {}", valid.size(), e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(new ProfileResponse("Error accessing user data."));
+        }
     }
 }
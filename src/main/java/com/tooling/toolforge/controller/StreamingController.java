@@ -1,33 +1,46 @@
 package com.tooling.toolforge.controller;
 
 import com.tooling.toolforge.dto.chat.ChatRepository;
-import com.tooling.toolforge.dto.chat.ChatSession;
 import com.tooling.toolforge.dto.chat.Message;
+import com.tooling.toolforge.dto.chat.SessionMessagesSlice;
 // import com.tooling.toolforge.model.user.ProfileResponse; // Not used in this snippet
+import com.tooling.toolforge.dto.history.ChatSearchHit;
 import com.tooling.toolforge.dto.history.PaginatedHistoryResponse;
 import com.tooling.toolforge.dto.history.PaginatedSessionMessagesResponse;
-import com.tooling.toolforge.dto.history.SessionHistoryItem;
-import com.tooling.toolforge.service.OpenRouterService;
+import com.tooling.toolforge.service.ChatAdmissionControl;
+import com.tooling.toolforge.service.ChatPersistenceQueue;
+import com.tooling.toolforge.service.ChatResponseCache;
+import com.tooling.toolforge.service.ChatSessionLifecycle;
+import com.tooling.toolforge.service.ChatStreamBuffer;
+import com.tooling.toolforge.service.ChatStreamCoalescer;
+import com.tooling.toolforge.service.ChatStreamMetrics;
+import com.tooling.toolforge.service.ContextAssembler;
+import com.tooling.toolforge.service.ModelRouter;
 import com.tooling.toolforge.utils.ChatUtils;
+import com.tooling.toolforge.utils.ConversationCodec;
+import com.tooling.toolforge.utils.ReplyBuffer;
+import com.tooling.toolforge.utils.SearchHighlighter;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 // import org.apache.commons.lang3.StringUtils; // Not strictly needed if sessionId.isBlank() is used and Java 11+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException; // Import for specific exception handling
-import org.springframework.data.domain.Sort;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
-import java.time.Instant;
-import java.time.LocalDate;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RestController
 @RequestMapping("/stream")
@@ -36,26 +49,56 @@ import java.util.stream.Collectors;
         "https://tool-forge.vercel.app",
         "https://toolforge.in",
         "http://192.168.0.109:4200"
-})
+}, exposedHeaders = {"Session-Id", HttpHeaders.RETRY_AFTER})
 @Slf4j
 @Service
 public class StreamingController {
 
-    private final OpenRouterService openRouterService;
+    private final ModelRouter modelRouter;
     private final ChatRepository chatRepository;
+    private final ChatSessionLifecycle chatSessionLifecycle;
+    private final ChatPersistenceQueue chatPersistenceQueue;
+    private final ContextAssembler contextAssembler;
+    private final ChatStreamCoalescer chatStreamCoalescer;
+    private final ChatStreamBuffer chatStreamBuffer;
+    private final ChatResponseCache chatResponseCache;
+    private final ChatAdmissionControl chatAdmissionControl;
+    private final ChatStreamMetrics chatStreamMetrics;
     private final RedisTemplate<String, String> redisTemplate;
+    private final Scheduler chatIoScheduler;
     private static final int HISTORY_PAGE_SIZE = 20; // Define page size as a constant
     private static final int SESSION_MESSAGE_PAGE_SIZE = 6; // Page size for session messages
+    private static final int REPLY_INITIAL_CAPACITY = 2048;
+    private static final int SEARCH_MAX_QUERY_LENGTH = 200;
+    private static final int SEARCH_MAX_RESULTS = 50;
     @Autowired
     ChatUtils chatUtils;
 
     // Constructor injection for all dependencies
-    public StreamingController(OpenRouterService openRouterService,
+    public StreamingController(ModelRouter modelRouter,
                                ChatRepository chatRepository,
-                               RedisTemplate<String, String> redisTemplate) {
-        this.openRouterService = openRouterService;
+                               ChatSessionLifecycle chatSessionLifecycle,
+                               ChatPersistenceQueue chatPersistenceQueue,
+                               ContextAssembler contextAssembler,
+                               ChatStreamCoalescer chatStreamCoalescer,
+                               ChatStreamBuffer chatStreamBuffer,
+                               ChatResponseCache chatResponseCache,
+                               ChatAdmissionControl chatAdmissionControl,
+                               ChatStreamMetrics chatStreamMetrics,
+                               RedisTemplate<String, String> redisTemplate,
+                               Scheduler chatIoScheduler) {
+        this.modelRouter = modelRouter;
         this.chatRepository = chatRepository;
+        this.chatSessionLifecycle = chatSessionLifecycle;
+        this.chatPersistenceQueue = chatPersistenceQueue;
+        this.contextAssembler = contextAssembler;
+        this.chatStreamCoalescer = chatStreamCoalescer;
+        this.chatStreamBuffer = chatStreamBuffer;
+        this.chatResponseCache = chatResponseCache;
+        this.chatAdmissionControl = chatAdmissionControl;
+        this.chatStreamMetrics = chatStreamMetrics;
         this.redisTemplate = redisTemplate;
+        this.chatIoScheduler = chatIoScheduler;
     }
 
     @GetMapping("/session")
@@ -67,33 +110,39 @@ public class StreamingController {
     public ResponseEntity<?> getSessionMessages(
             @RequestHeader(value = "Userid", required = false) String userId,
             @RequestParam String sessionId,
-            @RequestParam(value = "page", defaultValue = "1") int page) {
+            @RequestParam(value = "page", defaultValue = "1") int page,
+            @RequestParam(value = "before", required = false) Integer before) {
 
-        log.info("Attempting to fetch messages for sessionId: {}, page: {}", sessionId, page);
+        log.info("Attempting to fetch messages for sessionId: {}, page: {}, before: {}", sessionId, page, before);
 
         if (page < 1) {
             log.warn("Invalid page number {} requested for sessionId: {}", page, sessionId);
             return ResponseEntity.badRequest().body("Page number must be 1 or greater.");
         }
+        if (before != null && before < 0) {
+            log.warn("Invalid cursor {} requested for sessionId: {}", before, sessionId);
+            return ResponseEntity.badRequest().body("Cursor 'before' must be 0 or greater.");
+        }
 
-        Optional<ChatSession> sessionOptional;
+        Optional<SessionMessagesSlice> sliceOptional;
         try {
-            sessionOptional = chatRepository.findById(sessionId);
+            sliceOptional = before != null
+                    ? chatRepository.findMessagesBefore(sessionId, before, SESSION_MESSAGE_PAGE_SIZE)
+                    : chatRepository.findMessagesPage(sessionId, page, SESSION_MESSAGE_PAGE_SIZE);
         } catch (DataAccessException e) {
             log.error("MongoDB Error: Failed to fetch session for id: {}. Reason: {}", sessionId, e.getMessage(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error accessing session data.");
         }
 
-
-        if (sessionOptional.isEmpty()) {
+        if (sliceOptional.isEmpty()) {
             log.warn("ChatSession not found for id: {}", sessionId);
             return ResponseEntity.notFound().build();
         }
 
-        ChatSession session = sessionOptional.get();
-        List<Message> allMessages = session.getMessages();
+        SessionMessagesSlice slice = sliceOptional.get();
+        int totalMessages = slice.getTotalMessages();
 
-        if (allMessages == null || allMessages.isEmpty()) {
+        if (totalMessages == 0) {
             log.info("No messages found for sessionId: {}", sessionId);
             PaginatedSessionMessagesResponse response = new PaginatedSessionMessagesResponse(
                     Collections.emptyList(), page, 0, 0
@@ -101,31 +150,27 @@ public class StreamingController {
             return ResponseEntity.ok(response);
         }
 
-        int totalMessages = allMessages.size();
-        int totalPages = 0;
-        totalPages = (int) Math.ceil((double) totalMessages / SESSION_MESSAGE_PAGE_SIZE);
+        int totalPages = (int) Math.ceil((double) totalMessages / SESSION_MESSAGE_PAGE_SIZE);
 
-        if ((totalPages == 0 && page > 1) || (totalPages > 0 && page > totalPages)) {
+        if (before == null && page > totalPages) {
             log.warn("Invalid page number {} requested for sessionId: {}. Total pages: {}", page, sessionId, totalPages);
             return ResponseEntity.badRequest().body(String.format("Invalid page number. Page must be between 1 and %d.", Math.max(1, totalPages)));
         }
 
-        int startIndex = Math.max(0, totalMessages - (page * SESSION_MESSAGE_PAGE_SIZE));
-        int endIndex = totalMessages - ((page - 1) * SESSION_MESSAGE_PAGE_SIZE);
-
-        List<Message> paginatedMessagesSublist = Collections.emptyList();
-        if (startIndex < endIndex) {
-            paginatedMessagesSublist = allMessages.subList(startIndex, endIndex);
-        }
+        // Cursor reads report the page their first message falls on, counted from the newest message
+        int currentPage = before != null
+                ? (totalMessages - slice.getStart() - 1) / SESSION_MESSAGE_PAGE_SIZE + 1
+                : page;
 
-        List<Message> messagesForPage = new ArrayList<>(paginatedMessagesSublist);
+        List<Message> messagesForPage = new ArrayList<>(slice.getMessages());
         Collections.reverse(messagesForPage);
 
         log.info("Successfully fetched {} messages for sessionId: {}, page: {}. Total pages: {}",
-                messagesForPage.size(), sessionId, page, totalPages);
+                messagesForPage.size(), sessionId, currentPage, totalPages);
 
         PaginatedSessionMessagesResponse response = new PaginatedSessionMessagesResponse(
-                messagesForPage, page, totalPages, totalMessages
+                messagesForPage, currentPage, totalPages, totalMessages,
+                slice.getStart() > 0 ? slice.getStart() : null
         );
 
         return ResponseEntity.ok(response);
@@ -135,8 +180,6 @@ public class StreamingController {
     public ResponseEntity<PaginatedHistoryResponse> getHistory(
             @RequestHeader(value = "Userid", required = false) String userId,
             @RequestParam(value = "page", defaultValue = "1") int page) {
-        List<ChatSession> sessions;
-
         if (page < 1) {
             page = 1; // Ensure page is at least 1
         }
@@ -144,64 +187,12 @@ public class StreamingController {
         try {
             if (userId != null && !userId.isBlank()) {
                 log.info("Fetching chat history for userId: {}, page: {}", userId, page);
-                sessions = chatRepository.findByUserIdOrderByLastUpdatedDesc(userId);
             } else {
                 log.info("Fetching all chat history, ordered by lastUpdated descending, page: {}", page);
-                sessions = chatRepository.findAll(Sort.by(Sort.Direction.DESC, "lastUpdated"));
-            }
-
-            if (sessions == null || sessions.isEmpty()) {
-                PaginatedHistoryResponse emptyResponse = new PaginatedHistoryResponse(Collections.emptyMap(), page, 0, 0);
-                return ResponseEntity.ok(emptyResponse);
             }
 
-            DateTimeFormatter monthYearFormatter = DateTimeFormatter.ofPattern("MMMM yyyy", Locale.ENGLISH);
-            ZoneId utcZone = ZoneId.of("UTC");
-
-            Map<String, List<SessionHistoryItem>> historyGroupedByDate = sessions.stream()
-                    .collect(Collectors.groupingBy(
-                            session -> {
-                                LocalDate localDate = session.getLastUpdated().atZone(utcZone).toLocalDate();
-                                String dayWithSuffix = ChatUtils.getDayWithOrdinalSuffix(localDate.getDayOfMonth());
-                                String monthYear = monthYearFormatter.format(localDate);
-                                return dayWithSuffix + " " + monthYear;
-                            },
-                            LinkedHashMap::new,
-                            Collectors.mapping(session -> {
-                                String title = "Chat";
-                                if (session.getMessages() != null && !session.getMessages().isEmpty()) {
-                                    Message firstMessage = session.getMessages().get(0);
-                                    if (firstMessage != null && firstMessage.getContent() != null && !firstMessage.getContent().isBlank()) {
-                                        title = firstMessage.getContent();
-                                        int maxLength = 50;
-                                        if (title.length() > maxLength) {
-                                            title = title.substring(0, maxLength - 3) + "...";
-                                        }
-                                    }
-                                }
-                                return new SessionHistoryItem(session.getId(), session.getLastUpdated(), title);
-                            }, Collectors.toList())
-                    ));
-
-            long totalUniqueDates = historyGroupedByDate.size();
-            int totalPages = 0;
-            if (totalUniqueDates > 0) {
-                totalPages = (int) Math.ceil((double) totalUniqueDates / HISTORY_PAGE_SIZE);
-            }
-
-            long skipCount = (long) (page - 1) * HISTORY_PAGE_SIZE;
-
-            Map<String, List<SessionHistoryItem>> paginatedData = historyGroupedByDate.entrySet().stream()
-                    .skip(skipCount)
-                    .limit(HISTORY_PAGE_SIZE)
-                    .collect(Collectors.toMap(
-                            Map.Entry::getKey,
-                            Map.Entry::getValue,
-                            (v1, v2) -> v1,
-                            LinkedHashMap::new
-                    ));
-
-            PaginatedHistoryResponse response = new PaginatedHistoryResponse(paginatedData, page, totalPages, totalUniqueDates);
+            // Grouping by day and paging happen in MongoDB; only titles and timestamps come back
+            PaginatedHistoryResponse response = chatRepository.findHistoryPage(userId, page, HISTORY_PAGE_SIZE);
             return ResponseEntity.ok(response);
 
         } catch (DataAccessException e) {
@@ -217,88 +208,248 @@ public class StreamingController {
         }
     }
 
+    /**
+     * Searches the caller's chat history, best matching sessions first, each with a few highlighted
+     * snippets of the messages that matched. Sessions are found both in buckets and, before
+     * ChatBucketMigration has converted them, in their embedded messages array.
+     */
+    @GetMapping("/search")
+    public ResponseEntity<?> searchHistory(
+            @RequestHeader(value = "Userid", required = false) String userId,
+            @RequestParam("q") String query,
+            @RequestParam(value = "limit", defaultValue = "20") int limit) {
+        if (userId == null || userId.isBlank()) {
+            return ResponseEntity.badRequest().body("Userid header is required.");
+        }
+        if (query.length() > SEARCH_MAX_QUERY_LENGTH) {
+            return ResponseEntity.badRequest().body(String.format("Query must be at most %d characters.", SEARCH_MAX_QUERY_LENGTH));
+        }
+        List<String> terms = SearchHighlighter.terms(query);
+        if (terms.isEmpty()) {
+            return ResponseEntity.badRequest().body("Query must contain at least one word.");
+        }
+        limit = Math.max(1, Math.min(limit, SEARCH_MAX_RESULTS));
+
+        try {
+            List<ChatSearchHit> hits = chatRepository.searchSessions(userId, terms, limit);
+            log.info("Search for userId: {} with {} terms returned {} sessions", userId, terms.size(), hits.size());
+            return ResponseEntity.ok(hits);
+        } catch (DataAccessException e) {
+            log.error("MongoDB Error: Failed to search chat history. UserId: '{}'. Reason: {}", userId, e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error searching chat history.");
+        }
+    }
+
     @PostMapping(value = "/chat", consumes = MediaType.TEXT_PLAIN_VALUE, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public ResponseEntity<Flux<String>> streamChat(
+    public Mono<ResponseEntity<Flux<ServerSentEvent<String>>>> streamChat(
             @RequestHeader(value = "Session-Id", required = false) String sessionId,
             @RequestHeader(value = "Userid", required = false) String userId,
-            @RequestBody String newMessage) {
+            @RequestHeader(value = "X-Forwarded-For", required = false) String forwardedFor,
+            @RequestBody String newMessage,
+            HttpServletRequest request) {
+        long startNanos = System.nanoTime();
+
+        String clientIp = chatAdmissionControl.clientIp(request.getRemoteAddr(), forwardedFor);
+        // Reject overloaded callers before any Redis list, MongoDB write or upstream stream is opened.
+        // The check talks to Redis, so it runs on chatIoScheduler and the status is only decided after it.
+        return Mono.fromCallable(() -> chatAdmissionControl.tryAdmit(userId, clientIp))
+                .subscribeOn(chatIoScheduler)
+                .map(admission -> {
+                    if (!admission.allowed()) {
+                        log.warn("Rejected chat stream for user {}: rate limited, retry after {} s", userId, admission.retryAfterSeconds());
+                        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                                .header(HttpHeaders.RETRY_AFTER, Long.toString(admission.retryAfterSeconds()))
+                                .<Flux<ServerSentEvent<String>>>build();
+                    }
+                    return admittedChat(sessionId, userId, newMessage, admission, startNanos);
+                });
+    }
 
+    /**
+     * Starts the stream for a turn that was let through admission control. The admission's slot is
+     * released when the stream ends.
+     */
+    private ResponseEntity<Flux<ServerSentEvent<String>>> admittedChat(String sessionId, String userId, String newMessage,
+                                                                       ChatAdmissionControl.Admission admission,
+                                                                       long startNanos) {
         if (sessionId == null || sessionId.isBlank()) { // sessionId.isBlank() is Java 11+
             sessionId = UUID.randomUUID().toString();
             log.info("No Session-Id provided, generated new one: {}", sessionId);
         }
 
         String redisKey = sessionId.trim();
+        // Once generation starts, the slot is held until it ends, not until this response does
+        AtomicBoolean generating = new AtomicBoolean();
+
+        // All blocking Redis/MongoDB work runs on chatIoScheduler once the client subscribes
+        Flux<ServerSentEvent<String>> stream = Mono.fromCallable(() -> prepareTurn(redisKey, userId, newMessage))
+                .subscribeOn(chatIoScheduler)
+                .flatMapMany(turn -> {
+                    generating.set(true);
+                    ReplyBuffer reply = new ReplyBuffer(REPLY_INITIAL_CAPACITY);
+                    AtomicReference<String> answeringModel = new AtomicReference<>();
+                    Flux<String> frames = turn.cachedReply() != null
+                            ? chatStreamMetrics.instrument(chatResponseCache.replay(turn.cachedReply(), reply),
+                                    ChatStreamMetrics.SOURCE_CACHE, startNanos)
+                            : chatStreamMetrics.instrument(chatStreamCoalescer.coalesce(
+                                            modelRouter.stream(turn.context(), answeringModel::set), reply),
+                                    ChatStreamMetrics.SOURCE_UPSTREAM, startNanos);
+                    // Only answers that really came from upstream are written to the response cache
+                    String responseCacheKey = turn.cachedReply() == null ? turn.responseCacheKey() : null;
+                    // The generation outlives a dropped connection for the resume grace period
+                    Flux<String> generation = frames
+                            .doOnError(e -> log.error("Error during chat streaming for session {}: {}", redisKey, e.getMessage(), e))
+                            .doOnCancel(() -> {
+                                log.info("Chat stream cancelled for session {}", redisKey);
+                                String partialResponse = reply.toString();
+                                if (!partialResponse.isEmpty()) {
+                                    schedulePersistBotResponse(redisKey, partialResponse, true, null, null);
+                                }
+                            })
+                            .doOnComplete(() -> {
+                                String fullResponse = reply.toString();
+                                if (fullResponse.isEmpty()) {
+                                    log.info("Stream completed with an empty response for session {}.", redisKey);
+                                }
+                                log.info("Chat stream completed for session {}", redisKey);
+                                schedulePersistBotResponse(redisKey, fullResponse, false, responseCacheKey, answeringModel.get());
+                            })
+                            .doFinally(signal -> releaseAdmission(admission));
+                    return chatStreamBuffer.publish(redisKey, generation);
+                })
+                .doFinally(signal -> {
+                    if (!generating.get()) {
+                        releaseAdmission(admission);
+                    }
+                });
+
+        return ResponseEntity.ok()
+                .header("Session-Id", sessionId) // Send back the session ID (new or existing)
+                .contentType(MediaType.TEXT_EVENT_STREAM)
+                .body(stream);
+    }
+
+    /**
+     * Picks up a chat stream after a dropped connection: replays the events after Last-Event-ID (or,
+     * without it, the session's latest answer from the start) and then follows the answer until it
+     * is complete. Works on any node. 204 when there is nothing to resume, e.g. the answer expired.
+     */
+    @GetMapping(value = "/chat/resume", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Mono<ResponseEntity<Flux<ServerSentEvent<String>>>> resumeChat(
+            @RequestHeader("Session-Id") String sessionId,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        String redisKey = sessionId.trim();
+        // The lookup talks to Redis, so it runs on chatIoScheduler like the admission check
+        return Mono.fromCallable(() -> chatStreamBuffer.findResumePoint(redisKey, lastEventId))
+                .subscribeOn(chatIoScheduler)
+                .map(point -> {
+                    log.info("Resuming chat stream for session {} after event {}", redisKey, lastEventId);
+                    return ResponseEntity.ok()
+                            .header("Session-Id", redisKey)
+                            .contentType(MediaType.TEXT_EVENT_STREAM)
+                            .body(chatStreamBuffer.resume(point));
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> {
+                    log.info("Nothing to resume for session {} after event {}", redisKey, lastEventId);
+                    return ResponseEntity.noContent().build();
+                }))
+                .onErrorResume(IllegalArgumentException.class, e -> {
+                    log.warn("Rejected chat stream resume for session {}: {}", redisKey, e.getMessage());
+                    return Mono.just(ResponseEntity.badRequest().build());
+                })
+                .onErrorResume(DataAccessException.class, e -> {
+                    log.error("Redis Error: Failed to look up chat stream for session id: {}. Reason: {}", redisKey, e.getMessage(), e);
+                    return Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build());
+                });
+    }
 
-        chatUtils.checkRedisAndLoadIfAbsent(redisTemplate, redisKey);
+    /**
+     * The prompt for a turn, plus its response cache key (null when not cacheable) and the cached
+     * answer when there was a hit.
+     */
+    private record PreparedTurn(List<org.springframework.ai.chat.messages.Message> context,
+                                String responseCacheKey,
+                                String cachedReply) {
+    }
 
-        List<String> history = redisTemplate.opsForList().range(redisKey, 0, -1);
-        String context = (history != null && !history.isEmpty())
-                ? String.join("\n", history) + "\n" + newMessage
-                : newMessage;
+    /**
+     * Loads the conversation into Redis if needed, records the user message in Redis and queues it
+     * for MongoDB, builds the prompt messages and checks the response cache. Blocking; must run on chatIoScheduler.
+     * <p>
+     * When the conversation is already cached, reading the context and pushing the user message is
+     * one round trip to Redis.
+     */
+    private PreparedTurn prepareTurn(String redisKey, String userId, String newMessage) {
+        String userEntry = ConversationCodec.encode(ConversationCodec.ROLE_USER, newMessage);
+        ContextAssembler.ConversationSnapshot cached = chatStreamMetrics.timeStage(ChatStreamMetrics.STAGE_REDIS_PUSH,
+                () -> chatSessionLifecycle.readAndAppend(redisKey, userEntry, false));
+
+        ContextAssembler.ConversationSnapshot snapshot;
+        if (cached != null) {
+            chatUtils.recordCacheHit();
+            snapshot = cached;
+        } else {
+            chatStreamMetrics.timeStage(ChatStreamMetrics.STAGE_WARMUP,
+                    () -> chatUtils.loadAfterMiss(redisTemplate, redisKey));
+            snapshot = chatStreamMetrics.timeStage(ChatStreamMetrics.STAGE_REDIS_PUSH,
+                    () -> chatSessionLifecycle.readAndAppend(redisKey, userEntry, true));
+        }
 
-        redisTemplate.opsForList().rightPush(redisKey, newMessage);
+        List<org.springframework.ai.chat.messages.Message> context = chatStreamMetrics.timeStage(ChatStreamMetrics.STAGE_CONTEXT,
+                () -> contextAssembler.assemble(redisKey, newMessage, snapshot));
 
-        // Upsert user message to MongoDB
-        try {
-            ChatSession chatSession = chatRepository.findById(redisKey)
-                    .orElseGet(() -> {
-                        log.info("ChatSession with id '{}' not found. Creating new session.", redisKey);
-                        ChatSession newSession = new ChatSession();
-                        newSession.setId(redisKey);
-                        newSession.setUserId(userId); // Assign userId if available
-                        newSession.setMessages(new ArrayList<>()); // Initialize messages list
-                        return newSession;
-                    });
-
-            chatSession.getMessages().add(new Message("user", newMessage));
-            chatSession.setLastUpdated(Instant.now());
-
-            chatRepository.save(chatSession);
-            log.info("Successfully saved/updated user message for session id: {}", redisKey);
-        } catch (DataAccessException e) {
-            log.error("MongoDB Error: Failed to save user message for session id: {}. Reason: {}", redisKey, e.getMessage(), e);
-        } catch (Exception e) {
-            log.error("Unexpected Error: Failed to save user message for session id: {}. Reason: {}", redisKey, e.getMessage(), e);
+        // Through the write-behind queue, ahead of the reply, so MongoDB gets the turn in order
+        chatStreamMetrics.timeStage(ChatStreamMetrics.STAGE_ENQUEUE,
+                () -> chatPersistenceQueue.enqueue(redisKey, userId, ConversationCodec.ROLE_USER, newMessage, false));
+
+        String responseCacheKey = chatResponseCache.keyFor(context);
+        String cachedReply = responseCacheKey != null
+                ? chatStreamMetrics.timeStage(ChatStreamMetrics.STAGE_CACHE_LOOKUP, () -> chatResponseCache.lookup(responseCacheKey))
+                : null;
+        if (cachedReply != null) {
+            log.info("Answering session {} from the response cache", redisKey);
         }
 
+        return new PreparedTurn(context, responseCacheKey, cachedReply);
+    }
 
-        List<String> responseCollector = new ArrayList<>();
+    private void schedulePersistBotResponse(String redisKey, String response, boolean partial,
+                                            String responseCacheKey, String answeringModel) {
+        try {
+            chatIoScheduler.schedule(() -> chatStreamMetrics.timeStage(ChatStreamMetrics.STAGE_PERSIST,
+                    () -> persistBotResponse(redisKey, response, partial, responseCacheKey, answeringModel)));
+        } catch (RejectedExecutionException e) {
+            log.error("Failed to schedule saving bot response for session id: {}. Reason: {}", redisKey, e.getMessage(), e);
+        }
+    }
 
-        Flux<String> stream = openRouterService.streamChatCompletion(context)
-                .doOnNext(responseCollector::add)
-                .doOnError(e -> log.error("Error during chat streaming for session {}: {}", redisKey, e.getMessage(), e))
-                .doOnCancel(() -> log.info("Chat stream cancelled for session {}", redisKey))
-                .doOnComplete(() -> {
-                    String fullResponse = String.join("", responseCollector);
-                    if (fullResponse.isEmpty() && !responseCollector.isEmpty()) {
-                        log.warn("Collected response parts but fullResponse is empty for session {}. This might indicate non-string elements or an issue with String.join.", redisKey);
-                    } else if (fullResponse.isEmpty()) {
-                        log.info("Stream completed with an empty response for session {}.", redisKey);
-                    }
+    /**
+     * Frees the stream's concurrency slot on chatIoScheduler; if that fails the slot's lease expires on its own.
+     */
+    private void releaseAdmission(ChatAdmissionControl.Admission admission) {
+        try {
+            chatIoScheduler.schedule(() -> chatAdmissionControl.release(admission));
+        } catch (RejectedExecutionException e) {
+            log.error("Failed to schedule releasing stream slot. Reason: {}", e.getMessage(), e);
+        }
+    }
 
-                    redisTemplate.opsForList().rightPush(redisKey, fullResponse);
-
-                    try {
-                        chatRepository.findById(redisKey).ifPresentOrElse(session -> {
-                            session.getMessages().add(new Message("bot", fullResponse));
-                            session.setLastUpdated(Instant.now());
-                            chatRepository.save(session);
-                            log.info("Successfully saved bot response for session id: {}", redisKey);
-                        }, () -> {
-                            log.warn("ChatSession with id: {} not found when trying to save bot response. This might indicate the initial user message save failed or the session was unexpectedly deleted.", redisKey);
-                        });
-                    } catch (DataAccessException e) {
-                        log.error("MongoDB Error: Failed to save bot response for session id: {}. Reason: {}", redisKey, e.getMessage(), e);
-                    } catch (Exception e) {
-                        log.error("Unexpected Error: Failed to save bot response for session id: {}. Reason: {}", redisKey, e.getMessage(), e);
-                    }
-                    log.info("Chat stream completed for session {}", redisKey);
-                });
+    /**
+     * Caches the bot response in Redis, hands it to the write-behind queue for MongoDB and, when a
+     * response cache key is given, stores it in the response cache under the model that answered.
+     * Blocking; must run on chatIoScheduler.
+     */
+    private void persistBotResponse(String redisKey, String response, boolean partial,
+                                    String responseCacheKey, String answeringModel) {
+        try {
+            chatSessionLifecycle.append(redisKey, ConversationCodec.encode(ConversationCodec.ROLE_BOT, response));
+        } catch (DataAccessException e) {
+            log.error("Redis Error: Failed to push bot response for session id: {}. Reason: {}", redisKey, e.getMessage(), e);
+        }
+        chatPersistenceQueue.enqueue(redisKey, null, ConversationCodec.ROLE_BOT, response, partial);
 
-        return ResponseEntity.ok()
-                .header("Session-Id", sessionId) // Send back the session ID (new or existing)
-                .contentType(MediaType.TEXT_EVENT_STREAM)
-                .body(stream);
+        if (responseCacheKey != null) {
+            chatResponseCache.store(responseCacheKey, response, answeringModel);
+        }
     }
-}
\ No newline at end of file
+}
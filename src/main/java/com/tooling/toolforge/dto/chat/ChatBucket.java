@@ -0,0 +1,52 @@
+package com.tooling.toolforge.dto.chat;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed-size run of a session's messages: bucket n holds the messages with sequence numbers
+ * [n * SIZE, (n + 1) * SIZE). Unique on (sessionId, bucket). Entries are appended with $addToSet,
+ * so they are not necessarily in order inside the array; readers sort them by seq.
+ * SIZE is part of the stored layout and cannot change once buckets exist.
+ * <p>
+ * An entry holds at most MAX_CONTENT_CHARS chars of content, so that a full bucket stays within
+ * MongoDB's 16 MiB document limit: a char takes at most 3 bytes in UTF-8, so SIZE entries take under
+ * 10 MiB. A longer message keeps its start here and the rest in {@link ChatMessagePart}s.
+ */
+@Document(collection = "chat_buckets")
+@Data
+public class ChatBucket {
+    public static final int SIZE = 50;
+    public static final int MAX_CONTENT_CHARS = 64 * 1024;
+
+    @Id
+    private String id;
+    private String sessionId;
+    private String userId; // The session's owner, so search can be scoped to a user
+    private long bucket;
+    private List<Entry> messages = new ArrayList<>();
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private long seq;
+        private String role;
+        private String content;
+        private Integer parts; // ChatMessageParts holding the rest of the content; null when none
+
+        public Entry(long seq, String role, String content) {
+            this(seq, role, content, null);
+        }
+    }
+
+    public static long bucketOf(long seq) {
+        return seq / SIZE;
+    }
+}
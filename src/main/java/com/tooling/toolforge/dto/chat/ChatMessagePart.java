@@ -0,0 +1,30 @@
+package com.tooling.toolforge.dto.chat;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A further piece of a message too long for one {@link ChatBucket} entry. The entry keeps the first
+ * {@link ChatBucket#MAX_CONTENT_CHARS} chars and the number of parts; part 1, 2, ... hold the rest,
+ * each at most MAX_CONTENT_CHARS chars. The id is derived from the session, seq and part, so
+ * writing a part again replaces it.
+ */
+@Document(collection = "chat_message_parts")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatMessagePart {
+    @Id
+    private String id;
+    private String sessionId;
+    private long seq;
+    private int part;
+    private String content;
+
+    public static String idOf(String sessionId, long seq, int part) {
+        return sessionId + ":" + seq + ":" + part;
+    }
+}
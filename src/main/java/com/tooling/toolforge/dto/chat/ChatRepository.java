@@ -4,6 +4,6 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 
 import java.util.List;
 
-public interface ChatRepository extends MongoRepository<ChatSession, String> {
+public interface ChatRepository extends MongoRepository<ChatSession, String>, ChatRepositoryCustom {
     List<ChatSession> findByUserIdOrderByLastUpdatedDesc(String userId);
-}
\ No newline at end of file
+}
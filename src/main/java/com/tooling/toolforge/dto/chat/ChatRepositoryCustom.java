@@ -0,0 +1,50 @@
+package com.tooling.toolforge.dto.chat;
+
+import com.tooling.toolforge.dto.history.ChatSearchHit;
+import com.tooling.toolforge.dto.history.PaginatedHistoryResponse;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface ChatRepositoryCustom {
+
+    /**
+     * Builds one page of the chat history, grouped by UTC day, entirely inside MongoDB.
+     * Only the session id, lastUpdated and a short prefix of the first message are read,
+     * so no messages leave the database.
+     *
+     * @param userId   Restricts the history to this user; null or blank returns every session.
+     * @param page     1-based page number, counted in days.
+     * @param pageSize Number of days per page.
+     * @return The page in the same shape the history endpoint has always returned.
+     */
+    PaginatedHistoryResponse findHistoryPage(String userId, int page, int pageSize);
+
+    /**
+     * Reads one page of a session's messages, counting pages from the newest message backwards.
+     * Only the buckets (or, before migration, the window of the messages array) the page falls in
+     * are sent back by MongoDB.
+     *
+     * @return The slice in chronological order, or empty if the session does not exist.
+     */
+    Optional<SessionMessagesSlice> findMessagesPage(String sessionId, int page, int pageSize);
+
+    /**
+     * Cursor variant of {@link #findMessagesPage}: reads up to pageSize messages whose index is
+     * lower than {@code before}. The returned {@code start} is the cursor for the next call.
+     *
+     * @return The slice in chronological order, or empty if the session does not exist.
+     */
+    Optional<SessionMessagesSlice> findMessagesBefore(String sessionId, int before, int pageSize);
+
+    /**
+     * Full-text search over one user's messages, backed by the text indexes on the message buckets
+     * and on the sessions that still embed their messages (see ChatBucketMigration), so every
+     * session is found whether or not it has been migrated. Sessions are ranked by the text score
+     * of their best match; each hit carries a few highlighted snippets of the matching messages.
+     *
+     * @param terms The query's terms, as returned by {@code SearchHighlighter.terms}; not empty.
+     * @param limit Maximum number of sessions returned.
+     */
+    List<ChatSearchHit> searchSessions(String userId, List<String> terms, int limit);
+}
@@ -0,0 +1,378 @@
+package com.tooling.toolforge.dto.chat;
+
+import com.tooling.toolforge.dto.history.ChatSearchHit;
+import com.tooling.toolforge.dto.history.PaginatedHistoryResponse;
+import com.tooling.toolforge.dto.history.SearchSnippet;
+import com.tooling.toolforge.dto.history.SessionHistoryItem;
+import com.tooling.toolforge.utils.ChatUtils;
+import com.tooling.toolforge.utils.SearchHighlighter;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Custom query fragment for {@link ChatRepository}. Spring Data picks this class up by its
+ * {@code Impl} suffix and merges it into the repository proxy.
+ */
+public class ChatRepositoryCustomImpl implements ChatRepositoryCustom {
+
+    private static final int TITLE_MAX_LENGTH = 50;
+    // Buckets ranked per session requested; bounds the $group work for users with long histories
+    private static final int SEARCH_CANDIDATES_PER_HIT = 5;
+    // Matching messages kept per bucket and snippets per hit
+    private static final int SEARCH_MESSAGES_PER_BUCKET = 2;
+    private static final int SEARCH_SNIPPETS_PER_HIT = 3;
+    private static final int SEARCH_SNIPPET_LENGTH = 160;
+
+    private final MongoTemplate mongoTemplate;
+
+    public ChatRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public PaginatedHistoryResponse findHistoryPage(String userId, int page, int pageSize) {
+        List<AggregationOperation> pipeline = new ArrayList<>();
+
+        // $match + $sort come first so they are served by the {userId: 1, lastUpdated: -1} index
+        if (userId != null && !userId.isBlank()) {
+            pipeline.add(Aggregation.match(Criteria.where("userId").is(userId)));
+        }
+        pipeline.add(Aggregation.sort(Sort.Direction.DESC, "lastUpdated"));
+
+        // Keep only what a history entry needs; one extra character tells us whether the title was cut.
+        // Bucketed sessions keep the start of their first message in the header.
+        Document firstMessage = new Document("$ifNull", Arrays.asList("$title", new Document("$ifNull", Arrays.asList(
+                new Document("$arrayElemAt", Arrays.asList("$messages.content", 0)), ""))));
+        pipeline.add(Aggregation.stage(new Document("$project", new Document("lastUpdated", 1)
+                .append("day", new Document("$dateToString", new Document("format", "%Y-%m-%d")
+                        .append("date", "$lastUpdated")
+                        .append("timezone", "UTC")))
+                .append("title", new Document("$substrCP", Arrays.asList(firstMessage, 0, TITLE_MAX_LENGTH + 1))))));
+
+        pipeline.add(Aggregation.stage(new Document("$group", new Document("_id", "$day")
+                .append("sessions", new Document("$push", new Document("sessionId", "$_id")
+                        .append("lastUpdated", "$lastUpdated")
+                        .append("title", "$title"))))));
+        pipeline.add(Aggregation.stage(new Document("$sort", new Document("_id", -1))));
+
+        long skipCount = (long) (page - 1) * pageSize;
+        pipeline.add(Aggregation.stage(new Document("$facet", new Document("total",
+                List.of(new Document("$count", "count")))
+                .append("days", List.of(new Document("$skip", skipCount), new Document("$limit", pageSize))))));
+
+        Aggregation aggregation = Aggregation.newAggregation(pipeline)
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+        Document result = mongoTemplate.aggregate(aggregation, mongoTemplate.getCollectionName(ChatSession.class), Document.class)
+                .getUniqueMappedResult();
+
+        return toHistoryPage(result, page, pageSize);
+    }
+
+    /**
+     * Maps the $facet result of the history pipeline to the response, labelling each day and
+     * building the session titles.
+     *
+     * @param result The single result document, or null when nothing matched.
+     */
+    public static PaginatedHistoryResponse toHistoryPage(Document result, int page, int pageSize) {
+        if (result == null) {
+            return new PaginatedHistoryResponse(Collections.emptyMap(), page, 0, 0);
+        }
+
+        List<Document> total = result.getList("total", Document.class, Collections.emptyList());
+        long totalUniqueDates = total.isEmpty() ? 0 : ((Number) total.get(0).get("count")).longValue();
+        int totalPages = (int) Math.ceil((double) totalUniqueDates / pageSize);
+
+        Map<String, List<SessionHistoryItem>> paginatedData = new LinkedHashMap<>();
+        for (Document day : result.getList("days", Document.class, Collections.emptyList())) {
+            String dateLabel = ChatUtils.formatHistoryDateLabel(LocalDate.parse(day.getString("_id")));
+            List<Document> sessions = day.getList("sessions", Document.class, Collections.emptyList());
+            List<SessionHistoryItem> items = new ArrayList<>(sessions.size());
+            for (Document session : sessions) {
+                Date lastUpdated = session.getDate("lastUpdated");
+                items.add(new SessionHistoryItem(
+                        session.getString("sessionId"),
+                        lastUpdated != null ? lastUpdated.toInstant() : null,
+                        ChatUtils.buildSessionTitle(session.getString("title"), TITLE_MAX_LENGTH)));
+            }
+            paginatedData.put(dateLabel, items);
+        }
+
+        return new PaginatedHistoryResponse(paginatedData, page, totalPages, totalUniqueDates);
+    }
+
+    @Override
+    public Optional<SessionMessagesSlice> findMessagesPage(String sessionId, int page, int pageSize) {
+        Document header = findHeader(sessionId);
+        if (header == null) {
+            return Optional.empty();
+        }
+        long skipped = (long) (page - 1) * pageSize;
+        if (header.containsKey("messages")) {
+            // Page 1 ends at the last message, every further page ends pageSize messages earlier
+            Document end = new Document("$max", Arrays.asList(0,
+                    new Document("$subtract", Arrays.asList("$totalMessages", skipped))));
+            return findMessagesSlice(sessionId, end, pageSize);
+        }
+        long total = messageCount(header);
+        return Optional.of(findBucketedSlice(sessionId, total, Math.max(0, total - skipped), pageSize));
+    }
+
+    @Override
+    public Optional<SessionMessagesSlice> findMessagesBefore(String sessionId, int before, int pageSize) {
+        Document header = findHeader(sessionId);
+        if (header == null) {
+            return Optional.empty();
+        }
+        if (header.containsKey("messages")) {
+            Document end = new Document("$min", Arrays.asList("$totalMessages", before));
+            return findMessagesSlice(sessionId, end, pageSize);
+        }
+        long total = messageCount(header);
+        return Optional.of(findBucketedSlice(sessionId, total, Math.min(total, before), pageSize));
+    }
+
+    /**
+     * The session header with its message count, and an empty messages array if (and only if) the
+     * session has not been migrated to buckets yet.
+     */
+    private Document findHeader(String sessionId) {
+        Query query = Query.query(Criteria.where("_id").is(sessionId));
+        query.fields().include("messageCount").slice("messages", 0);
+        return mongoTemplate.findOne(query, Document.class, mongoTemplate.getCollectionName(ChatSession.class));
+    }
+
+    private static long messageCount(Document header) {
+        Object count = header.get("messageCount");
+        return count instanceof Number number ? number.longValue() : 0;
+    }
+
+    /**
+     * Returns the messages in [max(0, end - pageSize), end) of a bucketed session, reading only the
+     * buckets that window falls in: one or two for a page no larger than a bucket.
+     */
+    private SessionMessagesSlice findBucketedSlice(String sessionId, long total, long end, int pageSize) {
+        long start = Math.max(0, end - pageSize);
+        SessionMessagesSlice slice = new SessionMessagesSlice();
+        slice.setTotalMessages((int) total);
+        slice.setStart((int) start);
+        if (end <= start) {
+            return slice;
+        }
+
+        Query query = Query.query(Criteria.where("sessionId").is(sessionId)
+                .and("bucket").gte(ChatBucket.bucketOf(start)).lte(ChatBucket.bucketOf(end - 1)));
+        query.fields().include("messages");
+        List<ChatBucket.Entry> entries = new ArrayList<>();
+        for (ChatBucket bucket : mongoTemplate.find(query, ChatBucket.class)) {
+            for (ChatBucket.Entry entry : bucket.getMessages()) {
+                if (entry.getSeq() >= start && entry.getSeq() < end) {
+                    entries.add(entry);
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong(ChatBucket.Entry::getSeq));
+        Map<Long, StringBuilder> rest = findRemainingParts(sessionId, entries);
+        slice.setMessages(entries.stream()
+                .map(entry -> new Message(entry.getRole(), rest.containsKey(entry.getSeq())
+                        ? entry.getContent() + rest.get(entry.getSeq())
+                        : entry.getContent()))
+                .collect(Collectors.toCollection(ArrayList::new)));
+        return slice;
+    }
+
+    /**
+     * The content beyond the bucket entry of each oversized message among entries, by seq.
+     */
+    private Map<Long, StringBuilder> findRemainingParts(String sessionId, List<ChatBucket.Entry> entries) {
+        List<Long> seqs = entries.stream()
+                .filter(entry -> entry.getParts() != null && entry.getParts() > 0)
+                .map(ChatBucket.Entry::getSeq)
+                .toList();
+        if (seqs.isEmpty()) {
+            return Map.of();
+        }
+        Query query = Query.query(Criteria.where("sessionId").is(sessionId).and("seq").in(seqs))
+                .with(Sort.by("seq", "part"));
+        Map<Long, StringBuilder> rest = new HashMap<>();
+        for (ChatMessagePart part : mongoTemplate.find(query, ChatMessagePart.class)) {
+            rest.computeIfAbsent(part.getSeq(), seq -> new StringBuilder()).append(part.getContent());
+        }
+        return rest;
+    }
+
+    /**
+     * Returns the messages in [max(0, end - pageSize), end) of a session that still embeds its
+     * messages, along with the array size,
+     * computing both on the server so only that window is transferred.
+     */
+    private Optional<SessionMessagesSlice> findMessagesSlice(String sessionId, Document endExpression, int pageSize) {
+        Document size = new Document("$size", new Document("$ifNull", Arrays.asList("$messages", List.of())));
+        Document count = new Document("$subtract", Arrays.asList("$end", "$start"));
+
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("_id").is(sessionId)),
+                Aggregation.stage(new Document("$project", new Document("messages", 1).append("totalMessages", size))),
+                Aggregation.stage(new Document("$addFields", new Document("end", endExpression))),
+                Aggregation.stage(new Document("$addFields", new Document("start",
+                        new Document("$max", Arrays.asList(0, new Document("$subtract", Arrays.asList("$end", pageSize))))))),
+                // $slice rejects a non-positive count, so an out-of-range window becomes an empty list
+                Aggregation.stage(new Document("$project", new Document("_id", 0)
+                        .append("totalMessages", 1)
+                        .append("start", 1)
+                        .append("messages", new Document("$cond", Arrays.asList(
+                                new Document("$gt", Arrays.asList(count, 0)),
+                                new Document("$slice", Arrays.asList("$messages", "$start", count)),
+                                List.of())))))
+        );
+
+        return Optional.ofNullable(mongoTemplate.aggregate(aggregation,
+                mongoTemplate.getCollectionName(ChatSession.class), SessionMessagesSlice.class).getUniqueMappedResult());
+    }
+
+    @Override
+    public List<ChatSearchHit> searchSessions(String userId, List<String> terms, int limit) {
+        String search = String.join(" ", terms);
+        Pattern pattern = SearchHighlighter.pattern(terms);
+        List<ChatSearchHit> hits = new ArrayList<>(searchBuckets(userId, search, terms, pattern, limit));
+
+        // Sessions not yet migrated still embed their messages; a session caught mid-migration
+        // can match in both collections and keeps its better hit
+        Set<String> found = hits.stream().map(ChatSearchHit::getSessionId).collect(Collectors.toSet());
+        for (ChatSearchHit hit : searchEmbedded(userId, search, terms, pattern, limit)) {
+            if (found.add(hit.getSessionId())) {
+                hits.add(hit);
+            }
+        }
+        hits.sort(Comparator.comparingDouble(ChatSearchHit::getScore).reversed());
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    /**
+     * Matches in bucketed sessions, served by the {userId: 1, messages.content: "text"} index on
+     * chat_buckets. Only the best buckets are grouped, and only the messages that contain a term
+     * leave the server.
+     */
+    private List<ChatSearchHit> searchBuckets(String userId, String search, List<String> terms, Pattern pattern, int limit) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                textMatch(userId, search),
+                Aggregation.stage(new Document("$sort", new Document("score", new Document("$meta", "textScore")))),
+                Aggregation.limit((long) limit * SEARCH_CANDIDATES_PER_HIT),
+                Aggregation.stage(new Document("$project", new Document("sessionId", 1)
+                        .append("score", new Document("$meta", "textScore"))
+                        .append("messages", new Document("$slice", Arrays.asList(matchingMessages(terms), SEARCH_MESSAGES_PER_BUCKET))))),
+                Aggregation.stage(new Document("$group", new Document("_id", "$sessionId")
+                        .append("score", new Document("$max", "$score"))
+                        .append("messages", new Document("$push", "$messages")))),
+                Aggregation.sort(Sort.Direction.DESC, "score"),
+                Aggregation.limit(limit)
+        );
+        List<Document> sessions = mongoTemplate.aggregate(aggregation,
+                mongoTemplate.getCollectionName(ChatBucket.class), Document.class).getMappedResults();
+        if (sessions.isEmpty()) {
+            return List.of();
+        }
+
+        Query headers = Query.query(Criteria.where("_id").in(sessions.stream().map(session -> session.get("_id")).toList()));
+        headers.fields().include("title", "lastUpdated");
+        Map<Object, Document> headersById = new HashMap<>();
+        for (Document header : mongoTemplate.find(headers, Document.class, mongoTemplate.getCollectionName(ChatSession.class))) {
+            headersById.put(header.get("_id"), header);
+        }
+
+        List<ChatSearchHit> hits = new ArrayList<>(sessions.size());
+        for (Document session : sessions) {
+            Document header = headersById.get(session.get("_id"));
+            if (header == null) {
+                continue; // Buckets of a deleted session
+            }
+            hits.add(toHit(session, header.getString("title"), header.getDate("lastUpdated"), pattern));
+        }
+        return hits;
+    }
+
+    /**
+     * Matches in sessions that still embed their messages, served by the
+     * {userId: 1, messages.content: "text"} index on the chat collection. Migrated sessions no
+     * longer have a messages array, so they are not in that index.
+     */
+    private List<ChatSearchHit> searchEmbedded(String userId, String search, List<String> terms, Pattern pattern, int limit) {
+        Document firstMessage = new Document("$ifNull", Arrays.asList("$title", new Document("$ifNull", Arrays.asList(
+                new Document("$arrayElemAt", Arrays.asList("$messages.content", 0)), ""))));
+        Aggregation aggregation = Aggregation.newAggregation(
+                textMatch(userId, search),
+                Aggregation.stage(new Document("$sort", new Document("score", new Document("$meta", "textScore")))),
+                Aggregation.limit(limit),
+                Aggregation.stage(new Document("$project", new Document("lastUpdated", 1)
+                        .append("score", new Document("$meta", "textScore"))
+                        .append("title", new Document("$substrCP", Arrays.asList(firstMessage, 0, TITLE_MAX_LENGTH + 1)))
+                        // One "bucket" holding the session's first matching messages, as snippets() expects
+                        .append("messages", List.of(new Document("$slice", Arrays.asList(matchingMessages(terms), SEARCH_SNIPPETS_PER_HIT))))))
+        );
+        List<Document> sessions = mongoTemplate.aggregate(aggregation,
+                mongoTemplate.getCollectionName(ChatSession.class), Document.class).getMappedResults();
+
+        List<ChatSearchHit> hits = new ArrayList<>(sessions.size());
+        for (Document session : sessions) {
+            hits.add(toHit(session, session.getString("title"), session.getDate("lastUpdated"), pattern));
+        }
+        return hits;
+    }
+
+    private static AggregationOperation textMatch(String userId, String search) {
+        return Aggregation.stage(new Document("$match", new Document("userId", userId)
+                .append("$text", new Document("$search", search))));
+    }
+
+    /**
+     * The messages of the current document that contain one of the terms, case-insensitively.
+     */
+    private static Document matchingMessages(List<String> terms) {
+        return new Document("$filter", new Document("input", "$messages")
+                .append("as", "m")
+                .append("cond", new Document("$regexMatch", new Document("input", "$$m.content")
+                        .append("regex", SearchHighlighter.regex(terms))
+                        .append("options", "i"))));
+    }
+
+    private static ChatSearchHit toHit(Document session, String title, Date lastUpdated, Pattern pattern) {
+        return new ChatSearchHit(
+                session.get("_id").toString(),
+                ChatUtils.buildSessionTitle(title, TITLE_MAX_LENGTH),
+                lastUpdated != null ? lastUpdated.toInstant() : null,
+                ((Number) session.get("score")).doubleValue(),
+                snippets(session, pattern));
+    }
+
+    /**
+     * Highlighted snippets of a search result's matching messages, in bucket rank order.
+     */
+    static List<SearchSnippet> snippets(Document session, Pattern pattern) {
+        List<SearchSnippet> snippets = new ArrayList<>(SEARCH_SNIPPETS_PER_HIT);
+        for (Object bucket : session.getList("messages", Object.class, List.of())) {
+            for (Object message : (List<?>) bucket) {
+                if (snippets.size() == SEARCH_SNIPPETS_PER_HIT) {
+                    return snippets;
+                }
+                Document entry = (Document) message;
+                SearchSnippet snippet = SearchHighlighter.snippet(entry.getString("role"),
+                        entry.getString("content"), pattern, SEARCH_SNIPPET_LENGTH);
+                if (snippet != null) {
+                    snippets.add(snippet);
+                }
+            }
+        }
+        return snippets;
+    }
+}
@@ -5,18 +5,36 @@ import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A session header. Its messages live in {@link ChatBucket}s and messageCount is the sequence
+ * number the next one gets. Sessions written before buckets existed still embed every message in
+ * messages (and have no messageCount) until {@code ChatBucketMigration} converts them.
+ */
 @Document(collection = "chat")
 @Data
 public class ChatSession {
+    // Enough for the history list, which cuts titles at 50 characters
+    private static final int TITLE_CODE_POINTS = 64;
+
     @Id
     private String id;
     private String userId;
-    private List<Message> messages = new ArrayList<>();
+    private List<Message> messages; // Only on sessions that have not been migrated yet
+    private Long messageCount;
+    private String title; // Start of the first message, for the history list
     private Instant lastUpdated;
 
     // Getters and Setters
-}
 
+    public static String titleOf(String firstMessage) {
+        if (firstMessage == null) {
+            return "";
+        }
+        int codePoints = firstMessage.codePointCount(0, firstMessage.length());
+        return codePoints <= TITLE_CODE_POINTS
+                ? firstMessage
+                : firstMessage.substring(0, firstMessage.offsetByCodePoints(0, TITLE_CODE_POINTS));
+    }
+}
@@ -0,0 +1,22 @@
+package com.tooling.toolforge.dto.chat;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A message waiting in the write-behind queue to be appended to its session in MongoDB.
+ * Serialized as one JSON line in the write-behind journal.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PendingChatMessage {
+    private String writeId; // Unique per message; makes retried appends idempotent
+    private String sessionId;
+    private String userId; // Owner recorded if a user message creates the session; null for bot messages
+    private String role;
+    private String content;
+    private boolean partial; // True when the client cancelled before the answer finished
+    private long createdAt;
+}
@@ -0,0 +1,20 @@
+package com.tooling.toolforge.dto.chat;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A window of a session's messages.
+ * {@code start} is the index of the first returned message within the whole session,
+ * {@code totalMessages} is the number of messages in the session.
+ */
+@Data
+@NoArgsConstructor
+public class SessionMessagesSlice {
+    private int totalMessages;
+    private int start;
+    private List<Message> messages = new ArrayList<>();
+}
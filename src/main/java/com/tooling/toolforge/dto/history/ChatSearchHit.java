@@ -0,0 +1,19 @@
+package com.tooling.toolforge.dto.history;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * A session matching a search, best first. score is MongoDB's text score of the session's best
+ * matching bucket of messages.
+ */
+@lombok.Data
+@lombok.AllArgsConstructor
+@lombok.NoArgsConstructor
+public class ChatSearchHit {
+    private String sessionId;
+    private String title;
+    private Instant lastUpdated;
+    private double score;
+    private List<SearchSnippet> snippets;
+}
@@ -15,4 +15,9 @@ public class PaginatedSessionMessagesResponse {
     private int currentPage;
     private int totalPages;
     private long totalMessagesInSession;
+    private Integer nextBefore; // Cursor for the next (older) page, null when there is none
+
+    public PaginatedSessionMessagesResponse(List<Message> messages, int currentPage, int totalPages, long totalMessagesInSession) {
+        this(messages, currentPage, totalPages, totalMessagesInSession, null);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,15 @@
+package com.tooling.toolforge.dto.history;
+
+import java.util.List;
+
+/**
+ * A piece of a matching message. Each highlight is a [start, end) character range in text.
+ */
+@lombok.Data
+@lombok.AllArgsConstructor
+@lombok.NoArgsConstructor
+public class SearchSnippet {
+    private String role;
+    private String text;
+    private List<int[]> highlights;
+}
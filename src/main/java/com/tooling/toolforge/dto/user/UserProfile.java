@@ -0,0 +1,25 @@
+package com.tooling.toolforge.dto.user;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * A signed-in user, keyed by the identity provider's uid. Stored in the {@code mongodb.users}
+ * database. email is kept lower-cased and is unique.
+ */
+@Document(collection = "users")
+@Data
+public class UserProfile {
+    @Id
+    private String uid;
+    private String email;
+    private String displayName;
+    private String photoURL;
+    private Boolean emailVerified;
+    private String providerId;
+    private Instant createdAt;
+    private Instant updatedAt;
+}
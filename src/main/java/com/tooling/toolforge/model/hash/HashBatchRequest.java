@@ -0,0 +1,13 @@
+package com.tooling.toolforge.model.hash;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class HashBatchRequest {
+    private String algorithm = "sha256";
+    private List<String> inputs;
+}
@@ -0,0 +1,18 @@
+package com.tooling.toolforge.model.hash;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class HashBatchResponse {
+    private String algorithm;
+    private List<String> hashes; // Same order as the request inputs
+
+    public HashBatchResponse(String algorithm, List<String> hashes) {
+        this.algorithm = algorithm;
+        this.hashes = hashes;
+    }
+}
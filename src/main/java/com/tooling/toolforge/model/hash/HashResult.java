@@ -0,0 +1,18 @@
+package com.tooling.toolforge.model.hash;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+
+@Getter
+@Setter
+public class HashResult {
+    private long bytes;
+    private Map<String, String> hashes; // Hex digest by algorithm id
+
+    public HashResult(long bytes, Map<String, String> hashes) {
+        this.bytes = bytes;
+        this.hashes = hashes;
+    }
+}
@@ -0,0 +1,20 @@
+package com.tooling.toolforge.model.json;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class JsonDiffResponse {
+    private boolean identical;
+    private List<JsonPatchOperation> operations; // Applied in order, turns left into right
+    private boolean truncated; // True when the diff stopped at the operation limit
+
+    public JsonDiffResponse(boolean identical, List<JsonPatchOperation> operations, boolean truncated) {
+        this.identical = identical;
+        this.operations = operations;
+        this.truncated = truncated;
+    }
+}
@@ -0,0 +1,24 @@
+package com.tooling.toolforge.model.json;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * One RFC 6902 operation; path is a JSON Pointer into the left document.
+ */
+@Getter
+@Setter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class JsonPatchOperation {
+    private String op; // add, remove or replace
+    private String path;
+    private JsonNode value; // Absent for remove
+
+    public JsonPatchOperation(String op, String path, JsonNode value) {
+        this.op = op;
+        this.path = path;
+        this.value = value;
+    }
+}
@@ -0,0 +1,16 @@
+package com.tooling.toolforge.model.json;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class JsonValidationError {
+    private String path; // Instance location, e.g. $[3].name
+    private String message;
+
+    public JsonValidationError(String path, String message) {
+        this.path = path;
+        this.message = message;
+    }
+}
@@ -0,0 +1,20 @@
+package com.tooling.toolforge.model.json;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class JsonValidationResponse {
+    private boolean valid;
+    private List<JsonValidationError> errors;
+    private boolean truncated; // True when validation stopped at the error limit
+
+    public JsonValidationResponse(boolean valid, List<JsonValidationError> errors, boolean truncated) {
+        this.valid = valid;
+        this.errors = errors;
+        this.truncated = truncated;
+    }
+}
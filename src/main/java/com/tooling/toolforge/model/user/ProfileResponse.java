@@ -1,21 +1,29 @@
 package com.tooling.toolforge.model.user;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.tooling.toolforge.dto.user.UserProfile;
 import lombok.Getter;
 import lombok.Setter;
 
 @Getter
 @Setter
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class ProfileResponse {
     private String message;
-    private Long userId; // Optional: return the ID of the created user
+    private String userId; // The user's uid; absent on errors
+    private String email;
+    private String displayName;
+    private String photoURL;
 
-    public ProfileResponse(String message, Long userId) {
+    public ProfileResponse(String message, UserProfile profile) {
         this.message = message;
-        this.userId = userId;
+        this.userId = profile.getUid();
+        this.email = profile.getEmail();
+        this.displayName = profile.getDisplayName();
+        this.photoURL = profile.getPhotoURL();
     }
 
     public ProfileResponse(String message) {
         this.message = message;
-        this.userId = null; // Or handle appropriately
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,304 @@
+package com.tooling.toolforge.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for chat streams, per user and per client IP.
+ * <p>
+ * Each caller has a token bucket for requests per minute and a cap on concurrent streams. Both live
+ * in Redis, so every instance sees the same cluster-wide counts. Each identity's keys share a hash tag
+ * of their own and are checked and consumed by one Lua script, so limiter traffic spreads across a
+ * Redis Cluster; the user is checked before the IP, and a stream the IP turns away gives the user's
+ * slot back. Open streams are leases in a sorted set that expire on their own if an instance dies without
+ * releasing them. Callers that were just rejected are remembered locally until their retry time, so a
+ * client hammering the endpoint is turned away without a Redis round trip. If Redis is unavailable the
+ * same limits are enforced per instance.
+ * <p>
+ * Uses the string template so the script can read its arguments as numbers.
+ */
+@Service
+@Slf4j
+public class ChatAdmissionControl {
+
+    private static final String KEY_PREFIX = "chat:rl:";
+
+    /*
+     * KEYS[1]: bucket, KEYS[2]: stream set, both for one identity.
+     * ARGV: now (ms), stream id, lease (ms), concurrency retry (ms), refill rate (tokens per ms), burst,
+     * max concurrent streams.
+     * Returns 0 when admitted, otherwise the retry-after in ms.
+     */
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT = new DefaultRedisScript<>(
+            "local now = tonumber(ARGV[1]) " +
+            "local leaseMs = tonumber(ARGV[3]) " +
+            "local rate = tonumber(ARGV[5]) " +
+            "local burst = tonumber(ARGV[6]) " +
+            "local state = redis.call('HMGET', KEYS[1], 't', 'ts') " +
+            "local t = tonumber(state[1]) or burst " +
+            "local ts = tonumber(state[2]) or now " +
+            "t = math.min(burst, t + math.max(0, now - ts) * rate) " +
+            "if t < 1 then return math.max(1, math.ceil((1 - t) / rate)) end " +
+            "redis.call('ZREMRANGEBYSCORE', KEYS[2], '-inf', now) " +
+            "if redis.call('ZCARD', KEYS[2]) >= tonumber(ARGV[7]) then return math.max(1, tonumber(ARGV[4])) end " +
+            "redis.call('HSET', KEYS[1], 't', tostring(t - 1), 'ts', now) " +
+            "redis.call('PEXPIRE', KEYS[1], math.ceil(burst / rate) + 1000) " +
+            "redis.call('ZADD', KEYS[2], now + leaseMs, ARGV[2]) " +
+            "redis.call('PEXPIRE', KEYS[2], leaseMs) " +
+            "return 0",
+            Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final Limit userLimit;
+    private final Limit ipLimit;
+    private final Duration streamLease;
+    private final Duration concurrencyRetryAfter;
+    private final boolean trustForwardedFor;
+    private final Cache<String, Long> deniedUntil;
+    private final Cache<String, LocalState> localStates;
+
+    private final Counter admitted;
+    private final Counter rejected;
+
+    public ChatAdmissionControl(StringRedisTemplate redisTemplate,
+                                MeterRegistry meterRegistry,
+                                @Value("${toolforge.chat.rate-limit.user.requests-per-minute:20}") int userRequestsPerMinute,
+                                @Value("${toolforge.chat.rate-limit.user.burst:10}") int userBurst,
+                                @Value("${toolforge.chat.rate-limit.user.max-concurrent-streams:3}") int userMaxConcurrent,
+                                @Value("${toolforge.chat.rate-limit.ip.requests-per-minute:60}") int ipRequestsPerMinute,
+                                @Value("${toolforge.chat.rate-limit.ip.burst:20}") int ipBurst,
+                                @Value("${toolforge.chat.rate-limit.ip.max-concurrent-streams:10}") int ipMaxConcurrent,
+                                @Value("${toolforge.chat.rate-limit.stream-lease:5m}") Duration streamLease,
+                                @Value("${toolforge.chat.rate-limit.concurrency-retry-after:5s}") Duration concurrencyRetryAfter,
+                                @Value("${toolforge.chat.rate-limit.trust-forwarded-for:false}") boolean trustForwardedFor) {
+        this.redisTemplate = redisTemplate;
+        this.userLimit = new Limit(userRequestsPerMinute / 60_000.0, userBurst, userMaxConcurrent);
+        this.ipLimit = new Limit(ipRequestsPerMinute / 60_000.0, ipBurst, ipMaxConcurrent);
+        this.streamLease = streamLease;
+        this.concurrencyRetryAfter = concurrencyRetryAfter;
+        this.trustForwardedFor = trustForwardedFor;
+        this.deniedUntil = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(Duration.ofMinutes(1))
+                .build();
+        this.localStates = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterAccess(streamLease)
+                .build();
+
+        this.admitted = Counter.builder("chat.admission.requests").tag("result", "admitted")
+                .description("Chat streams let through by admission control").register(meterRegistry);
+        this.rejected = Counter.builder("chat.admission.requests").tag("result", "rejected")
+                .description("Chat streams rejected by admission control").register(meterRegistry);
+    }
+
+    /**
+     * Resolves the address to rate limit by. The first X-Forwarded-For entry is only used when
+     * trust-forwarded-for is on, i.e. when the app is only reachable through a proxy that sets it.
+     */
+    public String clientIp(String remoteAddr, String forwardedFor) {
+        if (trustForwardedFor && forwardedFor != null && !forwardedFor.isBlank()) {
+            int comma = forwardedFor.indexOf(',');
+            return (comma < 0 ? forwardedFor : forwardedFor.substring(0, comma)).trim();
+        }
+        return remoteAddr;
+    }
+
+    /**
+     * Checks and consumes the caller's request budget and takes a concurrent-stream slot. Blocking.
+     *
+     * @param userId   The Userid header, may be null.
+     * @param clientIp The caller's address.
+     * @return The decision; an admitted ticket must be handed to {@link #release(Admission)} when the stream ends.
+     */
+    public Admission tryAdmit(String userId, String clientIp) {
+        List<String> identities = new ArrayList<>(2);
+        List<Limit> limits = new ArrayList<>(2);
+        if (userId != null && !userId.isBlank()) {
+            identities.add("user:" + userId.trim());
+            limits.add(userLimit);
+        }
+        identities.add("ip:" + clientIp);
+        limits.add(ipLimit);
+
+        long nowNanos = System.nanoTime();
+        for (String identity : identities) {
+            Long until = deniedUntil.getIfPresent(identity);
+            if (until != null && until - nowNanos > 0) {
+                return reject(TimeUnit.NANOSECONDS.toMillis(until - nowNanos));
+            }
+        }
+
+        String streamId = UUID.randomUUID().toString();
+        try {
+            return admitInRedis(identities, limits, streamId);
+        } catch (DataAccessException e) {
+            log.error("Redis Error: Rate limit check failed, falling back to local limits. Reason: {}", e.getMessage());
+            return admitLocally(identities, limits, streamId);
+        }
+    }
+
+    /**
+     * Gives back the concurrent-stream slot held by an admitted stream. Blocking.
+     */
+    public void release(Admission admission) {
+        if (!admission.allowed()) {
+            return;
+        }
+        if (admission.local()) {
+            for (String identity : admission.identities()) {
+                LocalState state = localStates.getIfPresent(identity);
+                if (state != null) {
+                    state.releaseStream();
+                }
+            }
+            return;
+        }
+        for (String identity : admission.identities()) {
+            try {
+                redisTemplate.opsForZSet().remove(streamsKey(identity), admission.streamId());
+            } catch (DataAccessException e) {
+                // The lease expires on its own
+                log.error("Redis Error: Failed to release stream slot. Reason: {}", e.getMessage());
+            }
+        }
+    }
+
+    private Admission admitInRedis(List<String> identities, List<Limit> limits, String streamId) {
+        String now = Long.toString(System.currentTimeMillis());
+        for (int i = 0; i < identities.size(); i++) {
+            String identity = identities.get(i);
+            Limit limit = limits.get(i);
+            Long retryAfterMillis = redisTemplate.execute(ADMIT_SCRIPT, List.of(bucketKey(identity), streamsKey(identity)),
+                    now, streamId, Long.toString(streamLease.toMillis()), Long.toString(concurrencyRetryAfter.toMillis()),
+                    Double.toString(limit.tokensPerMilli()), Integer.toString(limit.burst()),
+                    Integer.toString(limit.maxConcurrent()));
+            if (retryAfterMillis == null) {
+                throw new IllegalStateException("Unexpected rate limit script result for " + identity);
+            }
+            if (retryAfterMillis > 0) {
+                // Give back the slots taken for the identities before this one; their tokens stay spent
+                release(new Admission(true, 0, streamId, identities.subList(0, i), false));
+                deniedUntil.put(identity, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+                return reject(retryAfterMillis);
+            }
+        }
+        admitted.increment();
+        return new Admission(true, 0, streamId, identities, false);
+    }
+
+    private Admission admitLocally(List<String> identities, List<Limit> limits, String streamId) {
+        List<LocalState> states = new ArrayList<>(identities.size());
+        for (int i = 0; i < identities.size(); i++) {
+            Limit limit = limits.get(i);
+            states.add(localStates.get(identities.get(i), identity -> new LocalState(limit)));
+        }
+        long retryAfterMillis = 0;
+        int acquired = 0;
+        for (LocalState state : states) {
+            retryAfterMillis = state.tryAcquire(concurrencyRetryAfter.toMillis());
+            if (retryAfterMillis > 0) {
+                break;
+            }
+            acquired++;
+        }
+        if (retryAfterMillis > 0) {
+            // Undo the slots taken before the limiting identity; their tokens stay spent
+            states.subList(0, acquired).forEach(LocalState::releaseStream);
+            return reject(retryAfterMillis);
+        }
+        admitted.increment();
+        return new Admission(true, 0, streamId, identities, true);
+    }
+
+    private Admission reject(long retryAfterMillis) {
+        rejected.increment();
+        long retryAfterSeconds = Math.max(1, (retryAfterMillis + 999) / 1000);
+        return new Admission(false, retryAfterSeconds, null, List.of(), false);
+    }
+
+    // The identity is the hash tag, so its bucket and stream set are in one slot
+    static String bucketKey(String identity) {
+        return KEY_PREFIX + "{" + identity + "}:bucket";
+    }
+
+    static String streamsKey(String identity) {
+        return KEY_PREFIX + "{" + identity + "}:streams";
+    }
+
+    /**
+     * Outcome of an admission check.
+     *
+     * @param allowed           True if the stream may start.
+     * @param retryAfterSeconds For a rejection, when the caller should try again (for the Retry-After header).
+     */
+    public record Admission(boolean allowed, long retryAfterSeconds, String streamId, List<String> identities,
+                            boolean local) {
+    }
+
+    private record Limit(double tokensPerMilli, int burst, int maxConcurrent) {
+    }
+
+    /**
+     * In-process bucket and stream count for one identity, used while Redis is unavailable.
+     */
+    private static final class LocalState {
+        private final Limit limit;
+        private final ReentrantLock lock = new ReentrantLock();
+        private double tokens;
+        private long refilledAt = System.currentTimeMillis();
+        private int streams;
+
+        LocalState(Limit limit) {
+            this.limit = limit;
+            this.tokens = limit.burst();
+        }
+
+        /**
+         * @return 0 if a token and a stream slot were taken, otherwise the retry-after in ms.
+         */
+        long tryAcquire(long concurrencyRetryMillis) {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                tokens = Math.min(limit.burst(), tokens + Math.max(0, now - refilledAt) * limit.tokensPerMilli());
+                refilledAt = now;
+                if (tokens < 1) {
+                    return (long) Math.ceil((1 - tokens) / limit.tokensPerMilli());
+                }
+                if (streams >= limit.maxConcurrent()) {
+                    return concurrencyRetryMillis;
+                }
+                tokens -= 1;
+                streams++;
+                return 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void releaseStream() {
+            lock.lock();
+            try {
+                streams = Math.max(0, streams - 1);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.tooling.toolforge.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.tooling.toolforge.dto.chat.ChatBucket;
+import com.tooling.toolforge.dto.chat.ChatMessagePart;
+import com.tooling.toolforge.dto.chat.ChatSession;
+import com.tooling.toolforge.dto.chat.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts sessions that still embed every message into a header plus {@link ChatBucket}s, a batch
+ * at a time, while they keep being served. {@link ChatSessionWriter} and the chat repository handle
+ * both layouts, so nothing has to stop.
+ * <p>
+ * For each session the buckets are written first, idempotently, and then one update drops the
+ * messages array from the header and sets its messageCount, but only if neither has changed since
+ * they were read. A session that got a message in between is picked up again by a later batch.
+ * Buckets written before they carried the session's userId get it copied over afterwards.
+ * One node migrates per interval; a node stops once a run finds nothing left to convert.
+ * <p>
+ * Off by default: turn it on only once every node runs a version that reads buckets. A node that
+ * does not still $pushes onto the header's messages array, which after migration brings the array
+ * back next to messageCount. Such a header's messages are appended after the ones in buckets, so
+ * nothing is lost, but nodes that do not read buckets only show those new messages until then.
+ */
+@Service
+@Slf4j
+public class ChatBucketMigration {
+
+    private static final String LOCK_KEY = "chat:lock:bucket-migration";
+
+    private final MongoTemplate mongoTemplate;
+    private final RedisTemplate<String, String> redisTemplate;
+    private final Scheduler chatIoScheduler;
+    private final boolean enabled;
+    private final Duration interval;
+    private final int batchSize;
+    private final Counter migratedSessions;
+    private Disposable schedule;
+    private volatile boolean finished;
+
+    public ChatBucketMigration(MongoTemplate mongoTemplate,
+                               RedisTemplate<String, String> redisTemplate,
+                               Scheduler chatIoScheduler,
+                               MeterRegistry meterRegistry,
+                               @Value("${toolforge.chat.storage.migration.enabled:false}") boolean enabled,
+                               @Value("${toolforge.chat.storage.migration.interval:1m}") Duration interval,
+                               @Value("${toolforge.chat.storage.migration.batch-size:20}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.redisTemplate = redisTemplate;
+        this.chatIoScheduler = chatIoScheduler;
+        this.enabled = enabled;
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.migratedSessions = Counter.builder("chat.storage.migrated")
+                .description("Chat sessions converted from an embedded messages array to buckets").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled && !interval.isZero() && !interval.isNegative()) {
+            schedule = chatIoScheduler.schedulePeriodically(this::runMigration,
+                    interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (schedule != null) {
+            schedule.dispose();
+        }
+    }
+
+    /**
+     * Migrates up to batch-size sessions, unless another node holds the migration lock.
+     *
+     * @return The number of sessions migrated.
+     */
+    public int migrateBatch() {
+        String lockToken = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, lockToken, interval.dividedBy(2));
+        if (!Boolean.TRUE.equals(locked)) {
+            return 0;
+        }
+
+        Query query = Query.query(Criteria.where("messages").exists(true)).limit(batchSize);
+        query.fields().include("messages", "messageCount", "userId");
+        List<Document> sessions = mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(ChatSession.class));
+        if (sessions.isEmpty()) {
+            if (backfillOwners() == 0) {
+                finished = true;
+                log.info("Every chat session is stored in buckets; stopping the migration on this node");
+            }
+            return 0;
+        }
+        int migrated = 0;
+        for (Document session : sessions) {
+            if (migrate(session)) {
+                migrated++;
+            }
+        }
+        migratedSessions.increment(migrated);
+        log.info("Migrated {} of {} chat sessions to buckets", migrated, sessions.size());
+        return migrated;
+    }
+
+    /**
+     * Moves a header's messages into buckets. A header that already has a messageCount was
+     * migrated before and then written to by a node that does not know buckets; its messages go
+     * after the ones already in buckets.
+     */
+    boolean migrate(Document session) {
+        String sessionId = session.get("_id").toString();
+        List<Document> messages = session.getList("messages", Document.class, List.of());
+        Object storedCount = session.get("messageCount");
+        long first = storedCount instanceof Number count ? count.longValue() : 0;
+        if (storedCount != null) {
+            log.warn("Session {} got {} messages in its header after it was migrated; appending them after message {}",
+                    sessionId, messages.size(), first);
+        }
+
+        Map<Long, List<ChatBucket.Entry>> buckets = new LinkedHashMap<>();
+        List<ChatMessagePart> parts = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            long seq = first + i;
+            Message message = new Message(messages.get(i).getString("role"), messages.get(i).getString("content"));
+            ChatSessionWriter.StoredMessage stored = ChatSessionWriter.store(sessionId, seq, message);
+            buckets.computeIfAbsent(ChatBucket.bucketOf(seq), bucket -> new ArrayList<>())
+                    .add(stored.entry());
+            parts.addAll(stored.parts());
+        }
+        // Everything is in buckets and parts before the header's copy is removed
+        ChatSessionWriter.writeParts(mongoTemplate, parts);
+        if (!buckets.isEmpty()) {
+            BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChatBucket.class);
+            buckets.forEach((bucket, entries) ->
+                    bulkOps.upsert(ChatSessionWriter.bucketQuery(sessionId, bucket),
+                            ChatSessionWriter.bucketUpdate(entries, session.getString("userId"))));
+            bulkOps.execute();
+        }
+
+        Update header = new Update()
+                .unset("messages")
+                .set("messageCount", first + messages.size());
+        if (storedCount == null && !messages.isEmpty()) {
+            header.set("title", ChatSession.titleOf(messages.get(0).getString("content")));
+        }
+        Criteria unchanged = Criteria.where("_id").is(session.get("_id")).and("messages").size(messages.size());
+        unchanged = storedCount == null ? unchanged.and("messageCount").exists(false) : unchanged.and("messageCount").is(storedCount);
+        UpdateResult result = mongoTemplate.updateFirst(Query.query(unchanged), header, ChatSession.class);
+        if (result.getModifiedCount() == 0) {
+            log.info("Session {} changed while being migrated; it will be retried", sessionId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the session's userId onto buckets written before buckets carried it, so search finds
+     * them. A session without a userId gets an explicit null, which keeps it from being picked again.
+     *
+     * @return The number of sessions whose buckets were updated.
+     */
+    private int backfillOwners() {
+        Query query = Query.query(Criteria.where("userId").exists(false)).limit(batchSize);
+        query.fields().include("sessionId");
+        List<String> sessionIds = mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(ChatBucket.class))
+                .stream().map(bucket -> bucket.getString("sessionId")).distinct().toList();
+        for (String sessionId : sessionIds) {
+            Query header = Query.query(Criteria.where("_id").is(sessionId));
+            header.fields().include("userId");
+            Document session = mongoTemplate.findOne(header, Document.class, mongoTemplate.getCollectionName(ChatSession.class));
+            mongoTemplate.updateMulti(
+                    Query.query(Criteria.where("sessionId").is(sessionId).and("userId").exists(false)),
+                    new Update().set("userId", session != null ? session.getString("userId") : null),
+                    ChatBucket.class);
+        }
+        if (!sessionIds.isEmpty()) {
+            log.info("Copied the owner onto the buckets of {} chat sessions", sessionIds.size());
+        }
+        return sessionIds.size();
+    }
+
+    private void runMigration() {
+        if (finished) {
+            return;
+        }
+        try {
+            migrateBatch();
+        } catch (RuntimeException e) {
+            log.error("MongoDB Error: Chat bucket migration failed. Reason: {}", e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.tooling.toolforge.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tooling.toolforge.dto.chat.PendingChatMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind stage for chat messages, both the user's and the bot's, so that a session's
+ * messages reach MongoDB in the order they were sent.
+ * <p>
+ * Messages are appended to a local journal file and put on a bounded queue. A single flusher
+ * thread drains the queue in batches and writes them with one bulk operation. Transient failures,
+ * such as MongoDB being unavailable, are retried with exponential backoff up to max-attempts. After
+ * that, or when a message does not fit on the full queue, its session is parked: later messages for
+ * it are held back, and the flusher keeps retrying the session's journaled messages oldest first,
+ * still backing off, until they are written. Any other failure is treated as a bad message: the
+ * batch is retried one message at a time, and a message that still fails is moved to the
+ * dead-letter file next to the journal. Flushed and dead-lettered messages are marked done in the
+ * journal; anything still pending at startup (for example after a crash) is queued again.
+ */
+@Service
+@Slf4j
+public class ChatPersistenceQueue {
+
+    private static final String JOURNAL_FILE = "chat-write-behind.journal";
+    private static final String DEAD_LETTER_FILE = "chat-write-behind.dead-letter";
+    private static final String PENDING_RECORD = "P\t";
+    private static final String DONE_RECORD = "D\t";
+
+    private final ChatSessionWriter chatSessionWriter;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final Counter deadLetters;
+    private final ReentrantLock journalLock = new ReentrantLock();
+
+    @Value("${toolforge.chat.write-behind.capacity:10000}")
+    private int capacity;
+
+    @Value("${toolforge.chat.write-behind.batch-size:100}")
+    private int batchSize;
+
+    @Value("${toolforge.chat.write-behind.flush-interval:200ms}")
+    private Duration flushInterval;
+
+    @Value("${toolforge.chat.write-behind.offer-timeout:100ms}")
+    private Duration offerTimeout;
+
+    @Value("${toolforge.chat.write-behind.retry-initial-backoff:200ms}")
+    private Duration retryInitialBackoff;
+
+    @Value("${toolforge.chat.write-behind.retry-max-backoff:10s}")
+    private Duration retryMaxBackoff;
+
+    @Value("${toolforge.chat.write-behind.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${toolforge.chat.write-behind.journal-dir:data/journal}")
+    private Path journalDir;
+
+    @Value("${toolforge.chat.write-behind.journal-fsync:false}")
+    private boolean journalFsync;
+
+    @Value("${toolforge.chat.write-behind.journal-compact-bytes:8388608}")
+    private long journalCompactBytes;
+
+    private BlockingQueue<PendingChatMessage> queue;
+    private Path journalPath;
+    private FileChannel journalChannel;
+    private BufferedWriter journalWriter;
+    private Thread flusher;
+    private volatile boolean running;
+    // Journal entries not yet confirmed written, by writeId, in the order they were sent
+    private final Map<String, PendingChatMessage> outstanding = new LinkedHashMap<>();
+    // Sessions whose messages are written from the journal rather than the queue, with the time
+    // they were last parked; only the flusher unparks them
+    private final Map<String, Long> parked = new ConcurrentHashMap<>();
+    // Flusher thread only
+    private long recoveryBackoffMillis;
+    private long nextRecoveryNanos;
+    private long compactedJournalBytes;
+
+    public ChatPersistenceQueue(ChatSessionWriter chatSessionWriter, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.chatSessionWriter = chatSessionWriter;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.deadLetters = Counter.builder("chat.persistence.dead.letters")
+                .description("Chat messages MongoDB rejected, moved to the dead-letter file")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        queue = new ArrayBlockingQueue<>(capacity);
+        Files.createDirectories(journalDir);
+        journalPath = journalDir.resolve(JOURNAL_FILE);
+
+        List<PendingChatMessage> recovered = readJournal();
+        rewriteJournal(recovered);
+        for (PendingChatMessage pending : recovered) {
+            outstanding.put(pending.getWriteId(), pending);
+            if (!queue.offer(pending)) {
+                park(pending.getSessionId());
+            }
+        }
+        if (!recovered.isEmpty()) {
+            log.info("Recovered {} unsaved chat messages from the write-behind journal", recovered.size());
+        }
+
+        Gauge.builder("chat.persistence.queue.size", queue, BlockingQueue::size)
+                .description("Chat messages waiting to be written to MongoDB")
+                .register(meterRegistry);
+        Gauge.builder("chat.persistence.parked.sessions", parked, Map::size)
+                .description("Sessions whose chat messages wait in the journal for MongoDB to accept them")
+                .register(meterRegistry);
+
+        recoveryBackoffMillis = retryInitialBackoff.toMillis();
+        running = true;
+        flusher = new Thread(this::flushLoop, "chat-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues a message for persistence. The message is journaled before this returns, so it
+     * survives a crash even if the queue is full and it cannot be flushed in this run.
+     *
+     * @param sessionId The session to append to.
+     * @param userId    For a user message, the owner recorded if it creates the session; may be null.
+     * @param role      Message role, e.g. "bot".
+     * @param content   Message content.
+     * @param partial   True if the stream was cancelled before the answer completed.
+     */
+    public void enqueue(String sessionId, String userId, String role, String content, boolean partial) {
+        PendingChatMessage pending = new PendingChatMessage(UUID.randomUUID().toString(), sessionId, userId, role, content,
+                partial, System.currentTimeMillis());
+        try {
+            appendToJournal(PENDING_RECORD + objectMapper.writeValueAsString(pending));
+            trackOutstanding(pending);
+        } catch (IOException e) {
+            log.error("Failed to journal chat message for session id: {}. Reason: {}", sessionId, e.getMessage(), e);
+        }
+
+        try {
+            if (!queue.offer(pending, offerTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.error("Write-behind queue is full; message for session id: {} will be written from the journal.", sessionId);
+                park(sessionId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop() {
+        List<PendingChatMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingChatMessage first = queue.poll(flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    batch.removeIf(this::heldBack);
+                    if (!batch.isEmpty()) {
+                        flush(batch, maxAttempts);
+                    }
+                }
+                if (running && !parked.isEmpty() && System.nanoTime() - nextRecoveryNanos >= 0) {
+                    recoverParked();
+                }
+            } catch (InterruptedException e) {
+                if (running) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Whether a dequeued message must not be written now: its session is parked, so it will be
+     * written from the journal behind the session's earlier messages, or recovery already wrote it.
+     */
+    private boolean heldBack(PendingChatMessage pending) {
+        if (parked.containsKey(pending.getSessionId())) {
+            return true;
+        }
+        journalLock.lock();
+        try {
+            return !outstanding.containsKey(pending.getWriteId());
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a batch, splitting it into single messages when MongoDB rejects it for anything but a
+     * transient failure, and dead-lettering single messages it still rejects. After a transient
+     * failure the batch's sessions are parked.
+     */
+    private void flush(List<PendingChatMessage> batch, int attempts) throws InterruptedException {
+        Exception failure = writeWithRetry(batch, attempts);
+        if (failure == null) {
+            markDone(batch);
+            log.debug("Flushed {} chat messages to MongoDB", batch.size());
+        } else if (!running || isTransient(failure)) {
+            log.error("MongoDB Error: Failed to flush {} chat messages; their sessions wait for MongoDB to recover. Reason: {}",
+                    batch.size(), failure.getMessage());
+            batch.forEach(pending -> park(pending.getSessionId()));
+        } else if (batch.size() > 1) {
+            log.warn("MongoDB rejected a batch of {} chat messages; writing them one at a time. Reason: {}",
+                    batch.size(), failure.getMessage());
+            for (PendingChatMessage pending : batch) {
+                flush(List.of(pending), attempts);
+            }
+        } else {
+            deadLetter(batch.get(0), failure);
+        }
+    }
+
+    /**
+     * @return null once the batch is written, otherwise the last failure: one that is not transient,
+     * or a transient one after the given number of attempts.
+     */
+    private Exception writeWithRetry(List<PendingChatMessage> batch, int attempts) throws InterruptedException {
+        long backoffMillis = retryInitialBackoff.toMillis();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                chatSessionWriter.appendMessages(batch);
+                return null;
+            } catch (Exception e) {
+                if (!running || !isTransient(e) || attempt >= attempts) {
+                    return e;
+                }
+                log.error("MongoDB Error: Failed to flush {} chat messages (attempt {}), retrying in {} ms. Reason: {}",
+                        batch.size(), attempt, backoffMillis, e.getMessage());
+                Thread.sleep(backoffMillis);
+                backoffMillis = Math.min(backoffMillis * 2, retryMaxBackoff.toMillis());
+            }
+        }
+    }
+
+    private void park(String sessionId) {
+        parked.put(sessionId, System.nanoTime());
+    }
+
+    /**
+     * Makes one attempt at writing the oldest journaled messages of the parked sessions, in the order
+     * they were sent. A session is unparked once all of its messages are written and it was not parked
+     * again meanwhile; until then attempts are spaced with exponential backoff.
+     */
+    private void recoverParked() throws InterruptedException {
+        Map<String, Long> parkedAt = new HashMap<>(parked);
+        List<PendingChatMessage> batch = new ArrayList<>(batchSize);
+        Set<String> leftOver = new HashSet<>();
+        journalLock.lock();
+        try {
+            for (PendingChatMessage pending : outstanding.values()) {
+                if (!parkedAt.containsKey(pending.getSessionId())) {
+                    continue;
+                }
+                if (batch.size() < batchSize && !leftOver.contains(pending.getSessionId())) {
+                    batch.add(pending);
+                } else {
+                    leftOver.add(pending.getSessionId());
+                }
+            }
+        } finally {
+            journalLock.unlock();
+        }
+
+        if (!batch.isEmpty()) {
+            flush(batch, 1);
+        }
+        boolean written;
+        journalLock.lock();
+        try {
+            written = batch.stream().noneMatch(pending -> outstanding.containsKey(pending.getWriteId()));
+        } finally {
+            journalLock.unlock();
+        }
+        if (!written) {
+            nextRecoveryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(recoveryBackoffMillis);
+            recoveryBackoffMillis = Math.min(recoveryBackoffMillis * 2, retryMaxBackoff.toMillis());
+            return;
+        }
+        parkedAt.forEach((sessionId, at) -> {
+            if (!leftOver.contains(sessionId) && parked.remove(sessionId, at)) {
+                log.info("Caught up on journaled chat messages for session id: {}", sessionId);
+            }
+        });
+        recoveryBackoffMillis = retryInitialBackoff.toMillis();
+        nextRecoveryNanos = System.nanoTime();
+    }
+
+    /**
+     * Whether a write may succeed if tried again unchanged: MongoDB unreachable, a timeout, or
+     * losing a race for a message slot.
+     */
+    static boolean isTransient(Exception e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException;
+    }
+
+    /**
+     * Moves a message MongoDB will not take to the dead-letter file, one JSON line per message,
+     * and marks it done so it is not replayed.
+     */
+    private void deadLetter(PendingChatMessage pending, Exception failure) {
+        log.error("MongoDB Error: Dead-lettering chat message {} for session id: {}. Reason: {}",
+                pending.getWriteId(), pending.getSessionId(), failure.getMessage(), failure);
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("failedAt", System.currentTimeMillis());
+        record.put("reason", String.valueOf(failure.getMessage()));
+        record.put("message", pending);
+        try {
+            Files.writeString(journalDir.resolve(DEAD_LETTER_FILE), objectMapper.writeValueAsString(record) + "\n",
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // Keep it journaled rather than lose it
+            log.error("Failed to write dead-letter record for chat message {}. Reason: {}", pending.getWriteId(), e.getMessage(), e);
+            return;
+        }
+        deadLetters.increment();
+        markDone(List.of(pending));
+    }
+
+    private void markDone(List<PendingChatMessage> batch) {
+        StringBuilder records = new StringBuilder(batch.size() * 40);
+        for (PendingChatMessage pending : batch) {
+            records.append(DONE_RECORD).append(pending.getWriteId()).append('\n');
+        }
+        try {
+            appendToJournal(records.substring(0, records.length() - 1));
+        } catch (IOException e) {
+            // Worst case these messages are re-applied after a restart, which the writeId guard makes a no-op
+            log.error("Failed to journal completion of {} chat messages. Reason: {}", batch.size(), e.getMessage(), e);
+        }
+        journalLock.lock();
+        try {
+            batch.forEach(pending -> outstanding.remove(pending.getWriteId()));
+        } finally {
+            journalLock.unlock();
+        }
+        compactJournalIfLarge();
+    }
+
+    private void trackOutstanding(PendingChatMessage pending) {
+        journalLock.lock();
+        try {
+            outstanding.put(pending.getWriteId(), pending);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private void appendToJournal(String record) throws IOException {
+        journalLock.lock();
+        try {
+            journalWriter.write(record);
+            journalWriter.newLine();
+            journalWriter.flush();
+            if (journalFsync) {
+                journalChannel.force(false);
+            }
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the outstanding messages once it has grown by
+     * journal-compact-bytes since the last compaction, so a large backlog of outstanding messages
+     * is not rewritten after every batch.
+     */
+    private void compactJournalIfLarge() {
+        journalLock.lock();
+        try {
+            if (journalChannel.size() < compactedJournalBytes + journalCompactBytes) {
+                return;
+            }
+            rewriteJournal(new ArrayList<>(outstanding.values()));
+            compactedJournalBytes = journalChannel.size();
+            log.info("Compacted write-behind journal to {} outstanding messages", outstanding.size());
+        } catch (IOException e) {
+            log.error("Failed to compact write-behind journal. Reason: {}", e.getMessage(), e);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private List<PendingChatMessage> readJournal() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return Collections.emptyList();
+        }
+        Map<String, PendingChatMessage> pending = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+            if (line.startsWith(PENDING_RECORD)) {
+                try {
+                    PendingChatMessage message = objectMapper.readValue(line.substring(PENDING_RECORD.length()), PendingChatMessage.class);
+                    pending.put(message.getWriteId(), message);
+                } catch (JsonProcessingException e) {
+                    // A torn final line from a crash mid-write; everything before it is intact
+                    log.warn("Skipping unreadable write-behind journal record. Reason: {}", e.getOriginalMessage());
+                }
+            } else if (line.startsWith(DONE_RECORD)) {
+                pending.remove(line.substring(DONE_RECORD.length()));
+            }
+        }
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Atomically replaces the journal with the given pending messages and reopens it for appending.
+     */
+    private void rewriteJournal(List<PendingChatMessage> pending) throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+        Path tempPath = journalDir.resolve(JOURNAL_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            for (PendingChatMessage message : pending) {
+                writer.write(PENDING_RECORD + objectMapper.writeValueAsString(message));
+                writer.newLine();
+            }
+        }
+        Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journalChannel = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(journalChannel), StandardCharsets.UTF_8));
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (flusher != null) {
+            // Let the flusher drain what is queued; anything left stays in the journal
+            flusher.join(Duration.ofSeconds(10).toMillis());
+            flusher.interrupt();
+        }
+        journalLock.lock();
+        try {
+            if (journalWriter != null) {
+                journalWriter.close();
+            }
+        } catch (IOException e) {
+            log.error("Failed to close write-behind journal. Reason: {}", e.getMessage(), e);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.tooling.toolforge.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.tooling.toolforge.utils.ChatUtils;
+import com.tooling.toolforge.utils.ReplyBuffer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Opt-in cache of complete answers for prompts that are sent verbatim again and again,
+ * such as the example prompts offered on a new chat.
+ * <p>
+ * Entries are keyed by a SHA-256 of the model, its options and the normalized conversation, so
+ * only exact repeats hit. Answers live in Redis with a TTL and a cap on the number of entries,
+ * fronted by a small in-process Caffeine cache. Hits are replayed as a paced stream of frames so
+ * clients see the same SSE contract as a live answer.
+ */
+@Service
+@Slf4j
+public class ChatResponseCache {
+
+    private static final String KEY_PREFIX = "chat:rc:";
+    private static final String INDEX_KEY = "chat:rc:index";
+
+    private final RedisTemplate<String, String> redisTemplate;
+    private final HashService hashService;
+    private final boolean enabled;
+    private final int maxContextMessages;
+    private final int maxAnswerChars;
+    private final long maxEntries;
+    private final Duration ttl;
+    private final int replayFrameChars;
+    private final Duration replayFrameDelay;
+    private final String model;
+    private final String modelFingerprint;
+    private final Cache<String, String> localCache;
+
+    private final Counter localHits;
+    private final Counter redisHits;
+    private final Counter misses;
+
+    public ChatResponseCache(RedisTemplate<String, String> redisTemplate,
+                             HashService hashService,
+                             MeterRegistry meterRegistry,
+                             @Value("${toolforge.chat.response-cache.enabled:false}") boolean enabled,
+                             @Value("${toolforge.chat.response-cache.max-context-messages:1}") int maxContextMessages,
+                             @Value("${toolforge.chat.response-cache.max-answer-chars:32768}") int maxAnswerChars,
+                             @Value("${toolforge.chat.response-cache.max-entries:5000}") long maxEntries,
+                             @Value("${toolforge.chat.response-cache.ttl:6h}") Duration ttl,
+                             @Value("${toolforge.chat.response-cache.local-max-entries:500}") long localMaxEntries,
+                             @Value("${toolforge.chat.response-cache.local-ttl:5m}") Duration localTtl,
+                             @Value("${toolforge.chat.response-cache.replay-frame-chars:64}") int replayFrameChars,
+                             @Value("${toolforge.chat.response-cache.replay-frame-delay:15ms}") Duration replayFrameDelay,
+                             @Value("${spring.ai.openai.chat.options.model:}") String model,
+                             @Value("${spring.ai.openai.chat.options.temperature:}") String temperature) {
+        this.redisTemplate = redisTemplate;
+        this.hashService = hashService;
+        this.enabled = enabled;
+        this.maxContextMessages = maxContextMessages;
+        this.maxAnswerChars = maxAnswerChars;
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.replayFrameChars = replayFrameChars;
+        this.replayFrameDelay = replayFrameDelay;
+        this.model = model;
+        this.modelFingerprint = "model=" + model + ";temperature=" + temperature;
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(localMaxEntries)
+                .expireAfterWrite(localTtl)
+                .build();
+
+        this.localHits = Counter.builder("chat.response.cache.requests").tag("result", "hit").tag("tier", "local")
+                .description("Chat prompts answered from the response cache").register(meterRegistry);
+        this.redisHits = Counter.builder("chat.response.cache.requests").tag("result", "hit").tag("tier", "redis")
+                .description("Chat prompts answered from the response cache").register(meterRegistry);
+        this.misses = Counter.builder("chat.response.cache.requests").tag("result", "miss").tag("tier", "none")
+                .description("Cacheable chat prompts that had to go upstream").register(meterRegistry);
+    }
+
+    /**
+     * Returns the cache key for this prompt, or null if caching is off or the prompt is not
+     * eligible (more than max-context-messages messages).
+     */
+    public String keyFor(List<Message> context) {
+        if (!enabled || context.size() > maxContextMessages) {
+            return null;
+        }
+        StringBuilder normalized = new StringBuilder(modelFingerprint.length() + 256).append(modelFingerprint);
+        for (Message message : context) {
+            normalized.append('\u001E').append(message.getMessageType().getValue()).append('\u001F');
+            appendNormalized(normalized, message.getText());
+        }
+        return KEY_PREFIX + hashService.generateSHA256(normalized.toString());
+    }
+
+    /**
+     * Looks the key up in the local tier, then in Redis. Blocking.
+     *
+     * @return The cached answer, or null on a miss.
+     */
+    public String lookup(String key) {
+        String answer = localCache.getIfPresent(key);
+        if (answer != null) {
+            localHits.increment();
+            return answer;
+        }
+        try {
+            answer = redisTemplate.opsForValue().get(key);
+        } catch (DataAccessException e) {
+            log.error("Redis Error: Failed to read response cache entry. Reason: {}", e.getMessage(), e);
+        }
+        if (answer != null) {
+            redisHits.increment();
+            localCache.put(key, answer);
+            return answer;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores a complete answer and evicts the oldest entries beyond max-entries. Blocking.
+     * Keys are built for the configured model, so an answer from any other model (a hedge or a
+     * fallback) is not stored.
+     *
+     * @param answeringModel The model that produced the answer.
+     */
+    public void store(String key, String answer, String answeringModel) {
+        if (answer == null || answer.isEmpty() || answer.length() > maxAnswerChars) {
+            return;
+        }
+        if (!model.equals(answeringModel)) {
+            log.debug("Not caching an answer from {}; cache keys are for {}", answeringModel, model);
+            return;
+        }
+        localCache.put(key, answer);
+        try {
+            redisTemplate.opsForValue().set(key, answer, ttl);
+            redisTemplate.opsForZSet().add(INDEX_KEY, key, System.currentTimeMillis());
+            Long size = redisTemplate.opsForZSet().size(INDEX_KEY);
+            if (size != null && size > maxEntries) {
+                Set<String> evicted = redisTemplate.opsForZSet().range(INDEX_KEY, 0, size - maxEntries - 1);
+                if (evicted != null && !evicted.isEmpty()) {
+                    redisTemplate.delete(evicted);
+                    redisTemplate.opsForZSet().remove(INDEX_KEY, evicted.toArray());
+                }
+            }
+        } catch (DataAccessException e) {
+            log.error("Redis Error: Failed to store response cache entry. Reason: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replays a cached answer as SSE frames of replay-frame-chars, one every replay-frame-delay,
+     * starting immediately.
+     *
+     * @param answer The cached answer.
+     * @param reply  Receives the raw text of each frame as it is sent, like a live stream's reply.
+     */
+    public Flux<String> replay(String answer, ReplyBuffer reply) {
+        List<String> frames = new ArrayList<>(answer.length() / replayFrameChars + 1);
+        int start = 0;
+        while (start < answer.length()) {
+            int end = Math.min(start + replayFrameChars, answer.length());
+            // Never split a surrogate pair across two frames
+            if (end < answer.length() && Character.isHighSurrogate(answer.charAt(end - 1))) {
+                end++;
+            }
+            frames.add(answer.substring(start, end));
+            start = end;
+        }
+        return Flux.interval(Duration.ZERO, replayFrameDelay)
+                .take(frames.size())
+                .map(index -> {
+                    String frame = frames.get(index.intValue());
+                    reply.append(frame);
+                    return ChatUtils.hasSingleLeadingSpace(frame) ? " " + frame : frame;
+                });
+    }
+
+    private static void appendNormalized(StringBuilder target, String text) {
+        // Trim and collapse runs of whitespace; everything else must match exactly
+        boolean pendingSpace = false;
+        int lengthBefore = target.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+            } else {
+                if (pendingSpace && target.length() > lengthBefore) {
+                    target.append(' ');
+                }
+                pendingSpace = false;
+                target.append(c);
+            }
+        }
+    }
+}
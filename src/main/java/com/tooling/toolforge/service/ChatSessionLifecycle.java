@@ -0,0 +1,412 @@
+package com.tooling.toolforge.service;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.core.*;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the Redis conversation lists from growing without bound. MongoDB stays the source of
+ * truth; a conversation that expires or is trimmed here is reloaded from it by {@code ChatUtils}.
+ * <ul>
+ *     <li>Every append slides the TTL of the list and its summary and records the session in an
+ *     activity index, pipelined with the push into a single round trip. A turn reads its context
+ *     and appends the user message in one script.</li>
+ *     <li>{@link ContextAssembler} trims each list to max-entries as turns age into the summary.</li>
+ *     <li>A periodic sweep compacts sessions idle for compact-after down to the prompt window.</li>
+ *     <li>A second sweep scans the keyspace and publishes key counts and memory usage per key
+ *     prefix as the {@code chat.redis.keyspace.*} gauges. It also gives an expiry to conversation
+ *     keys written before they had one.</li>
+ * </ul>
+ */
+@Service
+@Slf4j
+public class ChatSessionLifecycle {
+
+    static final String ACTIVITY_KEY = "chat:session:activity";
+    private static final String COMPACTION_LOCK_KEY = "chat:lock:session-compaction";
+    private static final String SESSION_PREFIX = "session"; // Conversation lists are keyed by the bare session id
+    private static final String LEGACY_JDK_PREFIX = "legacy-jdk"; // JDK-serialized keys that are not plain strings
+    private static final byte[] JDK_SERIALIZED_STRING_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05, 0x74};
+    private static final Duration STATS_COMMAND_TIMEOUT = Duration.ofSeconds(10);
+    // Each command also fails on its own after toolforge.redis.command-timeout
+    private static final Duration APPEND_COMMAND_TIMEOUT = Duration.ofSeconds(10);
+
+    /*
+     * KEYS: list, summary. ARGV: entries to read, entry to append, TTL (s), "1" to create a missing list.
+     * Returns {0} when the list is missing and may not be created, else {1, size before the append,
+     * last entries, summary fields and values}.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> READ_AND_APPEND_SCRIPT = new DefaultRedisScript<>(
+            "if ARGV[4] ~= '1' and redis.call('EXISTS', KEYS[1]) == 0 then return {0} end " +
+            "local tail = redis.call('LRANGE', KEYS[1], -tonumber(ARGV[1]), -1) " +
+            "local size = redis.call('LLEN', KEYS[1]) " +
+            "local summary = redis.call('HGETALL', KEYS[2]) " +
+            "redis.call('RPUSH', KEYS[1], ARGV[2]) " +
+            "redis.call('EXPIRE', KEYS[1], ARGV[3]) " +
+            "redis.call('EXPIRE', KEYS[2], ARGV[3]) " +
+            "return {1, size, tail, summary}",
+            List.class);
+
+    private final RedisTemplate<String, String> redisTemplate;
+    private final ContextAssembler contextAssembler;
+    private final Scheduler chatIoScheduler;
+    private final Duration ttl;
+    private final Duration compactAfter;
+    private final Duration compactInterval;
+    private final int compactBatchSize;
+    private final Duration statsInterval;
+    private final long statsMaxKeys;
+    private final int statsBatchSize;
+
+    private final MultiGauge keyCountGauge;
+    private final MultiGauge memoryGauge;
+    private final Counter compactedSessions;
+    private final Counter expiryBackfills;
+    private final List<Disposable> sweeps = new ArrayList<>();
+    private volatile Map<String, KeyspaceUsage> lastKeyspaceUsage = Map.of();
+
+    public ChatSessionLifecycle(RedisTemplate<String, String> redisTemplate,
+                                ContextAssembler contextAssembler,
+                                Scheduler chatIoScheduler,
+                                MeterRegistry meterRegistry,
+                                @Value("${toolforge.chat.history-cache.ttl:24h}") Duration ttl,
+                                @Value("${toolforge.chat.history-cache.compact-after:30m}") Duration compactAfter,
+                                @Value("${toolforge.chat.history-cache.compact-interval:5m}") Duration compactInterval,
+                                @Value("${toolforge.chat.history-cache.compact-batch-size:500}") int compactBatchSize,
+                                @Value("${toolforge.chat.history-cache.stats-interval:5m}") Duration statsInterval,
+                                @Value("${toolforge.chat.history-cache.stats-max-keys:100000}") long statsMaxKeys,
+                                @Value("${toolforge.chat.history-cache.stats-batch-size:500}") int statsBatchSize) {
+        this.redisTemplate = redisTemplate;
+        this.contextAssembler = contextAssembler;
+        this.chatIoScheduler = chatIoScheduler;
+        this.ttl = ttl;
+        this.compactAfter = compactAfter;
+        this.compactInterval = compactInterval;
+        this.compactBatchSize = compactBatchSize;
+        this.statsInterval = statsInterval;
+        this.statsMaxKeys = statsMaxKeys;
+        this.statsBatchSize = statsBatchSize;
+
+        this.keyCountGauge = MultiGauge.builder("chat.redis.keyspace.keys")
+                .description("Redis keys by prefix, as of the last keyspace scan")
+                .register(meterRegistry);
+        this.memoryGauge = MultiGauge.builder("chat.redis.keyspace.memory")
+                .description("Redis memory used by keys with each prefix, as of the last keyspace scan")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.compactedSessions = Counter.builder("chat.session.compacted")
+                .description("Idle conversations trimmed down to the prompt window").register(meterRegistry);
+        this.expiryBackfills = Counter.builder("chat.session.expiry.backfilled")
+                .description("Conversation keys found without a TTL and given one").register(meterRegistry);
+    }
+
+    /**
+     * Key count and memory in bytes for one key prefix.
+     */
+    public record KeyspaceUsage(long keys, long bytes) {
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!compactInterval.isZero() && !compactInterval.isNegative()) {
+            sweeps.add(chatIoScheduler.schedulePeriodically(this::runCompaction,
+                    compactInterval.toMillis(), compactInterval.toMillis(), TimeUnit.MILLISECONDS));
+        }
+        if (!statsInterval.isZero() && !statsInterval.isNegative()) {
+            sweeps.add(chatIoScheduler.schedulePeriodically(this::runKeyspaceStats,
+                    statsInterval.toMillis(), statsInterval.toMillis(), TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        sweeps.forEach(Disposable::dispose);
+    }
+
+    /**
+     * Appends entries to a conversation list, slides the TTL of the list and its summary, and marks
+     * the session active, in one round trip. The commands are sent back to back on the shared
+     * connection; a pipeline would take a dedicated connection, and without a pool open a new one
+     * for every turn. Blocking.
+     *
+     * @throws DataAccessException If Redis fails.
+     */
+    public void append(String redisKey, String... entries) {
+        byte[] key = redisKey.getBytes(StandardCharsets.UTF_8);
+        byte[] summaryKey = ContextAssembler.summaryKey(redisKey).getBytes(StandardCharsets.UTF_8);
+        byte[][] values = new byte[entries.length][];
+        for (int i = 0; i < entries.length; i++) {
+            values[i] = entries[i].getBytes(StandardCharsets.UTF_8);
+        }
+        long now = System.currentTimeMillis();
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            @SuppressWarnings("unchecked")
+            RedisClusterAsyncCommands<byte[], byte[]> commands =
+                    (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            RedisFuture<?>[] sent = {
+                    commands.rpush(key, values),
+                    commands.expire(key, ttl.toSeconds()),
+                    commands.expire(summaryKey, ttl.toSeconds()),
+                    commands.zadd(ACTIVITY_KEY.getBytes(StandardCharsets.UTF_8), now, key)
+            };
+            try {
+                LettuceFutures.awaitAll(APPEND_COMMAND_TIMEOUT, sent);
+            } catch (RuntimeException e) {
+                throw new RedisSystemException("Appending to " + redisKey + " failed", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Reads what {@link ContextAssembler} needs for a turn and appends the turn's entry, sliding
+     * both TTLs, in a single round trip. The snapshot is taken before the append. The activity index
+     * is left to the {@link #append} that stores the reply, as it lives in another hash slot.
+     * Blocking.
+     *
+     * @param create Whether to create the list when it does not exist yet.
+     * @return The conversation as it was before the append, or null when the list does not exist and
+     * create is false; nothing is written then.
+     * @throws DataAccessException If Redis fails.
+     */
+    public ContextAssembler.ConversationSnapshot readAndAppend(String redisKey, String entry, boolean create) {
+        List<?> result = redisTemplate.execute(READ_AND_APPEND_SCRIPT,
+                List.of(redisKey, ContextAssembler.summaryKey(redisKey)),
+                Integer.toString(contextAssembler.getMaxMessages()), entry, Long.toString(ttl.toSeconds()), create ? "1" : "0");
+        if (result == null || result.isEmpty() || ((Long) result.get(0)) == 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        List<String> tail = (List<String>) result.get(2);
+        @SuppressWarnings("unchecked")
+        List<String> summaryFields = (List<String>) result.get(3);
+        Map<String, String> summary = new HashMap<>();
+        for (int i = 0; i + 1 < summaryFields.size(); i += 2) {
+            summary.put(summaryFields.get(i), summaryFields.get(i + 1));
+        }
+        return new ContextAssembler.ConversationSnapshot(tail, (Long) result.get(1), summary);
+    }
+
+    /**
+     * Compacts up to compact-batch-size sessions that have been idle for compact-after and drops
+     * index entries for sessions that have expired. Only one node sweeps per compact-interval.
+     *
+     * @return The number of sessions compacted.
+     */
+    public int compactIdleSessions() {
+        String lockToken = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(COMPACTION_LOCK_KEY, lockToken, compactInterval.dividedBy(2));
+        if (!Boolean.TRUE.equals(locked)) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        // Sessions whose TTL ran out without another append are gone from Redis already
+        redisTemplate.opsForZSet().removeRangeByScore(ACTIVITY_KEY, Double.NEGATIVE_INFINITY, now - ttl.toMillis());
+
+        Set<String> idle = redisTemplate.opsForZSet().rangeByScore(ACTIVITY_KEY,
+                Double.NEGATIVE_INFINITY, now - compactAfter.toMillis(), 0, compactBatchSize);
+        if (idle == null || idle.isEmpty()) {
+            return 0;
+        }
+        int compacted = 0;
+        for (String redisKey : idle) {
+            try {
+                if (contextAssembler.compact(redisKey) > 0) {
+                    compacted++;
+                }
+                // The next append puts the session back in the index
+                redisTemplate.opsForZSet().remove(ACTIVITY_KEY, redisKey);
+            } catch (DataAccessException e) {
+                log.error("Redis Error: Failed to compact session {}. Reason: {}", redisKey, e.getMessage(), e);
+            }
+        }
+        compactedSessions.increment(compacted);
+        log.info("Compacted {} of {} idle chat sessions in Redis", compacted, idle.size());
+        return compacted;
+    }
+
+    /**
+     * Scans up to stats-max-keys keys and totals their count and memory usage by prefix: the part of
+     * the key up to its second colon ({@code chat:summary}, {@code chat:rl}, ...), or "session" for
+     * the conversation lists. MEMORY USAGE, TTL and TYPE for each batch of scanned keys are sent
+     * back to back and awaited together. Conversation lists and summaries without a TTL get one.
+     * On a cluster each master is scanned in turn. Blocking.
+     */
+    public Map<String, KeyspaceUsage> collectKeyspaceUsage() {
+        Map<String, long[]> totals = new TreeMap<>();
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            @SuppressWarnings("unchecked")
+            RedisClusterAsyncCommands<byte[], byte[]> commands =
+                    (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            ScanOptions options = ScanOptions.scanOptions().count(statsBatchSize).build();
+            long scanned = 0;
+            if (connection instanceof RedisClusterConnection cluster) {
+                for (RedisClusterNode node : cluster.clusterGetNodes()) {
+                    if (node.isMaster() && scanned < statsMaxKeys) {
+                        scanned = scan(cluster.scan(node, options), commands, scanned, totals);
+                    }
+                }
+            } else {
+                scanned = scan(connection.keyCommands().scan(options), commands, scanned, totals);
+            }
+            if (scanned >= statsMaxKeys) {
+                log.info("Keyspace scan stopped at stats-max-keys={}; per-prefix totals cover only the keys scanned", statsMaxKeys);
+            }
+            return null;
+        });
+
+        Map<String, KeyspaceUsage> usage = new LinkedHashMap<>();
+        totals.forEach((prefix, counts) -> usage.put(prefix, new KeyspaceUsage(counts[0], counts[1])));
+        lastKeyspaceUsage = usage;
+        keyCountGauge.register(usage.entrySet().stream()
+                .map(entry -> MultiGauge.Row.of(Tags.of("prefix", entry.getKey()), entry.getValue().keys()))
+                .toList(), true);
+        memoryGauge.register(usage.entrySet().stream()
+                .map(entry -> MultiGauge.Row.of(Tags.of("prefix", entry.getKey()), entry.getValue().bytes()))
+                .toList(), true);
+        return usage;
+    }
+
+    /**
+     * The result of the last keyspace scan, empty until one has run.
+     */
+    public Map<String, KeyspaceUsage> getLastKeyspaceUsage() {
+        return lastKeyspaceUsage;
+    }
+
+    private long scan(Cursor<byte[]> keys, RedisClusterAsyncCommands<byte[], byte[]> commands, long scanned, Map<String, long[]> totals) {
+        try (Cursor<byte[]> cursor = keys) {
+            List<byte[]> batch = new ArrayList<>(statsBatchSize);
+            while (cursor.hasNext() && scanned < statsMaxKeys) {
+                batch.add(cursor.next());
+                scanned++;
+                if (batch.size() == statsBatchSize) {
+                    measureBatch(commands, batch, totals);
+                    batch.clear();
+                }
+            }
+            measureBatch(commands, batch, totals);
+        }
+        return scanned;
+    }
+
+    private void measureBatch(RedisClusterAsyncCommands<byte[], byte[]> commands, List<byte[]> keys, Map<String, long[]> totals) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<RedisFuture<Long>> memory = new ArrayList<>(keys.size());
+        List<RedisFuture<Long>> ttls = new ArrayList<>(keys.size());
+        List<RedisFuture<String>> types = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            memory.add(commands.memoryUsage(key));
+            ttls.add(commands.ttl(key));
+            types.add(commands.type(key));
+        }
+        List<RedisFuture<?>> all = new ArrayList<>(keys.size() * 3);
+        all.addAll(memory);
+        all.addAll(ttls);
+        all.addAll(types);
+        LettuceFutures.awaitAll(STATS_COMMAND_TIMEOUT, all.toArray(new RedisFuture[0]));
+
+        List<RedisFuture<Boolean>> backfills = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            String prefix = keyPrefix(keys.get(i));
+            long[] counts = totals.computeIfAbsent(prefix, key -> new long[2]);
+            counts[0]++;
+            Long bytes = memory.get(i).toCompletableFuture().getNow(null);
+            counts[1] += bytes != null ? bytes : 0;
+
+            // TTL -1 means the key exists and never expires
+            Long keyTtl = ttls.get(i).toCompletableFuture().getNow(null);
+            String type = types.get(i).toCompletableFuture().getNow(null);
+            boolean conversationKey = (SESSION_PREFIX.equals(prefix) && "list".equals(type))
+                    || ("chat:summary".equals(prefix) && "hash".equals(type));
+            if (conversationKey && keyTtl != null && keyTtl == -1) {
+                backfills.add(commands.expire(keys.get(i), ttl.toSeconds()));
+            }
+        }
+        if (!backfills.isEmpty()) {
+            LettuceFutures.awaitAll(STATS_COMMAND_TIMEOUT, backfills.toArray(new RedisFuture[0]));
+            expiryBackfills.increment(backfills.size());
+            log.info("Set a {} TTL on {} chat keys that had none", ttl, backfills.size());
+        }
+    }
+
+    /**
+     * Keys are plain UTF-8, except those written while redisTemplate still used JDK serialization.
+     * Those are never deserialized: a serialized String is read from its header by hand, anything
+     * else is counted under {@value #LEGACY_JDK_PREFIX}.
+     */
+    static String keyPrefix(byte[] key) {
+        if (key.length < 2 || key[0] != JDK_SERIALIZED_STRING_HEADER[0] || key[1] != JDK_SERIALIZED_STRING_HEADER[1]) {
+            return prefixOf(new String(key, StandardCharsets.UTF_8));
+        }
+        if (key.length < JDK_SERIALIZED_STRING_HEADER.length + 2
+                || !Arrays.equals(key, 0, JDK_SERIALIZED_STRING_HEADER.length,
+                JDK_SERIALIZED_STRING_HEADER, 0, JDK_SERIALIZED_STRING_HEADER.length)) {
+            return LEGACY_JDK_PREFIX;
+        }
+        // TC_STRING is followed by a two-byte length and the modified UTF-8 bytes, exactly what readUTF reads
+        ByteArrayInputStream payload = new ByteArrayInputStream(key, JDK_SERIALIZED_STRING_HEADER.length,
+                key.length - JDK_SERIALIZED_STRING_HEADER.length);
+        try {
+            String name = new DataInputStream(payload).readUTF();
+            return payload.available() == 0 ? prefixOf(name) : LEGACY_JDK_PREFIX;
+        } catch (IOException e) {
+            return LEGACY_JDK_PREFIX;
+        }
+    }
+
+    static String prefixOf(String key) {
+        int first = key.indexOf(':');
+        if (first < 0) {
+            return SESSION_PREFIX;
+        }
+        int second = key.indexOf(':', first + 1);
+        return second < 0 ? key.substring(0, first) : key.substring(0, second);
+    }
+
+    private void runCompaction() {
+        try {
+            compactIdleSessions();
+        } catch (RuntimeException e) {
+            log.error("Redis Error: Idle session compaction failed. Reason: {}", e.getMessage(), e);
+        }
+    }
+
+    private void runKeyspaceStats() {
+        try {
+            collectKeyspaceUsage();
+        } catch (RuntimeException e) {
+            log.error("Redis Error: Keyspace memory scan failed. Reason: {}", e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.tooling.toolforge.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.tooling.toolforge.dto.chat.ChatBucket;
+import com.tooling.toolforge.dto.chat.ChatMessagePart;
+import com.tooling.toolforge.dto.chat.ChatSession;
+import com.tooling.toolforge.dto.chat.Message;
+import com.tooling.toolforge.dto.chat.PendingChatMessage;
+import com.tooling.toolforge.utils.ConversationCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends chat turns to a session's {@link ChatBucket}s. A message first takes the next sequence
+ * number from the session header in one atomic findAndModify, then is added to the bucket that
+ * number falls in. Neither step reads or rewrites earlier messages, so the cost of a write does not
+ * depend on how long the conversation already is, and concurrent writers cannot overwrite each
+ * other's messages. Sessions not migrated to buckets yet get the single $push onto their embedded
+ * messages array they always had.
+ */
+@Service
+@Slf4j
+public class ChatSessionWriter {
+
+    private static final String MESSAGES_FIELD = "messages";
+    private static final String MESSAGE_COUNT_FIELD = "messageCount";
+    private static final String APPLIED_WRITES_FIELD = "appliedWrites";
+    private static final String APPLIED_WRITE_ID = "w";
+    private static final String APPLIED_WRITE_SEQ = "s";
+    private static final int APPLIED_WRITES_KEPT = 16;
+    // A session can be migrated between our attempts at most once, so a third attempt always settles it
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final MongoTemplate mongoTemplate;
+
+    /**
+     * A sequence number taken for a message, with the session's owner for its bucket.
+     */
+    private record Reservation(long seq, String userId) {
+    }
+
+    // reserve() results that are not sequence numbers
+    private static final Reservation NO_SESSION = new Reservation(-1, null);
+    private static final Reservation NO_BUCKET_WRITE = new Reservation(-2, null);
+
+    private record BucketKey(String sessionId, long bucket, String userId) {
+    }
+
+    /**
+     * A message as stored: its bucket entry and, if it is longer than an entry holds, the parts
+     * with the rest of its content.
+     */
+    record StoredMessage(ChatBucket.Entry entry, List<ChatMessagePart> parts) {
+    }
+
+    public ChatSessionWriter(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Appends a batch of queued messages. Sequence numbers are taken one message at a time, in
+     * queue order, so messages for the same session keep their order; the bucket writes then go out
+     * in one unordered bulk write. Each reservation records the message's writeId and number in a
+     * short capped list on the session, so re-running a batch after a failure writes the same
+     * entries to the same buckets again, which $addToSet ignores. A user message creates its session
+     * if it does not exist yet, owned by the message's userId; other messages need an existing session.
+     * The parts of oversized messages are written before the bucket entries that point to them.
+     *
+     * @throws org.springframework.dao.DataAccessException if a write fails; the whole batch may be retried.
+     */
+    public void appendMessages(List<PendingChatMessage> pendingMessages) {
+        if (pendingMessages.isEmpty()) {
+            return;
+        }
+        Map<BucketKey, List<ChatBucket.Entry>> bucketWrites = new LinkedHashMap<>();
+        List<ChatMessagePart> parts = new ArrayList<>();
+        int missing = 0;
+        for (PendingChatMessage pending : pendingMessages) {
+            Message message = new Message(pending.getRole(), pending.getContent());
+            boolean create = ConversationCodec.ROLE_USER.equals(pending.getRole());
+            Reservation reservation = reserve(pending.getSessionId(), create ? pending.getUserId() : null,
+                    pending.getWriteId(), message, create);
+            long seq = reservation.seq();
+            if (seq >= 0) {
+                StoredMessage stored = store(pending.getSessionId(), seq, message);
+                bucketWrites.computeIfAbsent(new BucketKey(pending.getSessionId(), ChatBucket.bucketOf(seq), reservation.userId()),
+                                key -> new ArrayList<>())
+                        .add(stored.entry());
+                parts.addAll(stored.parts());
+            } else if (reservation == NO_SESSION) {
+                missing++;
+            }
+        }
+        writeParts(mongoTemplate, parts);
+        if (!bucketWrites.isEmpty()) {
+            BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChatBucket.class);
+            bucketWrites.forEach((key, entries) ->
+                    bulkOps.upsert(bucketQuery(key.sessionId(), key.bucket()), bucketUpdate(entries, key.userId())));
+            bulkOps.execute();
+        }
+        if (missing > 0) {
+            log.warn("{} of {} queued messages matched no session; their session no longer exists.",
+                    missing, pendingMessages.size());
+        }
+    }
+
+    /**
+     * Takes the next sequence number of a bucketed session for a message. When the session still
+     * embeds its messages, the message is pushed onto that array instead.
+     *
+     * @param writeId Makes the reservation idempotent when not null: a retry gets the number the
+     *                first attempt reserved.
+     * @return The sequence number, NO_BUCKET_WRITE when nothing is left to write (embedded, or
+     * already applied before migration) or NO_SESSION when upsert is false and there is no session.
+     */
+    private Reservation reserve(String sessionId, String userId, String writeId, Message message, boolean upsert) {
+        String collection = mongoTemplate.getCollectionName(ChatSession.class);
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                Document header = mongoTemplate.findAndModify(reserveQuery(sessionId, writeId),
+                        reserveUpdate(userId, writeId, message),
+                        FindAndModifyOptions.options().upsert(upsert).returnNew(true),
+                        Document.class, collection);
+                if (header != null) {
+                    return new Reservation(((Number) header.get(MESSAGE_COUNT_FIELD)).longValue() - 1, header.getString("userId"));
+                }
+            } catch (DuplicateKeyException e) {
+                // The session exists but did not match: not migrated yet, or this write is already reserved
+            }
+
+            Query headerQuery = byId(sessionId);
+            headerQuery.fields().include(APPLIED_WRITES_FIELD, "userId").slice(MESSAGES_FIELD, 0);
+            Document header = mongoTemplate.findOne(headerQuery, Document.class, collection);
+            if (header == null) {
+                if (!upsert) {
+                    return NO_SESSION;
+                }
+                continue;
+            }
+            if (writeId != null) {
+                for (Object applied : header.getList(APPLIED_WRITES_FIELD, Object.class, List.of())) {
+                    if (applied instanceof Document reserved && writeId.equals(reserved.get(APPLIED_WRITE_ID))) {
+                        return new Reservation(((Number) reserved.get(APPLIED_WRITE_SEQ)).longValue(), header.getString("userId"));
+                    }
+                    if (writeId.equals(applied)) {
+                        return NO_BUCKET_WRITE;
+                    }
+                }
+            }
+            if (header.containsKey(MESSAGES_FIELD)) {
+                UpdateResult result = mongoTemplate.updateFirst(embeddedQuery(sessionId, writeId),
+                        embeddedUpdate(writeId, message), ChatSession.class);
+                if (result.getMatchedCount() > 0) {
+                    return NO_BUCKET_WRITE;
+                }
+            }
+            // Migrated or written concurrently since the last attempt
+        }
+        throw new OptimisticLockingFailureException("Could not reserve a message slot in session " + sessionId
+                + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    private static Query reserveQuery(String sessionId, String writeId) {
+        Criteria criteria = Criteria.where("_id").is(sessionId).and(MESSAGES_FIELD).exists(false);
+        if (writeId != null) {
+            // Entries are plain writeIds on sessions written before buckets, {w, s} after
+            criteria = criteria.and(APPLIED_WRITES_FIELD).ne(writeId)
+                    .and(APPLIED_WRITES_FIELD + "." + APPLIED_WRITE_ID).ne(writeId);
+        }
+        Query query = Query.query(criteria);
+        query.fields().include(MESSAGE_COUNT_FIELD, "userId");
+        return query;
+    }
+
+    /**
+     * Increments messageCount and, in the same update, records the number taken against the writeId.
+     * A pipeline update so both can use the count from before the increment.
+     */
+    private static AggregationUpdate reserveUpdate(String userId, String writeId, Message message) {
+        Document count = new Document("$ifNull", List.of("$" + MESSAGE_COUNT_FIELD, 0L));
+        Document set = new Document(MESSAGE_COUNT_FIELD, new Document("$add", List.of(count, 1L)))
+                .append("lastUpdated", Date.from(Instant.now()))
+                .append("title", ifNull("$title", ChatSession.titleOf(message.getContent())));
+        if (userId != null) {
+            set.append("userId", ifNull("$userId", userId));
+        }
+        if (writeId != null) {
+            Document reserved = new Document(APPLIED_WRITE_ID, literal(writeId)).append(APPLIED_WRITE_SEQ, count);
+            set.append(APPLIED_WRITES_FIELD, new Document("$slice", List.of(
+                    new Document("$concatArrays", List.of(
+                            new Document("$ifNull", List.of("$" + APPLIED_WRITES_FIELD, List.of())),
+                            List.of(reserved))),
+                    -APPLIED_WRITES_KEPT)));
+        }
+        return AggregationUpdate.from(List.of(Aggregation.stage(new Document("$set", set))));
+    }
+
+    private static Query embeddedQuery(String sessionId, String writeId) {
+        Criteria criteria = Criteria.where("_id").is(sessionId).and(MESSAGES_FIELD).exists(true);
+        if (writeId != null) {
+            criteria = criteria.and(APPLIED_WRITES_FIELD).ne(writeId);
+        }
+        return Query.query(criteria);
+    }
+
+    private static Update embeddedUpdate(String writeId, Message message) {
+        Update update = new Update()
+                .push(MESSAGES_FIELD, message)
+                .set("lastUpdated", Instant.now());
+        if (writeId != null) {
+            update.push(APPLIED_WRITES_FIELD).slice(-APPLIED_WRITES_KEPT).each(writeId);
+        }
+        return update;
+    }
+
+    static Query bucketQuery(String sessionId, long bucket) {
+        return Query.query(Criteria.where("sessionId").is(sessionId).and("bucket").is(bucket));
+    }
+
+    /**
+     * Adds entries to a bucket, creating it if needed. $addToSet makes writing the same entry twice
+     * harmless. The owner is copied onto the bucket for per-user search.
+     */
+    static Update bucketUpdate(List<ChatBucket.Entry> entries, String userId) {
+        Update update = new Update().addToSet(MESSAGES_FIELD).each(entries.toArray());
+        if (userId != null) {
+            update.set("userId", userId);
+        }
+        return update;
+    }
+
+    /**
+     * Splits a message's content into its bucket entry, which keeps the first
+     * {@link ChatBucket#MAX_CONTENT_CHARS} chars, and parts for the rest. Nothing is cut off.
+     */
+    static StoredMessage store(String sessionId, long seq, Message message) {
+        List<String> chunks = chunks(message.getContent());
+        if (chunks.size() == 1) {
+            return new StoredMessage(new ChatBucket.Entry(seq, message.getRole(), chunks.get(0)), List.of());
+        }
+        List<ChatMessagePart> parts = new ArrayList<>(chunks.size() - 1);
+        for (int part = 1; part < chunks.size(); part++) {
+            parts.add(new ChatMessagePart(ChatMessagePart.idOf(sessionId, seq, part), sessionId, seq, part, chunks.get(part)));
+        }
+        log.info("Storing message {} of session {} ({} chars) in its entry and {} more parts", seq, sessionId,
+                message.getContent().length(), parts.size());
+        return new StoredMessage(new ChatBucket.Entry(seq, message.getRole(), chunks.get(0), parts.size()), parts);
+    }
+
+    /**
+     * Content cut into pieces of at most MAX_CONTENT_CHARS chars, never inside a surrogate pair.
+     */
+    static List<String> chunks(String content) {
+        if (content == null || content.length() <= ChatBucket.MAX_CONTENT_CHARS) {
+            return Arrays.asList(content);
+        }
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < content.length()) {
+            int end = Math.min(content.length(), start + ChatBucket.MAX_CONTENT_CHARS);
+            if (end < content.length() && Character.isHighSurrogate(content.charAt(end - 1))) {
+                end--;
+            }
+            chunks.add(content.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Writes message parts; writing a part again replaces it with the same content.
+     */
+    static void writeParts(MongoTemplate mongoTemplate, List<ChatMessagePart> parts) {
+        if (parts.isEmpty()) {
+            return;
+        }
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChatMessagePart.class);
+        for (ChatMessagePart part : parts) {
+            bulkOps.upsert(byId(part.getId()), new Update()
+                    .set("sessionId", part.getSessionId())
+                    .set("seq", part.getSeq())
+                    .set("part", part.getPart())
+                    .set("content", part.getContent()));
+        }
+        bulkOps.execute();
+    }
+
+    private static Query byId(String id) {
+        return Query.query(Criteria.where("_id").is(id));
+    }
+
+    // Values from users are wrapped in $literal so that a leading '$' is not read as a field path
+    private static Document ifNull(String field, String value) {
+        return new Document("$ifNull", List.of(field, literal(value)));
+    }
+
+    private static Document literal(String value) {
+        return new Document("$literal", value);
+    }
+}
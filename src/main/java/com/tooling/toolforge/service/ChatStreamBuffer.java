@@ -0,0 +1,434 @@
+package com.tooling.toolforge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes chat answers survive a dropped connection.
+ * <p>
+ * Each turn's frames are generated independently of the HTTP response: the generation keeps
+ * running while nobody is listening, for up to {@code grace} after the last client left, before it
+ * is cancelled. Every frame is sent as an SSE event with an id ({@code <turn>:<sequence>}) and
+ * appended, asynchronously and in order, to a Redis Stream per session turn that expires
+ * {@code retention} after its last write. Frames that arrive while a write is in flight go out
+ * together in the next one, so a turn costs one round trip per batch rather than per frame. A client that reconnects with {@code Last-Event-ID} gets
+ * the frames it missed and then follows the live answer: from memory on the node generating it,
+ * or by polling the Redis Stream on any other node. While such a remote follower is attached it
+ * keeps a marker key alive, which stops the generating node from cancelling the turn.
+ * <p>
+ * All keys of a session share the session id as hash tag.
+ */
+@Service
+@Slf4j
+public class ChatStreamBuffer {
+
+    private static final String KEY_PREFIX = "chat:stream:";
+    private static final String DATA_FIELD = "d";
+    private static final String END_FIELD = "end";
+    private static final String END_COMPLETE = "complete";
+    private static final String END_ERROR = "error";
+    private static final String END_CANCELLED = "cancelled";
+    // Appends a batch of entries (ARGV[3..]: id, field, value) and refreshes the expiry of the stream
+    // and of the session's pointer to it
+    private static final RedisScript<Long> APPEND_SCRIPT = new DefaultRedisScript<>(
+            "for i = 3, #ARGV, 3 do redis.call('XADD', KEYS[1], ARGV[i], ARGV[i + 1], ARGV[i + 2]) end " +
+            "redis.call('PEXPIRE', KEYS[1], ARGV[1]) " +
+            "redis.call('SET', KEYS[2], ARGV[2], 'PX', ARGV[1]) " +
+            "return 1",
+            Long.class);
+    private static final Duration LOOKUP_TIMEOUT = Duration.ofSeconds(2);
+
+    private final ReactiveStringRedisTemplate reactiveRedisTemplate;
+    private final RedisTemplate<String, String> redisTemplate;
+    private final boolean enabled;
+    private final Duration retention;
+    private final Duration grace;
+    private final Duration pollInterval;
+    private final int pollBatchSize;
+    private final Duration staleAfter;
+    private final Map<String, LiveTurn> liveTurns = new ConcurrentHashMap<>();
+
+    private final Counter resumedLocal;
+    private final Counter resumedRemote;
+    private final Counter abandoned;
+
+    public ChatStreamBuffer(ReactiveStringRedisTemplate reactiveRedisTemplate,
+                            RedisTemplate<String, String> redisTemplate,
+                            MeterRegistry meterRegistry,
+                            @Value("${toolforge.chat.stream.resume.enabled:true}") boolean enabled,
+                            @Value("${toolforge.chat.stream.resume.retention:5m}") Duration retention,
+                            @Value("${toolforge.chat.stream.resume.grace:60s}") Duration grace,
+                            @Value("${toolforge.chat.stream.resume.poll-interval:100ms}") Duration pollInterval,
+                            @Value("${toolforge.chat.stream.resume.poll-batch-size:100}") int pollBatchSize,
+                            @Value("${toolforge.chat.stream.resume.stale-after:2m}") Duration staleAfter) {
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+        this.redisTemplate = redisTemplate;
+        this.enabled = enabled;
+        this.retention = retention;
+        this.grace = grace;
+        this.pollInterval = pollInterval;
+        this.pollBatchSize = pollBatchSize;
+        this.staleAfter = staleAfter;
+
+        this.resumedLocal = Counter.builder("chat.stream.resumed").tag("source", "local")
+                .description("Reconnects served from the node generating the answer").register(meterRegistry);
+        this.resumedRemote = Counter.builder("chat.stream.resumed").tag("source", "redis")
+                .description("Reconnects served from the Redis stream buffer on another node").register(meterRegistry);
+        this.abandoned = Counter.builder("chat.stream.abandoned")
+                .description("Generations cancelled because no client came back within the grace period").register(meterRegistry);
+    }
+
+    /**
+     * Where a reconnecting client picks up: the session turn and the last sequence it received.
+     */
+    public record ResumePoint(String sessionId, String turnId, long after) {
+    }
+
+    /**
+     * Starts generating a turn's answer and returns the caller's view of it. Cancelling the returned
+     * flux does not cancel frames until the grace period has passed without any client attached;
+     * frames' own completion, error and cancel callbacks therefore describe the generation.
+     * When resume is disabled this is just frames as events, without ids.
+     *
+     * @param sessionId The session the turn belongs to.
+     * @param frames    The SSE frames of the answer; subscribed to exactly once.
+     */
+    public Flux<ServerSentEvent<String>> publish(String sessionId, Flux<String> frames) {
+        if (!enabled) {
+            return frames.map(frame -> ServerSentEvent.builder(frame).build());
+        }
+        LiveTurn turn = new LiveTurn(sessionId, newTurnId());
+        liveTurns.put(turn.streamKey, turn);
+        turn.start(frames);
+        return turn.follow(0);
+    }
+
+    /**
+     * Finds the turn to resume for a reconnecting client. Blocking.
+     *
+     * @param lastEventId The last event id the client received, or null to replay the session's
+     *                    latest turn from the start.
+     * @return The resume point, or null when there is nothing to resume (disabled, unknown or expired).
+     * @throws IllegalArgumentException If lastEventId is not an id this service issued.
+     * @throws DataAccessException      If Redis fails.
+     */
+    public ResumePoint findResumePoint(String sessionId, String lastEventId) {
+        if (!enabled) {
+            return null;
+        }
+        String turnId;
+        long after = 0;
+        if (lastEventId != null && !lastEventId.isBlank()) {
+            int separator = lastEventId.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Malformed Last-Event-ID: " + lastEventId);
+            }
+            turnId = lastEventId.substring(0, separator);
+            try {
+                after = Long.parseLong(lastEventId.substring(separator + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed Last-Event-ID: " + lastEventId, e);
+            }
+        } else {
+            turnId = redisTemplate.opsForValue().get(turnPointerKey(sessionId));
+            if (turnId == null) {
+                return null;
+            }
+        }
+        String streamKey = streamKey(sessionId, turnId);
+        if (liveTurns.containsKey(streamKey) || Boolean.TRUE.equals(redisTemplate.hasKey(streamKey))) {
+            return new ResumePoint(sessionId, turnId, after);
+        }
+        return null;
+    }
+
+    /**
+     * The events after the resume point, followed by the rest of the answer as it is generated.
+     */
+    public Flux<ServerSentEvent<String>> resume(ResumePoint point) {
+        LiveTurn turn = liveTurns.get(streamKey(point.sessionId(), point.turnId()));
+        if (turn != null) {
+            resumedLocal.increment();
+            return turn.follow(point.after());
+        }
+        resumedRemote.increment();
+        return poll(point);
+    }
+
+    static String eventId(String turnId, long sequence) {
+        return turnId + ":" + sequence;
+    }
+
+    static long sequenceOf(String eventId) {
+        return Long.parseLong(eventId.substring(eventId.lastIndexOf(':') + 1));
+    }
+
+    private static String newTurnId() {
+        return UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+    }
+
+    static String streamKey(String sessionId, String turnId) {
+        return KEY_PREFIX + "{" + sessionId + "}:" + turnId;
+    }
+
+    private static String turnPointerKey(String sessionId) {
+        return KEY_PREFIX + "{" + sessionId + "}:turn";
+    }
+
+    private static String attachedKey(String sessionId, String turnId) {
+        return streamKey(sessionId, turnId) + ":attached";
+    }
+
+    // Follows a turn generated on another node through its Redis stream
+    private Flux<ServerSentEvent<String>> poll(ResumePoint point) {
+        String streamKey = streamKey(point.sessionId(), point.turnId());
+        String attachedKey = attachedKey(point.sessionId(), point.turnId());
+        AtomicLong position = new AtomicLong(point.after());
+        AtomicLong lastAttached = new AtomicLong();
+
+        return Mono.defer(() -> {
+                    Mono<Boolean> attach = Mono.empty();
+                    long now = System.nanoTime();
+                    if (lastAttached.get() == 0 || now - lastAttached.get() > grace.toNanos() / 2) {
+                        lastAttached.set(now);
+                        attach = reactiveRedisTemplate.opsForValue().set(attachedKey, "1", grace);
+                    }
+                    Range<String> unread = Range.rightUnbounded(Range.Bound.exclusive(RecordId.of(0, position.get()).getValue()));
+                    return attach.then(reactiveRedisTemplate.<String, String>opsForStream()
+                            .range(streamKey, unread, Limit.limit().count(pollBatchSize))
+                            .collectList());
+                })
+                .flatMapMany(batch -> batch.isEmpty()
+                        ? Mono.delay(pollInterval).thenMany(Flux.<MapRecord<String, String, String>>empty())
+                        : Flux.fromIterable(batch))
+                .doOnNext(record -> position.set(record.getId().getSequence()))
+                .repeat()
+                .takeUntil(record -> record.getValue().containsKey(END_FIELD))
+                .filter(record -> record.getValue().containsKey(DATA_FIELD))
+                .map(record -> ServerSentEvent.builder(record.getValue().get(DATA_FIELD))
+                        .id(eventId(point.turnId(), record.getId().getSequence()))
+                        .build())
+                // Nothing new for this long: the generating node went away without finishing the stream
+                .timeout(staleAfter)
+                .onErrorResume(TimeoutException.class, e -> {
+                    log.warn("Resumed chat stream {} went stale after {}; ending it", streamKey, staleAfter);
+                    return Flux.empty();
+                });
+    }
+
+    /**
+     * One turn being generated on this node. Frames, completion and cancellation are serialized by
+     * the lock, so the sequence numbers, the local replay and the Redis writes stay in the same order.
+     * At most one write is in flight; the turn leaves liveTurns once its end marker is written.
+     */
+    private final class LiveTurn {
+        private final String sessionId;
+        private final String turnId;
+        private final String streamKey;
+        private final Sinks.Many<ServerSentEvent<String>> events = Sinks.many().replay().all();
+        private final List<String> pending = new ArrayList<>();
+        private final AtomicInteger subscribers = new AtomicInteger();
+        private final ReentrantLock lock = new ReentrantLock();
+        private Disposable generation;
+        private long sequence;
+        private boolean finished;
+        private boolean writing;
+
+        LiveTurn(String sessionId, String turnId) {
+            this.sessionId = sessionId;
+            this.turnId = turnId;
+            this.streamKey = streamKey(sessionId, turnId);
+        }
+
+        void start(Flux<String> frames) {
+            Disposable subscription = frames.subscribe(this::onFrame, this::onError, this::onComplete);
+            lock.lock();
+            try {
+                generation = subscription;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Flux<ServerSentEvent<String>> follow(long after) {
+            return events.asFlux()
+                    .filter(event -> sequenceOf(event.id()) > after)
+                    .doOnSubscribe(subscription -> subscribers.incrementAndGet())
+                    .doFinally(signal -> {
+                        if (subscribers.decrementAndGet() == 0 && signal == SignalType.CANCEL) {
+                            scheduleGraceCheck();
+                        }
+                    });
+        }
+
+        private void onFrame(String frame) {
+            boolean startWrite;
+            lock.lock();
+            try {
+                if (finished) {
+                    return;
+                }
+                long id = ++sequence;
+                events.tryEmitNext(ServerSentEvent.builder(frame).id(eventId(turnId, id)).build());
+                startWrite = enqueue(id, DATA_FIELD, frame);
+            } finally {
+                lock.unlock();
+            }
+            if (startWrite) {
+                writePending();
+            }
+        }
+
+        private void onError(Throwable error) {
+            if (finish(END_ERROR)) {
+                events.tryEmitError(error);
+            }
+        }
+
+        private void onComplete() {
+            if (finish(END_COMPLETE)) {
+                events.tryEmitComplete();
+            }
+        }
+
+        private void cancel() {
+            Disposable subscription;
+            lock.lock();
+            try {
+                subscription = generation;
+            } finally {
+                lock.unlock();
+            }
+            if (finish(END_CANCELLED)) {
+                abandoned.increment();
+                log.info("No client came back for chat stream {} within {}; cancelling it", streamKey, grace);
+                if (subscription != null) {
+                    subscription.dispose();
+                }
+                events.tryEmitComplete();
+            }
+        }
+
+        private boolean finish(String outcome) {
+            boolean startWrite;
+            lock.lock();
+            try {
+                if (finished) {
+                    return false;
+                }
+                finished = true;
+                startWrite = enqueue(++sequence, END_FIELD, outcome);
+            } finally {
+                lock.unlock();
+            }
+            if (startWrite) {
+                writePending();
+            }
+            return true;
+        }
+
+        // Must hold the lock. True when no write is in flight, so the caller has to start one
+        private boolean enqueue(long id, String field, String value) {
+            pending.add(RecordId.of(0, id).getValue());
+            pending.add(field);
+            pending.add(value);
+            if (writing) {
+                return false;
+            }
+            writing = true;
+            return true;
+        }
+
+        // Writes everything queued so far, then whatever was queued meanwhile, until the queue is empty
+        private void writePending() {
+            List<String> args;
+            lock.lock();
+            try {
+                if (pending.isEmpty()) {
+                    writing = false;
+                    if (finished) {
+                        liveTurns.remove(streamKey, this);
+                    }
+                    return;
+                }
+                args = new ArrayList<>(pending.size() + 2);
+                args.add(Long.toString(retention.toMillis()));
+                args.add(turnId);
+                args.addAll(pending);
+                pending.clear();
+            } finally {
+                lock.unlock();
+            }
+            reactiveRedisTemplate.execute(APPEND_SCRIPT, List.of(streamKey, turnPointerKey(sessionId)), args)
+                    .then()
+                    .onErrorResume(e -> {
+                        log.warn("Redis Error: Failed to buffer {} entries of chat stream {} for resume. Reason: {}",
+                                (args.size() - 2) / 3, streamKey, e.getMessage());
+                        return Mono.empty();
+                    })
+                    .doFinally(signal -> writePending())
+                    .subscribe();
+        }
+
+        private boolean isFinished() {
+            lock.lock();
+            try {
+                return finished;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void scheduleGraceCheck() {
+            Schedulers.parallel().schedule(this::graceExpired, grace.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        private void graceExpired() {
+            if (isFinished() || subscribers.get() > 0) {
+                return;
+            }
+            // A client may have reconnected to another node and be following through Redis
+            reactiveRedisTemplate.hasKey(attachedKey(sessionId, turnId))
+                    .timeout(LOOKUP_TIMEOUT)
+                    .onErrorReturn(false)
+                    .subscribe(attached -> {
+                        if (Boolean.TRUE.equals(attached)) {
+                            scheduleGraceCheck();
+                        } else if (subscribers.get() == 0) {
+                            cancel();
+                        }
+                    });
+        }
+    }
+}
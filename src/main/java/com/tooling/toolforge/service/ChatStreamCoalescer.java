@@ -0,0 +1,163 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.utils.ChatUtils;
+import com.tooling.toolforge.utils.ReplyBuffer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Groups the many tiny chunks of an upstream completion into larger SSE frames.
+ * <p>
+ * A frame is sent once it holds {@code frame-chars} characters or its first chunk is
+ * {@code frame-delay} old, whichever comes first, so the client sees far fewer events without a
+ * noticeable delay. The first chunk is always sent on its own. Chunks are appended straight into a reusable frame buffer and into the
+ * {@link ReplyBuffer}, so no intermediate String is created per chunk.
+ */
+@Service
+@Slf4j
+public class ChatStreamCoalescer {
+
+    private final boolean enabled;
+    private final int frameChars;
+    private final Duration frameDelay;
+    private final Scheduler timers;
+
+    @Autowired
+    public ChatStreamCoalescer(@Value("${toolforge.chat.stream.coalesce.enabled:true}") boolean enabled,
+                               @Value("${toolforge.chat.stream.coalesce.frame-chars:64}") int frameChars,
+                               @Value("${toolforge.chat.stream.coalesce.frame-delay:20ms}") Duration frameDelay) {
+        this(enabled, frameChars, frameDelay, Schedulers.parallel());
+    }
+
+    // Tests pass a scheduler they can inspect
+    ChatStreamCoalescer(boolean enabled, int frameChars, Duration frameDelay, Scheduler timers) {
+        this.enabled = enabled;
+        this.frameChars = frameChars;
+        this.frameDelay = frameDelay;
+        this.timers = timers;
+    }
+
+    /**
+     * Coalesces raw upstream chunks into SSE frames.
+     *
+     * @param rawChunks The unformatted chunks from the model.
+     * @param reply     Receives every raw chunk, so it holds the full reply once the stream ends.
+     * @return The frames to send to the client, formatted like {@link ChatUtils#formatStringFlux}.
+     */
+    public Flux<String> coalesce(Flux<String> rawChunks, ReplyBuffer reply) {
+        if (!enabled) {
+            return ChatUtils.formatStringFlux(null, rawChunks.doOnNext(reply::append));
+        }
+
+        return Flux.create(sink -> {
+            Frame frame = new Frame(frameChars * 2, frameChars, frameDelay, timers, sink);
+            Disposable upstream = rawChunks.subscribe(
+                    chunk -> {
+                        reply.append(chunk);
+                        frame.append(chunk);
+                    },
+                    error -> {
+                        frame.flush();
+                        sink.error(error);
+                    },
+                    () -> {
+                        frame.flush();
+                        sink.complete();
+                    });
+            sink.onDispose(() -> {
+                frame.cancelTimer();
+                upstream.dispose();
+            });
+        }, FluxSink.OverflowStrategy.BUFFER);
+    }
+
+    /**
+     * The frame being filled. Frames are emitted while holding the lock so that the timer and the
+     * upstream thread can never send two frames out of order.
+     */
+    private static final class Frame {
+        private final StringBuilder pending;
+        private final int frameChars;
+        private final Duration maxAge;
+        private final Scheduler timers;
+        private final FluxSink<String> sink;
+        private final ReentrantLock lock = new ReentrantLock();
+        private Disposable timer;
+        private boolean firstFrameSent;
+
+        Frame(int initialCapacity, int frameChars, Duration maxAge, Scheduler timers, FluxSink<String> sink) {
+            this.pending = new StringBuilder(initialCapacity);
+            this.frameChars = frameChars;
+            this.maxAge = maxAge;
+            this.timers = timers;
+            this.sink = sink;
+        }
+
+        void append(String chunk) {
+            if (chunk == null || chunk.isEmpty()) {
+                return;
+            }
+            lock.lock();
+            try {
+                pending.append(chunk);
+                // The first chunk goes out at once so coalescing never adds to time-to-first-token
+                if (pending.length() >= frameChars || !firstFrameSent) {
+                    firstFrameSent = true;
+                    emit();
+                } else if (timer == null) {
+                    // One timer per frame rather than a periodic tick per stream
+                    timer = timers.schedule(this::flush, maxAge.toNanos(), TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void flush() {
+            lock.lock();
+            try {
+                if (!pending.isEmpty()) {
+                    emit();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void cancelTimer() {
+            lock.lock();
+            try {
+                if (timer != null) {
+                    timer.dispose();
+                    timer = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void emit() {
+            if (timer != null) {
+                timer.dispose();
+                timer = null;
+            }
+            if (ChatUtils.hasSingleLeadingSpace(pending)) {
+                pending.insert(0, ' ');
+            }
+            String frame = pending.toString();
+            pending.setLength(0);
+            sink.next(frame);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.tooling.toolforge.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Meters for the /stream/chat hot path: a timer per preparation stage, time to first frame and
+ * total stream time by outcome, and a gauge of open streams. Per-model upstream meters live in
+ * {@link ModelRouter}.
+ */
+@Service
+public class ChatStreamMetrics {
+
+    public static final String STAGE_WARMUP = "warmup";
+    public static final String STAGE_CONTEXT = "context";
+    public static final String STAGE_REDIS_PUSH = "redis_push";
+    public static final String STAGE_ENQUEUE = "enqueue";
+    public static final String STAGE_CACHE_LOOKUP = "cache_lookup";
+    public static final String STAGE_PERSIST = "persist";
+
+    public static final String SOURCE_UPSTREAM = "upstream";
+    public static final String SOURCE_CACHE = "cache";
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> firstFrameTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> streamTimers = new ConcurrentHashMap<>();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    public ChatStreamMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("chat.stream.active", activeStreams, AtomicInteger::get)
+                .description("Chat streams currently open")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Times one stage of preparing or finishing a turn.
+     */
+    public <T> T timeStage(String stage, Supplier<T> work) {
+        return stageTimer(stage).record(work);
+    }
+
+    public void timeStage(String stage, Runnable work) {
+        stageTimer(stage).record(work);
+    }
+
+    /**
+     * Wraps the frames sent to the client. Records the time from {@code startNanos} to the first frame,
+     * the total stream time tagged with its outcome (complete, cancel or error), and counts the stream
+     * as active while it is subscribed.
+     *
+     * @param frames     The SSE frames.
+     * @param source     Where the answer comes from, {@link #SOURCE_UPSTREAM} or {@link #SOURCE_CACHE}.
+     * @param startNanos {@link System#nanoTime()} when the request arrived.
+     */
+    public Flux<String> instrument(Flux<String> frames, String source, long startNanos) {
+        AtomicBoolean firstFrame = new AtomicBoolean(true);
+        return frames
+                .doOnSubscribe(subscription -> activeStreams.incrementAndGet())
+                .doOnNext(frame -> {
+                    if (firstFrame.compareAndSet(true, false)) {
+                        firstFrameTimer(source).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                    }
+                })
+                .doFinally(signal -> {
+                    activeStreams.decrementAndGet();
+                    streamTimer(source, outcome(signal)).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                });
+    }
+
+    /**
+     * Maps a terminal signal to the outcome tag used by the stream meters.
+     */
+    public static String outcome(SignalType signal) {
+        return switch (signal) {
+            case ON_COMPLETE -> "complete";
+            case ON_ERROR -> "error";
+            default -> "cancel";
+        };
+    }
+
+    private Timer stageTimer(String stage) {
+        return stageTimers.computeIfAbsent(stage, key -> Timer.builder("chat.stream.stage")
+                .tag("stage", key)
+                .description("Time spent in each stage of preparing and finishing a chat turn")
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(meterRegistry));
+    }
+
+    private Timer firstFrameTimer(String source) {
+        return firstFrameTimers.computeIfAbsent(source, key -> Timer.builder("chat.stream.ttft")
+                .tag("source", key)
+                .description("Time from receiving a chat request to sending its first frame")
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(meterRegistry));
+    }
+
+    private Timer streamTimer(String source, String outcome) {
+        return streamTimers.computeIfAbsent(source + '|' + outcome, key -> Timer.builder("chat.stream.duration")
+                .tag("source", source)
+                .tag("outcome", outcome)
+                .description("Total time a chat stream was open")
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofMinutes(5))
+                .register(meterRegistry));
+    }
+}
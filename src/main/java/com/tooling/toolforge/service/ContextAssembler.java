@@ -0,0 +1,336 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.utils.ConversationCodec;
+import io.lettuce.core.cluster.SlotHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Builds the prompt context for a chat turn from the conversation cached in Redis.
+ * <p>
+ * Only the last {@code max-messages} entries of the Redis list are read. Turns older than that
+ * window are folded into a rolling summary stored next to the list, which is extended
+ * incrementally as turns age out, so no request ever reads the whole conversation.
+ * The assembled context never exceeds {@code max-chars}. Entries are stored with
+ * {@link ConversationCodec}, so each cached turn keeps its role in the prompt.
+ * <p>
+ * Once turns are in the summary they are no longer needed in the list, so the list is trimmed to
+ * {@code history-cache.max-entries} here, in the same script that moves the summary offset. The
+ * summary also counts the entries trimmed so far, so the script can tell where a caller's offsets
+ * stand against the list as it is now: a stale caller never trims turns that are not summarized
+ * yet, and never moves the offset back.
+ * <p>
+ * The summary key is in the list key's hash slot, so both can be used together in one script on a
+ * Redis Cluster.
+ */
+@Service
+@Slf4j
+public class ContextAssembler {
+
+    static final String SUMMARY_KEY_PREFIX = "chat:summary:";
+    private static final String SUMMARY_UP_TO_FIELD = "upTo";
+    private static final String SUMMARY_TEXT_FIELD = "text";
+    private static final String SUMMARY_TRIMMED_FIELD = "trimmed";
+    private static final String SUMMARY_HEADER = "Summary of earlier conversation:\n";
+
+    /*
+     * KEYS: list, summary. ARGV: the trimmed count the caller read, then relative to the list as it
+     * was then: the new offset and the entries to trim; last the new summary text.
+     * The text is only stored when it covers more turns than the stored one and was built from the
+     * same list head. Trims never pass the stored offset or the list's end.
+     * Returns the number of entries trimmed.
+     */
+    private static final RedisScript<Long> TRIM_SCRIPT = new DefaultRedisScript<>(
+            "local state = redis.call('HMGET', KEYS[2], '" + SUMMARY_UP_TO_FIELD + "', '" + SUMMARY_TRIMMED_FIELD + "') " +
+            "local trimmed = tonumber(state[2]) or 0 " +
+            "local upTo = trimmed + (tonumber(state[1]) or 0) " +
+            "local base = tonumber(ARGV[1]) " +
+            "local newUpTo = base + tonumber(ARGV[2]) " +
+            "if newUpTo > upTo and base == trimmed then " +
+            "  upTo = newUpTo " +
+            "  redis.call('HSET', KEYS[2], '" + SUMMARY_TEXT_FIELD + "', ARGV[4]) " +
+            "end " +
+            "local trimTo = math.min(base + tonumber(ARGV[3]), upTo, trimmed + redis.call('LLEN', KEYS[1])) " +
+            "local count = math.max(0, trimTo - trimmed) " +
+            "if count > 0 then redis.call('LTRIM', KEYS[1], count, -1) end " +
+            "redis.call('HSET', KEYS[2], '" + SUMMARY_UP_TO_FIELD + "', upTo - trimmed - count, '" +
+            SUMMARY_TRIMMED_FIELD + "', trimmed + count) " +
+            "return count",
+            Long.class);
+
+    private final RedisTemplate<String, String> redisTemplate;
+
+    @Value("${toolforge.chat.context.max-messages:20}")
+    private int maxMessages;
+
+    @Value("${toolforge.chat.context.max-chars:24000}")
+    private int maxChars;
+
+    @Value("${toolforge.chat.context.summary-max-chars:2000}")
+    private int summaryMaxChars;
+
+    @Value("${toolforge.chat.context.summary-line-chars:160}")
+    private int summaryLineChars;
+
+    @Value("${toolforge.chat.history-cache.max-entries:200}")
+    private long maxEntries;
+
+    public ContextAssembler(RedisTemplate<String, String> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * What a chat turn reads from Redis before its own message is appended: the last max-messages
+     * entries, the list length and the stored summary fields.
+     */
+    public record ConversationSnapshot(List<String> tail, long size, Map<String, String> summary) {
+    }
+
+    /**
+     * The summary hash for a conversation list, in the list's hash slot.
+     */
+    public static String summaryKey(String redisKey) {
+        // Redis hashes only the text between the first '{' and the next '}', when it is not empty
+        int open = redisKey.indexOf('{');
+        if (open >= 0 && redisKey.indexOf('}', open + 1) > open + 1) {
+            return SUMMARY_KEY_PREFIX + redisKey;
+        }
+        if (redisKey.indexOf('}') < 0) {
+            return SUMMARY_KEY_PREFIX + "{" + redisKey + "}";
+        }
+        // The whole key is hashed but cannot be used as a tag, so use a tag that hashes to its slot
+        return SUMMARY_KEY_PREFIX + "{" + SlotTags.forSlot(SlotHash.getSlot(redisKey)) + "}" + redisKey;
+    }
+
+    /**
+     * How many of the newest entries a turn reads.
+     */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Assembles the prompt for the next upstream call: the rolling summary as a system message,
+     * as many of the most recent turns as fit in the budget with their user/assistant roles,
+     * and the new message as the final user turn.
+     *
+     * @param redisKey   The session's conversation list in Redis.
+     * @param newMessage The message being sent in this turn; always included.
+     * @return The prompt messages, carrying at most max-chars of content unless newMessage alone is longer.
+     */
+    public List<Message> assemble(String redisKey, String newMessage) {
+        List<String> tail = redisTemplate.opsForList().range(redisKey, -maxMessages, -1);
+        return assemble(redisKey, newMessage, tail != null ? tail : Collections.emptyList(),
+                () -> listSize(redisKey), () -> storedSummary(redisKey));
+    }
+
+    /**
+     * Same as {@link #assemble(String, String)}, from a snapshot already read in the same round
+     * trip as the turn's append. Redis is only called again when turns have aged into the summary.
+     */
+    public List<Message> assemble(String redisKey, String newMessage, ConversationSnapshot snapshot) {
+        return assemble(redisKey, newMessage, snapshot.tail(), snapshot::size, snapshot::summary);
+    }
+
+    private List<Message> assemble(String redisKey, String newMessage, List<String> tail,
+                                   LongSupplier size, Supplier<Map<String, String>> storedSummary) {
+        String summary = "";
+        if (tail.size() == maxMessages) {
+            long listSize = size.getAsLong();
+            long olderCount = listSize - tail.size();
+            if (olderCount > 0) {
+                long overflow = listSize - Math.max(maxEntries, maxMessages);
+                summary = updateSummary(redisKey, olderCount, Math.max(0, overflow), storedSummary.get()).text();
+            }
+        }
+
+        int remaining = maxChars - newMessage.length();
+        if (!summary.isEmpty()) {
+            int summaryLength = SUMMARY_HEADER.length() + summary.length();
+            if (summaryLength <= remaining) {
+                remaining -= summaryLength;
+            } else {
+                summary = "";
+            }
+        }
+
+        // Walk back from the newest turn and keep as many as fit in the budget
+        int firstIncluded = tail.size();
+        while (firstIncluded > 0) {
+            int entryLength = ConversationCodec.contentLength(tail.get(firstIncluded - 1));
+            if (entryLength > remaining) {
+                break;
+            }
+            remaining -= entryLength;
+            firstIncluded--;
+        }
+
+        List<Message> prompt = new ArrayList<>(tail.size() - firstIncluded + 2);
+        if (!summary.isEmpty()) {
+            prompt.add(new SystemMessage(SUMMARY_HEADER + summary));
+        }
+        for (int i = firstIncluded; i < tail.size(); i++) {
+            prompt.add(toPromptMessage(ConversationCodec.decode(tail.get(i))));
+        }
+        prompt.add(new UserMessage(newMessage));
+
+        if (firstIncluded > 0) {
+            log.debug("Context budget of {} chars dropped {} of {} recent turns for session {}", maxChars, firstIncluded, tail.size(), redisKey);
+        }
+        return prompt;
+    }
+
+    /**
+     * Shrinks a conversation to the last max-messages entries, which is all the next turn reads,
+     * after folding everything older into the summary. Used for sessions that have gone idle.
+     *
+     * @return The number of entries removed from the list.
+     */
+    public long compact(String redisKey) {
+        // The summary first: a trim in between then makes the size look smaller, never larger
+        Map<String, String> stored = storedSummary(redisKey);
+        long olderCount = listSize(redisKey) - maxMessages;
+        if (olderCount <= 0) {
+            return 0;
+        }
+        return updateSummary(redisKey, olderCount, olderCount, stored).trimmed();
+    }
+
+    private long listSize(String redisKey) {
+        Long size = redisTemplate.opsForList().size(redisKey);
+        return size != null ? size : 0;
+    }
+
+    private Map<String, String> storedSummary(String redisKey) {
+        HashOperations<String, String, String> hashOps = redisTemplate.opsForHash();
+        return hashOps.entries(summaryKey(redisKey));
+    }
+
+    private static Message toPromptMessage(com.tooling.toolforge.dto.chat.Message message) {
+        return switch (message.getRole()) {
+            case ConversationCodec.ROLE_BOT -> new AssistantMessage(message.getContent());
+            case ConversationCodec.ROLE_SYSTEM -> new SystemMessage(message.getContent());
+            default -> new UserMessage(message.getContent());
+        };
+    }
+
+    /**
+     * Folds the turns that have moved out of the window since the last call into the summary.
+     * Each aged-out turn contributes one clipped line; the oldest lines are dropped once the
+     * summary reaches summary-max-chars.
+     *
+     * @param trim   How many of the oldest list entries to remove afterwards, at most olderCount.
+     * @param stored The summary hash as currently stored; empty if there is none.
+     */
+    private SummaryUpdate updateSummary(String redisKey, long olderCount, long trim, Map<String, String> stored) {
+        String summaryKey = summaryKey(redisKey);
+        long upTo = 0;
+        long trimmed = 0;
+        String text = "";
+        if (stored != null && !stored.isEmpty()) {
+            try {
+                upTo = Long.parseLong(stored.getOrDefault(SUMMARY_UP_TO_FIELD, "0"));
+                trimmed = Long.parseLong(stored.getOrDefault(SUMMARY_TRIMMED_FIELD, "0"));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring corrupt summary offset for session {}", redisKey);
+            }
+            text = stored.getOrDefault(SUMMARY_TEXT_FIELD, "");
+        }
+
+        if (upTo >= olderCount) {
+            long removed = trim > 0 ? storeSummary(redisKey, summaryKey, trimmed, upTo, text, trim) : 0;
+            return new SummaryUpdate(text, removed);
+        }
+
+        // Only the newest aged-out turns can survive in the summary, so there is no point reading more
+        long maxLines = Math.max(1, summaryMaxChars / Math.max(1, summaryLineChars));
+        long from = Math.max(upTo, olderCount - maxLines);
+        List<String> agedOut = redisTemplate.opsForList().range(redisKey, from, olderCount - 1);
+
+        List<String> lines = new ArrayList<>();
+        if (!text.isEmpty()) {
+            Collections.addAll(lines, text.split("\n"));
+        }
+        if (agedOut != null) {
+            for (String entry : agedOut) {
+                com.tooling.toolforge.dto.chat.Message turn = ConversationCodec.decode(entry);
+                String speaker = ConversationCodec.ROLE_BOT.equals(turn.getRole()) ? "Assistant: " : "User: ";
+                String line = speaker + turn.getContent().replace('\n', ' ').strip();
+                if (line.length() > summaryLineChars) {
+                    line = line.substring(0, summaryLineChars - 3) + "...";
+                }
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+
+        int length = 0;
+        int firstKept = lines.size();
+        while (firstKept > 0 && length + lines.get(firstKept - 1).length() + 1 <= summaryMaxChars) {
+            length += lines.get(firstKept - 1).length() + 1;
+            firstKept--;
+        }
+        String updated = String.join("\n", lines.subList(firstKept, lines.size()));
+
+        long removed = storeSummary(redisKey, summaryKey, trimmed, olderCount, updated, trim);
+        return new SummaryUpdate(updated, removed);
+    }
+
+    /**
+     * @param trimmed The trimmed count read with the summary; upTo and trim are relative to the list as it was then.
+     * @return The number of entries trimmed.
+     */
+    private long storeSummary(String redisKey, String summaryKey, long trimmed, long upTo, String text, long trim) {
+        // The offset counts list entries, so trimming and moving it back must not be seen apart.
+        // A script rather than MULTI/EXEC, which Lettuce does not support on a cluster connection.
+        Long removed = redisTemplate.execute(TRIM_SCRIPT, List.of(redisKey, summaryKey),
+                Long.toString(trimmed), Long.toString(upTo), Long.toString(trim), text);
+        return removed != null ? removed : 0;
+    }
+
+    /**
+     * The summary text to prompt with, and how many list entries were trimmed.
+     */
+    private record SummaryUpdate(String text, long trimmed) {
+    }
+
+    /**
+     * For each Redis Cluster slot, a short tag that hashes to it. Built on first use.
+     */
+    private static final class SlotTags {
+        private static final String[] TAGS = new String[SlotHash.SLOT_COUNT];
+
+        static {
+            int found = 0;
+            for (int i = 0; found < TAGS.length; i++) {
+                String tag = Integer.toString(i, Character.MAX_RADIX);
+                int slot = SlotHash.getSlot(tag);
+                if (TAGS[slot] == null) {
+                    TAGS[slot] = tag;
+                    found++;
+                }
+            }
+        }
+
+        static String forSlot(int slot) {
+            return TAGS[slot];
+        }
+    }
+}
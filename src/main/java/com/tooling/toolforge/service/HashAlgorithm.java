@@ -0,0 +1,138 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.utils.XxHash64;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ * The hash functions offered by {@link HashService}, by the id used in the API.
+ * MD5 and SHA-1 are only for checksums and compatibility; CRC32C and XXH64 are fast non-cryptographic checksums.
+ */
+public enum HashAlgorithm {
+    MD5("md5") {
+        @Override
+        Hasher newHasher() {
+            return digestHasher("MD5");
+        }
+    },
+    SHA1("sha1") {
+        @Override
+        Hasher newHasher() {
+            return digestHasher("SHA-1");
+        }
+    },
+    SHA256("sha256") {
+        @Override
+        Hasher newHasher() {
+            return digestHasher("SHA-256");
+        }
+    },
+    SHA512("sha512") {
+        @Override
+        Hasher newHasher() {
+            return digestHasher("SHA-512");
+        }
+    },
+    CRC32C("crc32c") {
+        @Override
+        Hasher newHasher() {
+            CRC32C crc = new CRC32C();
+            return new Hasher() {
+                @Override
+                public void update(byte[] input, int offset, int length) {
+                    crc.update(input, offset, length);
+                }
+
+                @Override
+                public byte[] digestAndReset() {
+                    long value = crc.getValue();
+                    crc.reset();
+                    return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+                }
+            };
+        }
+    },
+    XXH64("xxh64") {
+        @Override
+        Hasher newHasher() {
+            XxHash64 xxHash = new XxHash64();
+            return new Hasher() {
+                @Override
+                public void update(byte[] input, int offset, int length) {
+                    xxHash.update(input, offset, length);
+                }
+
+                @Override
+                public byte[] digestAndReset() {
+                    long value = xxHash.getValue();
+                    xxHash.reset();
+                    byte[] digest = new byte[8];
+                    for (int i = 7; i >= 0; i--) {
+                        digest[i] = (byte) value;
+                        value >>>= 8;
+                    }
+                    return digest;
+                }
+            };
+        }
+    };
+
+    private final String id;
+
+    HashAlgorithm(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Looks an algorithm up by its API id, case-insensitively and ignoring dashes (so "SHA-256" works too).
+     *
+     * @throws IllegalArgumentException If the algorithm is not supported.
+     */
+    public static HashAlgorithm fromId(String id) {
+        String normalized = id == null ? "" : id.trim().toLowerCase(Locale.ROOT).replace("-", "");
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.id.equals(normalized)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported hash algorithm: " + id);
+    }
+
+    abstract Hasher newHasher();
+
+    private static Hasher digestHasher(String name) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(name);
+            return new Hasher() {
+                @Override
+                public void update(byte[] input, int offset, int length) {
+                    digest.update(input, offset, length);
+                }
+
+                @Override
+                public byte[] digestAndReset() {
+                    return digest.digest();
+                }
+            };
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to provide MD5, SHA-1 and SHA-256; SHA-512 is in all of them in practice
+            throw new IllegalStateException(name + " is not available in this JRE", e);
+        }
+    }
+
+    /**
+     * Incremental hash state. Instances are reused per thread, so they are reset when a digest is taken.
+     */
+    interface Hasher {
+        void update(byte[] input, int offset, int length);
+
+        byte[] digestAndReset();
+    }
+}
@@ -1,24 +1,199 @@
 package com.tooling.toolforge.service;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.tooling.toolforge.model.hash.HashResult;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+/**
+ * Hashing for strings, streamed uploads and batches.
+ * <p>
+ * Digest instances are borrowed from a small pool per algorithm and handed back reset, instead of
+ * being looked up for every call. The pool is shared rather than per thread, so it keeps working
+ * when requests run on virtual threads. Digests are hex-encoded with {@link HexFormat}'s lookup table. Streams are read in
+ * fixed-size chunks, so an upload of any size is hashed without being held in memory.
+ */
 @Service
 public class HashService {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Below this many bytes in total a batch is hashed on the calling thread; fanning out costs more
+    private static final long PARALLEL_BATCH_THRESHOLD = 256 * 1024;
+    private static final HexFormat HEX = HexFormat.of();
+    // Idle hashers kept per algorithm; more than this are created while busy and then dropped
+    private static final int MAX_IDLE_HASHERS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final Map<HashAlgorithm, HasherPool> HASHERS = new EnumMap<>(HashAlgorithm.class);
+
+    static {
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            HASHERS.put(algorithm, new HasherPool(algorithm));
+        }
+    }
+
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private final int batchParallelism;
+
+    public HashService(@Value("${toolforge.hash.batch.max-size:1000}") int maxBatchSize,
+                       @Value("${toolforge.hash.batch.max-bytes:16777216}") long maxBatchBytes,
+                       @Value("${toolforge.hash.batch.parallelism:0}") int batchParallelism) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.batchParallelism = batchParallelism > 0 ? batchParallelism : Schedulers.DEFAULT_POOL_SIZE;
+    }
+
     public String generateSHA256(String input) {
+        return hash(HashAlgorithm.SHA256, input);
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of a string.
+     *
+     * @return The lower-case hex digest.
+     */
+    public String hash(HashAlgorithm algorithm, String input) {
+        return hash(algorithm, input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String hash(HashAlgorithm algorithm, byte[] input) {
+        HasherPool pool = HASHERS.get(algorithm);
+        HashAlgorithm.Hasher hasher = pool.borrow();
+        hasher.update(input, 0, input.length);
+        String hash = HEX.formatHex(hasher.digestAndReset());
+        pool.release(hasher);
+        return hash;
+    }
+
+    /**
+     * Hashes a stream with one or more algorithms in a single pass, reading it in fixed-size chunks.
+     * The stream is not closed.
+     *
+     * @return The number of bytes read and the hex digest for each algorithm.
+     */
+    public HashResult hash(Collection<HashAlgorithm> algorithms, InputStream input) throws IOException {
+        Set<HashAlgorithm> distinct = new LinkedHashSet<>(algorithms);
+        List<HashAlgorithm.Hasher> hashers = new ArrayList<>(distinct.size());
+        for (HashAlgorithm algorithm : distinct) {
+            hashers.add(HASHERS.get(algorithm).borrow());
+        }
+
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long bytes = 0;
+        boolean complete = false;
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                hexString.append(String.format("%02x", b));
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                for (HashAlgorithm.Hasher hasher : hashers) {
+                    hasher.update(buffer, 0, read);
+                }
+                bytes += read;
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                // Hand the hashers back clean for the next call
+                hashers.forEach(HashAlgorithm.Hasher::digestAndReset);
+                release(distinct, hashers);
+            }
+        }
+
+        Map<String, String> hashes = new LinkedHashMap<>();
+        int i = 0;
+        for (HashAlgorithm algorithm : distinct) {
+            hashes.put(algorithm.getId(), HEX.formatHex(hashers.get(i++).digestAndReset()));
+        }
+        release(distinct, hashers);
+        return new HashResult(bytes, hashes);
+    }
+
+    /**
+     * Hashes each input, in parallel for larger batches. Blocking.
+     *
+     * @return The hex digests, in the same order as the inputs.
+     * @throws IllegalArgumentException If the batch has more than max-size inputs or max-bytes in total.
+     */
+    public List<String> hashBatch(HashAlgorithm algorithm, List<String> inputs) {
+        if (inputs.size() > maxBatchSize) {
+            throw new IllegalArgumentException("A batch can have at most " + maxBatchSize + " inputs");
+        }
+        List<byte[]> encoded = new ArrayList<>(inputs.size());
+        long totalBytes = 0;
+        for (String input : inputs) {
+            byte[] bytes = (input == null ? "" : input).getBytes(StandardCharsets.UTF_8);
+            totalBytes += bytes.length;
+            if (totalBytes > maxBatchBytes) {
+                throw new IllegalArgumentException("A batch can have at most " + maxBatchBytes + " bytes in total");
+            }
+            encoded.add(bytes);
+        }
+
+        String[] hashes = new String[encoded.size()];
+        if (totalBytes < PARALLEL_BATCH_THRESHOLD || encoded.size() < 2) {
+            hashRange(algorithm, encoded, hashes, 0, encoded.size());
+            return Arrays.asList(hashes);
+        }
+
+        // One contiguous slice per worker keeps the scheduling overhead to a handful of tasks
+        int slices = Math.min(batchParallelism, encoded.size());
+        int sliceSize = (encoded.size() + slices - 1) / slices;
+        Flux.range(0, slices)
+                .flatMap(slice -> Mono.fromRunnable(() -> hashRange(algorithm, encoded, hashes,
+                                slice * sliceSize, Math.min(encoded.size(), (slice + 1) * sliceSize)))
+                        .subscribeOn(Schedulers.parallel()))
+                .then()
+                .block();
+        return Arrays.asList(hashes);
+    }
+
+    private void hashRange(HashAlgorithm algorithm, List<byte[]> inputs, String[] hashes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            hashes[i] = hash(algorithm, inputs.get(i));
+        }
+    }
+
+    private static void release(Set<HashAlgorithm> algorithms, List<HashAlgorithm.Hasher> hashers) {
+        int i = 0;
+        for (HashAlgorithm algorithm : algorithms) {
+            HASHERS.get(algorithm).release(hashers.get(i++));
+        }
+    }
+
+    /**
+     * Idle hashers of one algorithm, at most MAX_IDLE_HASHERS of them. Hashers are released reset.
+     */
+    private static final class HasherPool {
+        private final HashAlgorithm algorithm;
+        private final Queue<HashAlgorithm.Hasher> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        HasherPool(HashAlgorithm algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        HashAlgorithm.Hasher borrow() {
+            HashAlgorithm.Hasher hasher = idle.poll();
+            if (hasher == null) {
+                return algorithm.newHasher();
+            }
+            idleCount.decrementAndGet();
+            return hasher;
+        }
+
+        void release(HashAlgorithm.Hasher hasher) {
+            if (idleCount.incrementAndGet() <= MAX_IDLE_HASHERS) {
+                idle.offer(hasher);
+            } else {
+                idleCount.decrementAndGet();
             }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            return "Error: SHA-256 algorithm not found";
         }
     }
-}
\ No newline at end of file
+}
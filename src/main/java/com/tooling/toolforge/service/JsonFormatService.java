@@ -0,0 +1,93 @@
+package com.tooling.toolforge.service;
+
+import com.fasterxml.jackson.core.*;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Re-formats JSON token by token, from a parser straight into a generator, so memory use does
+ * not grow with the size of the document. Only a single string or number is ever held in full.
+ */
+@Service
+public class JsonFormatService {
+
+    public static final int MAX_INDENT = 8;
+
+    private final JsonFactory jsonFactory;
+    private final long maxBytes;
+
+    public JsonFormatService(@Value("${toolforge.json.format.max-bytes:104857600}") long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.jsonFactory = JsonFactory.builder()
+                .streamReadConstraints(StreamReadConstraints.builder()
+                        .maxDocumentLength(maxBytes)
+                        .maxStringLength((int) Math.min(maxBytes, Integer.MAX_VALUE))
+                        .build())
+                // The caller owns the request and response streams
+                .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+                .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+                // On a parse error, leave the output cut short rather than closing it into valid-looking JSON
+                .disable(StreamWriteFeature.AUTO_CLOSE_CONTENT)
+                .build();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Copies one JSON document from in to out, either pretty-printed or minified.
+     *
+     * @param in     UTF-8 (or UTF-16/32, auto-detected) JSON.
+     * @param out    Receives UTF-8 JSON.
+     * @param indent Spaces per level when pretty-printing, 0 to {@link #MAX_INDENT}.
+     * @param minify True to drop all insignificant whitespace instead.
+     * @throws StreamConstraintsException If the document is larger than max-bytes.
+     * @throws JsonProcessingException    If the input is not a single valid JSON document; the
+     *                                    exception's location has the line and column.
+     */
+    public void format(InputStream in, OutputStream out, int indent, boolean minify) throws IOException {
+        if (indent < 0 || indent > MAX_INDENT) {
+            throw new IllegalArgumentException("indent must be between 0 and " + MAX_INDENT);
+        }
+        try (JsonParser parser = jsonFactory.createParser(in);
+             JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            if (!minify) {
+                DefaultIndenter indenter = new DefaultIndenter(" ".repeat(indent), "\n");
+                generator.setPrettyPrinter(new DefaultPrettyPrinter()
+                        .withObjectIndenter(indenter)
+                        .withArrayIndenter(indenter));
+            }
+
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                throw new JsonParseException(parser, "No JSON content");
+            }
+            int depth = 0;
+            while (true) {
+                // Exact copy keeps numbers as written instead of round-tripping them through double
+                generator.copyCurrentEventExact(parser);
+                if (token.isStructStart()) {
+                    depth++;
+                } else if (token.isStructEnd()) {
+                    depth--;
+                }
+                if (depth == 0) {
+                    break;
+                }
+                // The parser itself fails on end-of-input inside an open object or array
+                token = parser.nextToken();
+            }
+
+            if (parser.nextToken() != null) {
+                throw new JsonParseException(parser, "Unexpected content after the end of the JSON document");
+            }
+        }
+    }
+}
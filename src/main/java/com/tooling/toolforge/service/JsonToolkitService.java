@@ -0,0 +1,361 @@
+package com.tooling.toolforge.service;
+
+import com.fasterxml.jackson.core.*;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.networknt.schema.*;
+import com.networknt.schema.resource.InputStreamSource;
+import com.networknt.schema.serialization.JsonNodeReader;
+import com.tooling.toolforge.model.json.JsonDiffResponse;
+import com.tooling.toolforge.model.json.JsonPatchOperation;
+import com.tooling.toolforge.model.json.JsonValidationError;
+import com.tooling.toolforge.model.json.JsonValidationResponse;
+import com.tooling.toolforge.utils.JsonPathQuery;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * JSON Schema validation, structural diff and JSONPath queries.
+ * <p>
+ * Validation and queries read the document as a stream where they can: a schema that only
+ * constrains the items of a top-level array is checked one item at a time, each item held to the
+ * smaller max-tree-bytes cap, and simple JSONPath expressions are matched against the token stream
+ * (see {@link JsonPathQuery}). Everything else, and diff, needs the whole tree and is held to
+ * max-tree-bytes as well. Compiled schemas
+ * and paths are kept in bounded caches keyed by the SHA-256 of their text.
+ */
+@Service
+@Lazy
+public class JsonToolkitService {
+
+    // Schema keywords that still allow an array to be checked item by item
+    private static final Set<String> PER_ITEM_KEYWORDS = Set.of(
+            "$schema", "$id", "id", "$comment", "title", "description", "default", "examples",
+            "$defs", "definitions", "type", "items");
+
+    private final HashService hashService;
+    private final ObjectMapper streamMapper;
+    private final ObjectMapper treeMapper;
+    private final JsonNodeReader schemaNodeReader; // Reads referenced schemas under the same size cap
+    private final long maxBytes;
+    private final long maxTreeBytes;
+    private final int maxErrors;
+    private final int maxDiffOperations;
+    private final Cache<String, CompiledSchema> schemaCache;
+    private final Cache<String, JsonPathQuery> pathCache;
+
+    public JsonToolkitService(ObjectMapper objectMapper,
+                              HashService hashService,
+                              @Value("${toolforge.json.toolkit.max-bytes:104857600}") long maxBytes,
+                              @Value("${toolforge.json.toolkit.max-tree-bytes:16777216}") long maxTreeBytes,
+                              @Value("${toolforge.json.toolkit.cache-size:256}") long cacheSize,
+                              @Value("${toolforge.json.toolkit.max-errors:100}") int maxErrors,
+                              @Value("${toolforge.json.toolkit.max-diff-operations:10000}") int maxDiffOperations) {
+        this.hashService = hashService;
+        this.maxBytes = maxBytes;
+        this.maxTreeBytes = maxTreeBytes;
+        this.maxErrors = maxErrors;
+        this.maxDiffOperations = maxDiffOperations;
+        this.streamMapper = limitedCopy(objectMapper, maxBytes);
+        this.treeMapper = limitedCopy(objectMapper, maxTreeBytes);
+        this.schemaNodeReader = JsonNodeReader.builder().jsonMapper(treeMapper).build();
+        this.schemaCache = Caffeine.newBuilder().maximumSize(cacheSize).build();
+        this.pathCache = Caffeine.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxTreeBytes() {
+        return maxTreeBytes;
+    }
+
+    /**
+     * Validates one JSON document against a JSON Schema (draft 4 to 2020-12, from {@code $schema},
+     * defaulting to 2020-12). Stops after max-errors errors. References to schemas outside the
+     * document itself are refused.
+     *
+     * @throws IllegalArgumentException If the schema is not a usable JSON Schema.
+     * @throws StreamConstraintsException If the document is over the size cap, or an item checked on
+     *                                    its own is over max-tree-bytes.
+     * @throws JsonProcessingException    If the schema or document is not valid JSON.
+     */
+    public JsonValidationResponse validate(String schemaText, InputStream document) throws IOException {
+        CompiledSchema compiled = compileSchema(schemaText);
+        List<JsonValidationError> errors = new ArrayList<>();
+        boolean truncated;
+
+        try (JsonParser parser = (compiled.perItem() ? streamMapper : treeMapper).createParser(document)) {
+            JsonToken token = firstToken(parser);
+            if (compiled.perItem() && token == JsonToken.START_ARRAY) {
+                truncated = validateItems(compiled.schema(), parser, errors);
+            } else {
+                JsonNode root;
+                if (compiled.perItem() && token == JsonToken.START_OBJECT) {
+                    // Wrong type either way; no need to hold the object to report it
+                    parser.skipChildren();
+                    root = streamMapper.createObjectNode();
+                } else {
+                    root = compiled.perItem() ? JsonPathQuery.readTree(parser, maxTreeBytes) : parser.readValueAsTree();
+                }
+                truncated = collect(compiled.schema().validate(root), null, errors);
+            }
+            if (!truncated) {
+                requireEnd(parser);
+            }
+        }
+        return new JsonValidationResponse(errors.isEmpty(), errors, truncated);
+    }
+
+    /**
+     * Writes a JSON array of every value in the document matching the JSONPath expression.
+     *
+     * @throws IllegalArgumentException If the expression is not valid JSONPath.
+     * @throws StreamConstraintsException If the document is over the size cap, or a recursive-descent
+     *                                    match is over max-tree-bytes.
+     * @throws JsonProcessingException    If the document is not valid JSON.
+     */
+    public void query(String expression, InputStream in, OutputStream out) throws IOException {
+        JsonPathQuery query = compilePath(expression);
+        ObjectMapper mapper = query.isStreaming() ? streamMapper : treeMapper;
+        try (JsonParser parser = mapper.createParser(in);
+             JsonGenerator generator = streamMapper.createGenerator(out, JsonEncoding.UTF8)) {
+            firstToken(parser);
+            if (query.isStreaming()) {
+                generator.writeStartArray();
+                query.select(parser, generator, maxTreeBytes);
+                requireEnd(parser);
+            } else {
+                JsonNode root = parser.readValueAsTree();
+                requireEnd(parser);
+                generator.writeStartArray();
+                for (JsonNode match : query.select(root)) {
+                    generator.writeTree(match);
+                }
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * Compares two documents and returns the RFC 6902 patch that turns left into right. Objects are
+     * compared by member name and arrays by position.
+     *
+     * @throws StreamConstraintsException If either document is over max-tree-bytes.
+     * @throws JsonProcessingException    If either document is not valid JSON.
+     */
+    public JsonDiffResponse diff(InputStream left, InputStream right) throws IOException {
+        JsonNode leftTree = readTree(left);
+        JsonNode rightTree = readTree(right);
+        List<JsonPatchOperation> operations = new ArrayList<>();
+        boolean complete = diff(leftTree, rightTree, "", operations);
+        return new JsonDiffResponse(operations.isEmpty(), operations, !complete);
+    }
+
+    JsonPathQuery compilePath(String expression) {
+        if (expression == null || expression.isBlank()) {
+            throw new IllegalArgumentException("JSONPath expression is required");
+        }
+        return pathCache.get(hashService.hash(HashAlgorithm.SHA256, expression), key -> JsonPathQuery.compile(expression));
+    }
+
+    CompiledSchema compileSchema(String schemaText) throws IOException {
+        String key = hashService.hash(HashAlgorithm.SHA256, schemaText);
+        CompiledSchema compiled = schemaCache.getIfPresent(key);
+        if (compiled == null) {
+            compiled = buildSchema(treeMapper.readTree(schemaText));
+            schemaCache.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    private CompiledSchema buildSchema(JsonNode schemaNode) {
+        if (schemaNode == null || !(schemaNode.isObject() || schemaNode.isBoolean())) {
+            throw new IllegalArgumentException("A JSON Schema must be an object or a boolean");
+        }
+        SpecVersion.VersionFlag version;
+        try {
+            version = SpecVersionDetector.detectOptionalVersion(schemaNode, false).orElse(SpecVersion.VersionFlag.V202012);
+        } catch (JsonSchemaException e) {
+            throw new IllegalArgumentException("Unsupported $schema: " + e.getMessage(), e);
+        }
+        // A fresh factory per schema, so the cache above is the only thing holding compiled schemas
+        JsonSchemaFactory factory = JsonSchemaFactory.getInstance(version, builder -> builder
+                .jsonNodeReader(schemaNodeReader)
+                .schemaLoaders(loaders -> loaders.add(iri -> iri.toString().startsWith("classpath:draft")
+                        ? null
+                        : refusedSchema(iri))));
+        try {
+            JsonSchema schema = factory.getSchema(schemaNode);
+            schema.initializeValidators();
+            return new CompiledSchema(schema, isPerItem(schemaNode));
+        } catch (JsonSchemaException e) {
+            throw new IllegalArgumentException("Invalid JSON Schema: " + e.getMessage(), e);
+        }
+    }
+
+    private static InputStreamSource refusedSchema(AbsoluteIri iri) {
+        return () -> {
+            throw new IOException("External schema references are not allowed: " + iri);
+        };
+    }
+
+    // True when the schema says nothing about the array as a whole beyond its type
+    private static boolean isPerItem(JsonNode schemaNode) {
+        if (!schemaNode.isObject() || !"array".equals(schemaNode.path("type").asText(null))) {
+            return false;
+        }
+        JsonNode items = schemaNode.get("items");
+        if (items == null || !(items.isObject() || items.isBoolean())) {
+            return false;
+        }
+        Iterator<String> names = schemaNode.fieldNames();
+        while (names.hasNext()) {
+            if (!PER_ITEM_KEYWORDS.contains(names.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Validates each item as a one-element array, so $ref and $defs resolve against the real root
+    private boolean validateItems(JsonSchema schema, JsonParser parser, List<JsonValidationError> errors) throws IOException {
+        int index = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            ArrayNode single = streamMapper.createArrayNode();
+            single.add(JsonPathQuery.readTree(parser, maxTreeBytes));
+            if (collect(schema.validate(single), index, errors)) {
+                return true;
+            }
+            index++;
+        }
+        return false;
+    }
+
+    // Adds the messages to errors; true once max-errors is reached
+    private boolean collect(Set<ValidationMessage> messages, Integer itemIndex, List<JsonValidationError> errors) {
+        for (ValidationMessage message : messages) {
+            if (errors.size() >= maxErrors) {
+                return true;
+            }
+            String path = message.getInstanceLocation().toString();
+            if (itemIndex != null && path.startsWith("$[0]")) {
+                path = "$[" + itemIndex + "]" + path.substring(4);
+            }
+            errors.add(new JsonValidationError(path, message.getMessage()));
+        }
+        return false;
+    }
+
+    // Appends the operations turning left into right; false if max-diff-operations was reached
+    private boolean diff(JsonNode left, JsonNode right, String pointer, List<JsonPatchOperation> operations) {
+        if (left.equals(right)) {
+            return true;
+        }
+        if (left.isObject() && right.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = left.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                String child = pointer + "/" + escapePointer(field.getKey());
+                JsonNode other = right.get(field.getKey());
+                boolean complete = other == null
+                        ? add(operations, new JsonPatchOperation("remove", child, null))
+                        : diff(field.getValue(), other, child, operations);
+                if (!complete) {
+                    return false;
+                }
+            }
+            fields = right.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (!left.has(field.getKey())
+                        && !add(operations, new JsonPatchOperation("add", pointer + "/" + escapePointer(field.getKey()), field.getValue()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (left.isArray() && right.isArray()) {
+            int common = Math.min(left.size(), right.size());
+            for (int i = 0; i < common; i++) {
+                if (!diff(left.get(i), right.get(i), pointer + "/" + i, operations)) {
+                    return false;
+                }
+            }
+            for (int i = common; i < right.size(); i++) {
+                if (!add(operations, new JsonPatchOperation("add", pointer + "/" + i, right.get(i)))) {
+                    return false;
+                }
+            }
+            // Remove from the end so earlier indexes stay valid
+            for (int i = left.size() - 1; i >= common; i--) {
+                if (!add(operations, new JsonPatchOperation("remove", pointer + "/" + i, null))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return add(operations, new JsonPatchOperation("replace", pointer, right));
+    }
+
+    private boolean add(List<JsonPatchOperation> operations, JsonPatchOperation operation) {
+        if (operations.size() >= maxDiffOperations) {
+            return false;
+        }
+        operations.add(operation);
+        return true;
+    }
+
+    private static String escapePointer(String name) {
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+
+    private JsonNode readTree(InputStream in) throws IOException {
+        try (JsonParser parser = treeMapper.createParser(in)) {
+            firstToken(parser);
+            JsonNode tree = parser.readValueAsTree();
+            requireEnd(parser);
+            return tree;
+        }
+    }
+
+    private static JsonToken firstToken(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            throw new JsonParseException(parser, "No JSON content");
+        }
+        return token;
+    }
+
+    private static void requireEnd(JsonParser parser) throws IOException {
+        if (parser.nextToken() != null) {
+            throw new JsonParseException(parser, "Unexpected content after the end of the JSON document");
+        }
+    }
+
+    private static ObjectMapper limitedCopy(ObjectMapper objectMapper, long maxBytes) {
+        ObjectMapper copy = objectMapper.copy();
+        copy.getFactory().setStreamReadConstraints(StreamReadConstraints.builder()
+                .maxDocumentLength(maxBytes)
+                .maxStringLength((int) Math.min(maxBytes, Integer.MAX_VALUE))
+                .build());
+        // The caller owns the request and response streams
+        copy.getFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        copy.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        copy.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        return copy;
+    }
+
+    record CompiledSchema(JsonSchema schema, boolean perItem) {
+    }
+}
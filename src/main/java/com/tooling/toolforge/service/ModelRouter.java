@@ -0,0 +1,330 @@
+package com.tooling.toolforge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Routes chat completions across the configured upstream models.
+ * <p>
+ * Each model has a concurrency limit and a circuit breaker. A request goes to the first model whose
+ * breaker is closed. If it has not produced a first token within {@code hedge-after} (or fails before
+ * that), the same prompt is sent to the next available model; whichever stream produces a token first
+ * is used and the other is cancelled. A stream that goes quiet for {@code idle-timeout} after its
+ * first token fails, which frees its permit and the caller's admission lease.
+ */
+@Service
+@Slf4j
+public class ModelRouter {
+
+    private final OpenRouterService openRouterService;
+    private final List<ModelLane> lanes;
+    private final Duration hedgeAfter;
+    private final Duration firstTokenTimeout;
+    private final Duration idleTimeout;
+    private final Counter hedgesStarted;
+
+    public ModelRouter(OpenRouterService openRouterService,
+                       MeterRegistry meterRegistry,
+                       @Value("${spring.ai.openai.chat.options.model}") String primaryModel,
+                       @Value("${toolforge.chat.router.fallback-models:}") List<String> fallbackModels,
+                       @Value("${toolforge.chat.router.max-concurrent-per-model:200}") int maxConcurrentPerModel,
+                       @Value("${toolforge.chat.router.hedge-after:3s}") Duration hedgeAfter,
+                       @Value("${toolforge.chat.router.first-token-timeout:30s}") Duration firstTokenTimeout,
+                       @Value("${toolforge.chat.router.idle-timeout:60s}") Duration idleTimeout,
+                       @Value("${toolforge.chat.router.breaker.failure-threshold:5}") int failureThreshold,
+                       @Value("${toolforge.chat.router.breaker.open-duration:30s}") Duration openDuration) {
+        this.openRouterService = openRouterService;
+        this.hedgeAfter = hedgeAfter;
+        this.firstTokenTimeout = firstTokenTimeout;
+        this.idleTimeout = idleTimeout;
+
+        Set<String> models = new LinkedHashSet<>();
+        models.add(primaryModel);
+        fallbackModels.stream().map(String::trim).filter(model -> !model.isEmpty()).forEach(models::add);
+
+        List<ModelLane> configuredLanes = new ArrayList<>(models.size());
+        for (String model : models) {
+            ModelLane lane = new ModelLane(model, maxConcurrentPerModel, new CircuitBreaker(failureThreshold, openDuration),
+                    meterRegistry);
+            Gauge.builder("chat.upstream.inflight", lane, ModelLane::inFlight)
+                    .tag("model", model)
+                    .description("Upstream streams currently open per model")
+                    .register(meterRegistry);
+            configuredLanes.add(lane);
+        }
+        this.lanes = List.copyOf(configuredLanes);
+        this.hedgesStarted = Counter.builder("chat.upstream.hedges")
+                .description("Requests that were also sent to a fallback model")
+                .register(meterRegistry);
+        log.info("Configured model routing over {}", models);
+    }
+
+    /**
+     * Streams a completion for the prompt from the best available model, hedging to a fallback
+     * model when the first one is slow to start.
+     *
+     * @param messages       The conversation, ending with the new user message.
+     * @param answeringModel Told which model won, once, before its first chunk is emitted.
+     * @return The raw content chunks of the winning model.
+     */
+    public Flux<String> stream(List<Message> messages, Consumer<String> answeringModel) {
+        return Flux.defer(() -> {
+            List<ModelLane> available = lanes.stream().filter(lane -> lane.breaker.allowsRequests()).toList();
+            if (available.isEmpty()) {
+                return Flux.error(new ModelUnavailableException("All upstream models are unavailable"));
+            }
+
+            ModelLane primary = available.get(0);
+            if (available.size() == 1) {
+                return guarded(primary, messages).doOnSubscribe(subscription -> answeringModel.accept(primary.model));
+            }
+            ModelLane fallback = available.get(1);
+
+            // The hedge starts after hedgeAfter, or straight away if the primary fails before its first token
+            Sinks.Empty<Void> primaryFailed = Sinks.empty();
+            Flux<Chunk> primaryStream = guarded(primary, messages)
+                    .doOnError(e -> primaryFailed.tryEmitEmpty())
+                    .map(text -> new Chunk(primary.model, text));
+            Flux<Chunk> hedgeStream = guarded(fallback, messages)
+                    .doOnSubscribe(subscription -> {
+                        hedgesStarted.increment();
+                        log.info("Model {} has not started answering; hedging to {}", primary.model, fallback.model);
+                    })
+                    .delaySubscription(Mono.firstWithSignal(Mono.delay(hedgeAfter).then(), primaryFailed.asMono()))
+                    .map(text -> new Chunk(fallback.model, text));
+
+            // Only chunks of the winning stream get past firstWithValue, so its first one names the model
+            boolean[] reported = {false};
+            return Flux.firstWithValue(primaryStream, hedgeStream)
+                    .doOnNext(chunk -> {
+                        if (!reported[0]) {
+                            reported[0] = true;
+                            answeringModel.accept(chunk.model());
+                        }
+                    })
+                    .map(Chunk::text);
+        });
+    }
+
+    /**
+     * The model every request tries first while its circuit is closed.
+     */
+    public String getPrimaryModel() {
+        return lanes.get(0).model;
+    }
+
+    private record Chunk(String model, String text) {
+    }
+
+    /**
+     * Streams from one model while holding one of its concurrency permits and reporting the
+     * outcome to its circuit breaker. Fails fast when the breaker is open or no permit is free.
+     */
+    private Flux<String> guarded(ModelLane lane, List<Message> messages) {
+        return Flux.defer(() -> {
+            if (!lane.breaker.tryAcquire()) {
+                return Flux.error(new ModelUnavailableException("Circuit open for model " + lane.model));
+            }
+            if (!lane.permits.tryAcquire()) {
+                lane.breaker.release();
+                return Flux.error(new ModelUnavailableException("Concurrency limit reached for model " + lane.model));
+            }
+            long startNanos = System.nanoTime();
+            long[] firstChunkNanos = {0};
+            int[] chunks = {0};
+            return openRouterService.streamRawChatCompletion(messages, lane.model)
+                    .timeout(Mono.delay(firstTokenTimeout), chunk -> Mono.delay(idleTimeout))
+                    .doOnNext(chunk -> {
+                        if (chunks[0]++ == 0) {
+                            firstChunkNanos[0] = System.nanoTime();
+                            lane.firstTokenTimer.record(firstChunkNanos[0] - startNanos, TimeUnit.NANOSECONDS);
+                        }
+                    })
+                    .doOnComplete(lane.breaker::recordSuccess)
+                    .doOnError(e -> {
+                        log.warn("Upstream model {} failed. Reason: {}", lane.model, e.getMessage());
+                        lane.breaker.recordFailure();
+                    })
+                    .doOnCancel(lane.breaker::release)
+                    .doFinally(signal -> {
+                        lane.permits.release();
+                        long endNanos = System.nanoTime();
+                        lane.streamTimer(ChatStreamMetrics.outcome(signal)).record(endNanos - startNanos, TimeUnit.NANOSECONDS);
+                        // Chunks are roughly tokens; the rate is measured from the first chunk on
+                        if (chunks[0] > 1 && endNanos > firstChunkNanos[0]) {
+                            lane.chunkRate.record((chunks[0] - 1) * 1e9 / (endNanos - firstChunkNanos[0]));
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Thrown when no upstream model can take the request.
+     */
+    public static class ModelUnavailableException extends RuntimeException {
+        public ModelUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class ModelLane {
+        private final String model;
+        private final int maxConcurrent;
+        private final Semaphore permits;
+        private final CircuitBreaker breaker;
+        private final MeterRegistry meterRegistry;
+        private final Timer firstTokenTimer;
+        private final DistributionSummary chunkRate;
+        private final Map<String, Timer> streamTimers = new ConcurrentHashMap<>();
+
+        ModelLane(String model, int maxConcurrent, CircuitBreaker breaker, MeterRegistry meterRegistry) {
+            this.model = model;
+            this.maxConcurrent = maxConcurrent;
+            this.permits = new Semaphore(maxConcurrent);
+            this.breaker = breaker;
+            this.meterRegistry = meterRegistry;
+            this.firstTokenTimer = Timer.builder("chat.upstream.ttft")
+                    .tag("model", model)
+                    .description("Time from opening an upstream stream to its first chunk")
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(Duration.ofSeconds(30))
+                    .register(meterRegistry);
+            this.chunkRate = DistributionSummary.builder("chat.upstream.chunk.rate")
+                    .tag("model", model)
+                    .baseUnit("chunks/s")
+                    .description("Upstream streaming rate after the first chunk")
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(1000.0)
+                    .register(meterRegistry);
+        }
+
+        Timer streamTimer(String outcome) {
+            return streamTimers.computeIfAbsent(outcome, key -> Timer.builder("chat.upstream.duration")
+                    .tag("model", model)
+                    .tag("outcome", key)
+                    .description("Total time an upstream stream was open")
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(Duration.ofMinutes(5))
+                    .register(meterRegistry));
+        }
+
+        double inFlight() {
+            return maxConcurrent - permits.availablePermits();
+        }
+    }
+
+    /**
+     * Consecutive-failure circuit breaker. After failure-threshold failures in a row the circuit opens
+     * for open-duration; then a single trial request is let through, which closes it again on success.
+     */
+    static final class CircuitBreaker {
+        private enum State { CLOSED, OPEN, HALF_OPEN }
+
+        private final int failureThreshold;
+        private final long openNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long openedAt;
+        private boolean trialInFlight;
+
+        CircuitBreaker(int failureThreshold, Duration openDuration) {
+            this.failureThreshold = failureThreshold;
+            this.openNanos = openDuration.toNanos();
+        }
+
+        /**
+         * True if a request would be let through right now, without claiming the half-open trial.
+         */
+        boolean allowsRequests() {
+            lock.lock();
+            try {
+                return switch (state) {
+                    case CLOSED -> true;
+                    case OPEN -> System.nanoTime() - openedAt >= openNanos;
+                    case HALF_OPEN -> !trialInFlight;
+                };
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean tryAcquire() {
+            lock.lock();
+            try {
+                if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                    state = State.HALF_OPEN;
+                    trialInFlight = false;
+                }
+                if (state == State.CLOSED) {
+                    return true;
+                }
+                if (state == State.HALF_OPEN && !trialInFlight) {
+                    trialInFlight = true;
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gives back a half-open trial that ended without an outcome, e.g. a cancelled hedge.
+         */
+        void release() {
+            lock.lock();
+            try {
+                trialInFlight = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void recordSuccess() {
+            lock.lock();
+            try {
+                state = State.CLOSED;
+                consecutiveFailures = 0;
+                trialInFlight = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void recordFailure() {
+            lock.lock();
+            try {
+                consecutiveFailures++;
+                trialInFlight = false;
+                if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                    if (state != State.OPEN) {
+                        log.warn("Opening circuit after {} consecutive upstream failures", consecutiveFailures);
+                    }
+                    state = State.OPEN;
+                    openedAt = System.nanoTime();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
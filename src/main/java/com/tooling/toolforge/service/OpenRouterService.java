@@ -3,12 +3,16 @@ package com.tooling.toolforge.service;
 import com.tooling.toolforge.utils.ChatUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.openai.OpenAiChatOptions;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 
+import java.util.List;
+
 @Service
 @Slf4j
 public class OpenRouterService {
@@ -27,32 +31,51 @@ public class OpenRouterService {
      * @return A Flux<String> emitting response content chunks as they arrive.
      */
     public Flux<String> streamChatCompletion(String message) {
-        Prompt prompt = new Prompt(message);
+        return streamChatCompletion(List.of(new UserMessage(message)));
+    }
+
+    /**
+     * Sends a multi-turn conversation to the configured OpenRouter model and returns a stream
+     * of response content chunks. Earlier turns keep their user/assistant roles, so the
+     * unchanged prefix of a conversation can be served from the provider's prompt cache.
+     *
+     * @param messages The conversation, ending with the new user message.
+     * @return A Flux<String> emitting response content chunks as they arrive.
+     */
+    public Flux<String> streamChatCompletion(List<Message> messages) {
+        return ChatUtils.formatStringFlux(messages.get(messages.size() - 1).getText(), streamRawChatCompletion(messages));
+    }
+
+    /**
+     * Same as {@link #streamChatCompletion(List)} but returns the chunks exactly as the model sent
+     * them, for callers that format the SSE frames themselves.
+     *
+     * @param messages The conversation, ending with the new user message.
+     * @return A Flux<String> emitting unformatted response content chunks as they arrive.
+     */
+    public Flux<String> streamRawChatCompletion(List<Message> messages) {
+        Prompt prompt = new Prompt(messages);
 
-        Flux<String> originalFlux = chatClient.prompt(prompt)
+        return chatClient.prompt(prompt)
                 .stream()
                 .content();
-
-        return ChatUtils.formatStringFlux(message, originalFlux);
     }
 
-
     /**
-     * Sends a prompt to a SPECIFIC OpenRouter model (overriding the default)
-     * and returns a stream of response content chunks.
+     * Same as {@link #streamRawChatCompletion(List)} but sends the conversation to a specific
+     * model instead of the configured default.
      *
-     * @param message The user's message/prompt.
-     * @param model   The specific OpenRouter model identifier to use.
-     * @return A Flux<String> emitting response content chunks as they arrive.
+     * @param messages The conversation, ending with the new user message.
+     * @param model    The OpenRouter model identifier to use.
+     * @return A Flux<String> emitting unformatted response content chunks as they arrive.
      */
-    public Flux<String> streamChatCompletionWithModel(String message, String model) {
-        return chatClient.prompt()
-                // Use .options() to set request-specific configurations
-                .options(OpenAiChatOptions.builder()
-                        .model(model)
-                        .build())
-                .user(message) // Define the user message after setting options
-                .stream()      // Initiate the streaming call
+    public Flux<String> streamRawChatCompletion(List<Message> messages, String model) {
+        Prompt prompt = new Prompt(messages, OpenAiChatOptions.builder()
+                .model(model)
+                .build());
+
+        return chatClient.prompt(prompt)
+                .stream()
                 .content();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,246 @@
+package com.tooling.toolforge.service;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.mongodb.client.MongoClient;
+import com.tooling.toolforge.dto.user.UserProfile;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+/**
+ * The user profiles, in MongoDB, behind a bounded in-process cache keyed by email.
+ * <p>
+ * Upserts are keyed by uid, so replaying a sign-in is harmless. Every upsert evicts the user's old
+ * and new email locally and publishes them on a Redis channel that every node listens to, so other
+ * nodes drop their copy as well; the TTL bounds staleness if a message is lost. Lookups of unknown
+ * emails are cached too, which is safe because creating the user publishes an eviction.
+ */
+@Service
+@Lazy // Created with ProfileController, on the first /users request
+@Slf4j
+public class UserProfileStore {
+
+    static final String INVALIDATION_CHANNEL = "users:invalidate";
+    private static final String EMAIL_INDEX = "email";
+    private static final String REPLACED_EMAIL_FIELD = "replacedEmail";
+
+    private final MongoTemplate mongoTemplate;
+    private final RedisTemplate<String, String> redisTemplate;
+    private final ReactiveStringRedisTemplate reactiveRedisTemplate;
+    private final LoadingCache<String, Optional<UserProfile>> cache;
+    private Disposable invalidations;
+
+    public UserProfileStore(MongoTemplate mongoTemplate,
+                            MongoClient mongoClient,
+                            MongoConverter mongoConverter,
+                            RedisTemplate<String, String> redisTemplate,
+                            ReactiveStringRedisTemplate reactiveRedisTemplate,
+                            MeterRegistry meterRegistry,
+                            @Value("${mongodb.users:}") String usersDatabase,
+                            @Value("${toolforge.users.cache.max-entries:10000}") long maxEntries,
+                            @Value("${toolforge.users.cache.ttl:10m}") Duration ttl) {
+        // Users live in their own database when one is configured; the connection pool is shared
+        this.mongoTemplate = usersDatabase.isBlank()
+                ? mongoTemplate
+                : new MongoTemplate(new SimpleMongoClientDatabaseFactory(mongoClient, usersDatabase), mongoConverter);
+        this.redisTemplate = redisTemplate;
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build(new CacheLoader<>() {
+                    @Override
+                    public Optional<UserProfile> load(String email) {
+                        return Optional.ofNullable(UserProfileStore.this.mongoTemplate.findOne(
+                                Query.query(Criteria.where("email").is(email)), UserProfile.class));
+                    }
+
+                    @Override
+                    public Map<String, Optional<UserProfile>> loadAll(Set<? extends String> emails) {
+                        return findAll(emails);
+                    }
+                });
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "users.profile");
+    }
+
+    @PostConstruct
+    public void start() {
+        try {
+            mongoTemplate.indexOps(UserProfile.class).ensureIndex(new Index()
+                    .on("email", Sort.Direction.ASC)
+                    .unique()
+                    .named(EMAIL_INDEX));
+        } catch (DataAccessException e) {
+            log.error("MongoDB Error: Failed to create indexes for users collection. Reason: {}", e.getMessage(), e);
+        }
+        // Evictions may have been missed while unsubscribed, so every (re)subscription starts cold
+        invalidations = reactiveRedisTemplate.listenToChannel(INVALIDATION_CHANNEL)
+                .doOnSubscribe(subscription -> cache.invalidateAll())
+                .doOnError(e -> log.error("Redis Error: User cache invalidation listener failed. Reason: {}", e.getMessage()))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(30)))
+                .subscribe(message -> cache.invalidate(message.getMessage()));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (invalidations != null) {
+            invalidations.dispose();
+        }
+    }
+
+    /**
+     * Creates or updates the user with profile's uid. Fields left null keep their stored value.
+     * profile's email is normalized in place.
+     * <p>
+     * A pipeline update, so that it can return the stored user and still see the email it replaced,
+     * which is kept in replacedEmail until the next upsert.
+     *
+     * @return The user as stored after the upsert, and whether it was created. An update in the
+     * millisecond the user was created is reported as created too.
+     * @throws DuplicateKeyException If another user has the email; see {@link #isEmailConflict}.
+     */
+    public Upserted upsert(UserProfile profile) {
+        String email = normalizeEmail(profile.getEmail());
+        profile.setEmail(email);
+        // MongoDB dates hold milliseconds; created is told by createdAt == updatedAt
+        Date now = Date.from(Instant.now().truncatedTo(ChronoUnit.MILLIS));
+        Document isNew = new Document("$eq", List.of(new Document("$type", "$email"), "missing"));
+        Document set = new Document("email", literal(email))
+                .append("updatedAt", now)
+                .append("createdAt", new Document("$cond", List.of(isNew, now, "$createdAt")))
+                .append(REPLACED_EMAIL_FIELD, new Document("$cond", List.of(
+                        new Document("$and", List.of(new Document("$not", List.of(isNew)),
+                                new Document("$ne", List.of("$email", literal(email))))),
+                        "$email",
+                        "$$REMOVE")));
+        setIfPresent(set, "displayName", profile.getDisplayName());
+        setIfPresent(set, "photoURL", profile.getPhotoURL());
+        setIfPresent(set, "emailVerified", profile.getEmailVerified());
+        setIfPresent(set, "providerId", profile.getProviderId());
+        AggregationUpdate update = AggregationUpdate.from(List.of(Aggregation.stage(new Document("$set", set))));
+
+        Query query = Query.query(Criteria.where("_id").is(profile.getUid()));
+        FindAndModifyOptions options = FindAndModifyOptions.options().upsert(true).returnNew(true);
+        String collection = mongoTemplate.getCollectionName(UserProfile.class);
+        Document stored;
+        try {
+            stored = mongoTemplate.findAndModify(query, update, options, Document.class, collection);
+        } catch (DuplicateKeyException e) {
+            if (isEmailConflict(e)) {
+                throw e;
+            }
+            // A concurrent first sign-in inserted the same uid; the user exists now, so this updates it
+            stored = mongoTemplate.findAndModify(query, update, options, Document.class, collection);
+        }
+
+        evict(email);
+        String replacedEmail = stored.getString(REPLACED_EMAIL_FIELD);
+        if (replacedEmail != null) {
+            evict(replacedEmail);
+        }
+        UserProfile user = mongoTemplate.getConverter().read(UserProfile.class, stored);
+        return new Upserted(user, user.getCreatedAt() != null && user.getCreatedAt().equals(user.getUpdatedAt()));
+    }
+
+    /**
+     * Looks a user up by email, case-insensitively.
+     */
+    public Optional<UserProfile> findByEmail(String email) {
+        return cache.get(normalizeEmail(email));
+    }
+
+    /**
+     * Looks several users up by email; emails not in the cache are read in one query.
+     *
+     * @return The users found, keyed by lower-cased email.
+     */
+    public Map<String, UserProfile> findByEmails(Collection<String> emails) {
+        Set<String> normalized = new LinkedHashSet<>();
+        for (String email : emails) {
+            normalized.add(normalizeEmail(email));
+        }
+        Map<String, UserProfile> found = new LinkedHashMap<>();
+        cache.getAll(normalized).forEach((email, profile) -> profile.ifPresent(user -> found.put(email, user)));
+        return found;
+    }
+
+    /**
+     * Whether a duplicate key error came from the unique email index, that is another uid already
+     * has the email.
+     */
+    public static boolean isEmailConflict(DuplicateKeyException e) {
+        String message = e.getMessage();
+        return message != null && message.contains("index: " + EMAIL_INDEX + " ");
+    }
+
+    public static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private Map<String, Optional<UserProfile>> findAll(Set<? extends String> emails) {
+        Map<String, Optional<UserProfile>> result = new HashMap<>();
+        for (UserProfile profile : mongoTemplate.find(Query.query(Criteria.where("email").in(emails)), UserProfile.class)) {
+            result.put(profile.getEmail(), Optional.of(profile));
+        }
+        for (String email : emails) {
+            result.putIfAbsent(email, Optional.empty());
+        }
+        return result;
+    }
+
+    private void evict(String email) {
+        cache.invalidate(email);
+        try {
+            redisTemplate.convertAndSend(INVALIDATION_CHANNEL, email);
+        } catch (DataAccessException e) {
+            log.error("Redis Error: Failed to publish user cache invalidation. Reason: {}", e.getMessage(), e);
+        }
+    }
+
+    private static void setIfPresent(Document set, String field, Object value) {
+        if (value != null) {
+            set.append(field, value instanceof String text ? literal(text) : value);
+        }
+    }
+
+    // Values from users are wrapped in $literal so that a leading '$' is not read as a field path
+    private static Document literal(String value) {
+        return new Document("$literal", value);
+    }
+
+    /**
+     * The user as stored by {@link #upsert}, and whether the upsert created it.
+     */
+    public record Upserted(UserProfile profile, boolean created) {
+    }
+}
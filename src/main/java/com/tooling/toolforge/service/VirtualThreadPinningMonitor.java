@@ -0,0 +1,105 @@
+package com.tooling.toolforge.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Reports virtual threads that block while pinned to their carrier thread, typically inside a
+ * {@code synchronized} block or a native frame. A pinned virtual thread holds a carrier for the whole
+ * blocking call, so a few of them around slow I/O starve every other virtual thread.
+ * <p>
+ * Listens for the JFR {@code jdk.VirtualThreadPinned} event in-process, records each one in the
+ * {@code jvm.threads.virtual.pinned} timer and logs the stack, at most once per call site per
+ * log-interval. Only runs when spring.threads.virtual.enabled is set.
+ */
+@Service
+@Slf4j
+public class VirtualThreadPinningMonitor {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final int LOGGED_FRAMES = 12;
+
+    private final boolean enabled;
+    private final Duration threshold;
+    private final Timer pinned;
+    private final Cache<String, Boolean> recentlyLogged;
+    private RecordingStream recording;
+
+    public VirtualThreadPinningMonitor(MeterRegistry meterRegistry,
+                                       @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads,
+                                       @Value("${toolforge.threads.pinning.enabled:true}") boolean monitorEnabled,
+                                       @Value("${toolforge.threads.pinning.threshold:20ms}") Duration threshold,
+                                       @Value("${toolforge.threads.pinning.log-interval:1m}") Duration logInterval) {
+        this.enabled = virtualThreads && monitorEnabled;
+        this.threshold = threshold;
+        this.pinned = Timer.builder("jvm.threads.virtual.pinned")
+                .description("Virtual threads that blocked while pinned to their carrier thread")
+                .register(meterRegistry);
+        this.recentlyLogged = Caffeine.newBuilder()
+                .maximumSize(1000)
+                .expireAfterWrite(logInterval)
+                .build();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            RecordingStream stream = new RecordingStream();
+            stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+            stream.onEvent(PINNED_EVENT, this::onPinned);
+            stream.startAsync();
+            recording = stream;
+            log.info("Watching for virtual threads pinned longer than {}", threshold);
+        } catch (RuntimeException e) {
+            // JFR can be unavailable, e.g. in a stripped-down runtime image
+            log.warn("Virtual thread pinning monitor not started. Reason: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+
+    private void onPinned(RecordedEvent event) {
+        pinned.record(event.getDuration());
+        String stack = describe(event.getStackTrace());
+        if (recentlyLogged.asMap().putIfAbsent(stack, Boolean.TRUE) == null) {
+            log.warn("Virtual thread #{} was pinned to its carrier for {} ms at:\n{}",
+                    event.getThread() != null ? event.getThread().getJavaThreadId() : -1,
+                    event.getDuration().toMillis(), stack);
+        }
+    }
+
+    private static String describe(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "\t(no stack trace)";
+        }
+        List<RecordedFrame> frames = stackTrace.getFrames();
+        return frames.stream()
+                .limit(LOGGED_FRAMES)
+                .map(frame -> "\tat " + frame.getMethod().getType().getName() + "." + frame.getMethod().getName()
+                        + "(line " + frame.getLineNumber() + ")")
+                .collect(Collectors.joining("\n"));
+    }
+}
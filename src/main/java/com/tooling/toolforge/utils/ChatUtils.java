@@ -1,29 +1,80 @@
 package com.tooling.toolforge.utils;
 
 import com.tooling.toolforge.dto.chat.ChatRepository;
-import com.tooling.toolforge.dto.chat.ChatSession;
 import com.tooling.toolforge.dto.chat.Message;
+import com.tooling.toolforge.dto.chat.SessionMessagesSlice;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
-import java.util.Objects;
+import java.util.Locale;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.*;
 
 @Slf4j
 @Service
 public class ChatUtils {
 
+    private static final DateTimeFormatter MONTH_YEAR_FORMATTER = DateTimeFormatter.ofPattern("MMMM yyyy", Locale.ENGLISH);
+
+    private static final String LOCK_KEY_PREFIX = "chat:lock:";
+    private static final Duration LOCK_POLL_INTERVAL = Duration.ofMillis(50);
+    private static final RedisScript<Long> RELEASE_LOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0",
+            Long.class);
+
     private final ChatRepository chatRepository;
+    private final RedisScript<Long> populateScript;
+    private final Duration lockTtl;
+    private final Duration lockWait;
+    private final int maxEntries;
+    private final ConcurrentMap<String, CompletableFuture<Void>> inFlightLoads = new ConcurrentHashMap<>();
 
-    public ChatUtils(ChatRepository chatRepository) {
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Counter cacheCoalesced;
+    private final Timer cacheLoadTimer;
+
+    public ChatUtils(ChatRepository chatRepository,
+                     MeterRegistry meterRegistry,
+                     @Value("${toolforge.chat.history-cache.ttl:24h}") Duration cacheTtl,
+                     @Value("${toolforge.chat.history-cache.lock-ttl:10s}") Duration lockTtl,
+                     @Value("${toolforge.chat.history-cache.lock-wait:2s}") Duration lockWait,
+                     @Value("${toolforge.chat.history-cache.max-entries:200}") int maxEntries) {
         this.chatRepository = chatRepository;
+        this.lockTtl = lockTtl;
+        this.lockWait = lockWait;
+        this.maxEntries = maxEntries;
+        // Pushes the history only if the key is still missing and sets its TTL in the same atomic step
+        this.populateScript = new DefaultRedisScript<>(
+                "if redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+                        + "for i = 1, #ARGV do redis.call('RPUSH', KEYS[1], ARGV[i]) end "
+                        + "redis.call('EXPIRE', KEYS[1], " + cacheTtl.toSeconds() + ") "
+                        + "return #ARGV",
+                Long.class);
+
+        this.cacheHits = Counter.builder("chat.history.cache.requests").tag("result", "hit")
+                .description("Conversation lookups served from Redis").register(meterRegistry);
+        this.cacheMisses = Counter.builder("chat.history.cache.requests").tag("result", "miss")
+                .description("Conversation lookups that had to load from MongoDB").register(meterRegistry);
+        this.cacheCoalesced = Counter.builder("chat.history.cache.coalesced")
+                .description("Misses that waited for a load already in flight on this node").register(meterRegistry);
+        this.cacheLoadTimer = Timer.builder("chat.history.cache.load")
+                .description("Time to populate a conversation in Redis from MongoDB").register(meterRegistry);
     }
 
     /**
@@ -41,7 +92,7 @@ public class ChatUtils {
                     }
 
                     // Check if it starts with exactly one space
-                    if (chunk.startsWith(" ") && (!chunk.startsWith("  "))) {
+                    if (hasSingleLeadingSpace(chunk)) {
                         // It starts with a single space. Prepend another one.
                         log.trace("Doubling leading space for chunk: '{}'", chunk);
                         return " " + chunk;
@@ -55,6 +106,14 @@ public class ChatUtils {
                 .doOnComplete(() -> log.info("AI stream completed"));
     }
 
+    /**
+     * True if the text starts with exactly one space. SSE clients strip one leading space from
+     * each data line, so such chunks are sent with the space doubled.
+     */
+    public static boolean hasSingleLeadingSpace(CharSequence text) {
+        return text.length() > 0 && text.charAt(0) == ' ' && (text.length() == 1 || text.charAt(1) != ' ');
+    }
+
     public static String getDayWithOrdinalSuffix(int day) {
         if (day >= 1 && day <= 31) {
             if (day >= 11 && day <= 13) {
@@ -70,40 +129,160 @@ public class ChatUtils {
         throw new IllegalArgumentException("Invalid day of month: " + day);
     }
 
+    /**
+     * Formats a day as the history group label, e.g. "3rd May 2025".
+     */
+    public static String formatHistoryDateLabel(LocalDate localDate) {
+        return getDayWithOrdinalSuffix(localDate.getDayOfMonth()) + " " + MONTH_YEAR_FORMATTER.format(localDate);
+    }
+
+    /**
+     * Builds the history title from the first message of a session, falling back to "Chat".
+     * Titles longer than maxLength are cut and end with "...".
+     */
+    public static String buildSessionTitle(String firstMessage, int maxLength) {
+        if (firstMessage == null || firstMessage.isBlank()) {
+            return "Chat";
+        }
+        if (firstMessage.length() > maxLength) {
+            return firstMessage.substring(0, maxLength - 3) + "...";
+        }
+        return firstMessage;
+    }
+
+    /**
+     * Makes sure the session's conversation is cached in Redis, loading it from MongoDB on a miss.
+     * <p>
+     * Concurrent misses for the same session are collapsed: on this node only one caller loads while
+     * the others wait for it, and across nodes a short SET NX lock keeps other instances from hitting
+     * MongoDB for the same session. The list is written by a Lua script that only populates a key that
+     * is still missing, so a race can never duplicate the history, and the key gets a TTL. Only the
+     * last max-entries messages are loaded.
+     */
     public void checkRedisAndLoadIfAbsent(RedisTemplate<String, String> redisTemplate, String redisKey) {
         // Check if session history needs to be populated from MongoDB to Redis
         Boolean keyExistsInRedis = redisTemplate.hasKey(redisKey);
-        if (keyExistsInRedis == null || !keyExistsInRedis) {
-            log.info("SessionId {} not found in Redis. Attempting to populate from MongoDB.", redisKey);
+        if (Boolean.TRUE.equals(keyExistsInRedis)) {
+            recordCacheHit();
+            return;
+        }
+        loadAfterMiss(redisTemplate, redisKey);
+    }
+
+    /**
+     * Counts a conversation lookup that the caller found in Redis itself.
+     */
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    /**
+     * The miss half of {@link #checkRedisAndLoadIfAbsent}, for callers that already found the key
+     * missing in Redis.
+     */
+    public void loadAfterMiss(RedisTemplate<String, String> redisTemplate, String redisKey) {
+        cacheMisses.increment();
+
+        CompletableFuture<Void> load = new CompletableFuture<>();
+        CompletableFuture<Void> inFlight = inFlightLoads.putIfAbsent(redisKey, load);
+        if (inFlight != null) {
+            cacheCoalesced.increment();
+            awaitLoad(inFlight, redisKey);
+            return;
+        }
+
+        try {
+            cacheLoadTimer.record(() -> loadWithLock(redisTemplate, redisKey));
+        } finally {
+            inFlightLoads.remove(redisKey, load);
+            load.complete(null);
+        }
+    }
+
+    private void awaitLoad(CompletableFuture<Void> inFlight, String redisKey) {
+        try {
+            inFlight.get(lockWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Timed out waiting for in-flight Redis population of session {}. Proceeding without it.", redisKey);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("In-flight Redis population of session {} failed. Reason: {}", redisKey, e.getMessage());
+        }
+    }
+
+    private void loadWithLock(RedisTemplate<String, String> redisTemplate, String redisKey) {
+        String lockKey = LOCK_KEY_PREFIX + redisKey;
+        String lockToken = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(lockKey, lockToken, lockTtl);
+
+        if (!Boolean.TRUE.equals(locked)) {
+            // Another node is loading this session; give it a moment before loading ourselves
+            if (waitForKey(redisTemplate, redisKey)) {
+                return;
+            }
+            log.info("Redis population of session {} by another node did not finish in {}. Loading it here.", redisKey, lockWait);
+        }
+
+        try {
+            loadFromMongo(redisTemplate, redisKey);
+        } finally {
+            if (Boolean.TRUE.equals(locked)) {
+                redisTemplate.execute(RELEASE_LOCK_SCRIPT, List.of(lockKey), lockToken);
+            }
+        }
+    }
+
+    private boolean waitForKey(RedisTemplate<String, String> redisTemplate, String redisKey) {
+        long deadline = System.nanoTime() + lockWait.toNanos();
+        while (System.nanoTime() < deadline) {
             try {
-                Optional<ChatSession> sessionOptional = chatRepository.findById(redisKey);
-                if (sessionOptional.isPresent()) {
-                    ChatSession mongoSession = sessionOptional.get();
-                    List<Message> messages = mongoSession.getMessages();
-                    if (messages != null && !messages.isEmpty()) {
-                        List<String> messageContents = messages.stream()
-                                .map(Message::getContent)
-                                .filter(Objects::nonNull) // Ensure no null content is pushed
-                                .collect(Collectors.toList());
-                        if (!messageContents.isEmpty()) {
-                            redisTemplate.opsForList().rightPushAll(redisKey, messageContents);
-                            log.info("Successfully populated Redis with {} messages from MongoDB for session {}.", messageContents.size(), redisKey);
+                Thread.sleep(LOCK_POLL_INTERVAL.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (Boolean.TRUE.equals(redisTemplate.hasKey(redisKey))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void loadFromMongo(RedisTemplate<String, String> redisTemplate, String redisKey) {
+        log.info("SessionId {} not found in Redis. Attempting to populate from MongoDB.", redisKey);
+        try {
+            // Only the last max-entries turns are kept in Redis; older ones stay in MongoDB
+            Optional<SessionMessagesSlice> sliceOptional = chatRepository.findMessagesPage(redisKey, 1, maxEntries);
+            if (sliceOptional.isPresent()) {
+                List<Message> messages = sliceOptional.get().getMessages();
+                if (messages != null && !messages.isEmpty()) {
+                    Object[] messageContents = messages.stream()
+                            .filter(message -> message.getContent() != null) // Ensure no null content is pushed
+                            .map(ConversationCodec::encode)
+                            .toArray();
+                    if (messageContents.length > 0) {
+                        Long pushed = redisTemplate.execute(populateScript, List.of(redisKey), messageContents);
+                        if (pushed != null && pushed > 0) {
+                            log.info("Successfully populated Redis with {} messages from MongoDB for session {}.", pushed, redisKey);
                         } else {
-                            log.info("Session {} found in MongoDB, but no message content to populate Redis.", redisKey);
+                            log.info("Session {} was populated in Redis concurrently; skipped duplicate population.", redisKey);
                         }
                     } else {
-                        log.info("Session {} found in MongoDB but has no messages.", redisKey);
+                        log.info("Session {} found in MongoDB, but no message content to populate Redis.", redisKey);
                     }
                 } else {
-                    log.info("SessionId {} not found in MongoDB either. Proceeding with an empty history for Redis.", redisKey);
+                    log.info("Session {} found in MongoDB but has no messages.", redisKey);
                 }
-            } catch (DataAccessException e) {
-                log.error("MongoDB Error: Failed to fetch session {} from MongoDB for Redis population. Reason: {}", redisKey, e.getMessage(), e);
-                // Continue, Redis will be treated as empty for this session if population fails
-            } catch (Exception e) {
-                log.error("Unexpected Error: Failed during Redis population from MongoDB for session {}. Reason: {}", redisKey, e.getMessage(), e);
-                // Continue
+            } else {
+                log.info("SessionId {} not found in MongoDB either. Proceeding with an empty history for Redis.", redisKey);
             }
+        } catch (DataAccessException e) {
+            log.error("MongoDB Error: Failed to fetch session {} from MongoDB for Redis population. Reason: {}", redisKey, e.getMessage(), e);
+            // Continue, Redis will be treated as empty for this session if population fails
+        } catch (Exception e) {
+            log.error("Unexpected Error: Failed during Redis population from MongoDB for session {}. Reason: {}", redisKey, e.getMessage(), e);
+            // Continue
         }
     }
 }
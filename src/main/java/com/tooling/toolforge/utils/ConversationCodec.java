@@ -0,0 +1,76 @@
+package com.tooling.toolforge.utils;
+
+import com.tooling.toolforge.dto.chat.Message;
+
+/**
+ * Compact role-tagged encoding for conversation entries cached in Redis.
+ * <p>
+ * An entry is a record-separator character, a one-letter role tag and the raw content,
+ * e.g. {@code "\u001Eu" + "How do I ..."}. That costs two characters per entry instead of
+ * a JSON wrapper. Entries written before roles were cached carry no tag and decode as user turns.
+ */
+public final class ConversationCodec {
+
+    public static final String ROLE_USER = "user";
+    public static final String ROLE_BOT = "bot";
+    public static final String ROLE_SYSTEM = "system";
+
+    private static final char TAG_MARKER = '\u001E';
+    private static final char TAG_USER = 'u';
+    private static final char TAG_BOT = 'a';
+    private static final char TAG_SYSTEM = 's';
+
+    private ConversationCodec() {
+    }
+
+    public static String encode(String role, String content) {
+        String safeContent = content != null ? content : "";
+        return new StringBuilder(safeContent.length() + 2)
+                .append(TAG_MARKER)
+                .append(tagFor(role))
+                .append(safeContent)
+                .toString();
+    }
+
+    public static String encode(Message message) {
+        return encode(message.getRole(), message.getContent());
+    }
+
+    public static Message decode(String entry) {
+        if (entry == null) {
+            return new Message(ROLE_USER, "");
+        }
+        if (entry.length() >= 2 && entry.charAt(0) == TAG_MARKER) {
+            return new Message(roleFor(entry.charAt(1)), entry.substring(2));
+        }
+        return new Message(ROLE_USER, entry);
+    }
+
+    /**
+     * Length of the content carried by an encoded entry, without decoding it.
+     */
+    public static int contentLength(String entry) {
+        if (entry == null) {
+            return 0;
+        }
+        return entry.length() >= 2 && entry.charAt(0) == TAG_MARKER ? entry.length() - 2 : entry.length();
+    }
+
+    private static char tagFor(String role) {
+        if (ROLE_BOT.equals(role) || "assistant".equals(role)) {
+            return TAG_BOT;
+        }
+        if (ROLE_SYSTEM.equals(role)) {
+            return TAG_SYSTEM;
+        }
+        return TAG_USER;
+    }
+
+    private static String roleFor(char tag) {
+        return switch (tag) {
+            case TAG_BOT -> ROLE_BOT;
+            case TAG_SYSTEM -> ROLE_SYSTEM;
+            default -> ROLE_USER;
+        };
+    }
+}
@@ -0,0 +1,287 @@
+package com.tooling.toolforge.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.exc.StreamConstraintsException;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.InvalidPathException;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import com.jayway.jsonpath.spi.json.JacksonJsonNodeJsonProvider;
+import com.jayway.jsonpath.spi.mapper.JacksonMappingProvider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled JSONPath expression. Paths made only of names, indexes, wildcards and recursive
+ * descent ({@code $.a[*].b}, {@code $..id}, {@code $['x'][0]}) are matched against the token
+ * stream, so only the matched values are ever read. Anything else (filters, slices, unions,
+ * negative indexes, functions) is evaluated by Jayway JsonPath over a full tree. Streamed
+ * matches come out in document order, where Jayway lists recursive-descent matches level by level.
+ * Instances are immutable and thread-safe.
+ */
+public final class JsonPathQuery {
+
+    private static final Configuration TREE_CONFIGURATION = Configuration.builder()
+            .jsonProvider(new JacksonJsonNodeJsonProvider())
+            .mappingProvider(new JacksonMappingProvider())
+            .options(Option.ALWAYS_RETURN_LIST, Option.SUPPRESS_EXCEPTIONS)
+            .build();
+
+    private static final Pattern SEGMENT = Pattern.compile(
+            "\\.\\.|\\.([A-Za-z0-9_$-]+)|\\.\\*|\\[\\*]|\\[(\\d+)]|\\['([^'\\\\,]*)']|\\[\"([^\"\\\\,]*)\"]");
+
+    private static final Object WILDCARD = new Object();
+    private static final Object DEEP_SCAN = new Object();
+
+    private final String expression;
+    private final JsonPath jsonPath;
+    // Field names (String), indexes (Integer), WILDCARD and DEEP_SCAN; null when not streamable
+    private final List<Object> segments;
+    private final boolean deepScan;
+
+    private JsonPathQuery(String expression, JsonPath jsonPath, List<Object> segments) {
+        this.expression = expression;
+        this.jsonPath = jsonPath;
+        this.segments = segments;
+        this.deepScan = segments != null && segments.contains(DEEP_SCAN);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the expression is not valid JSONPath.
+     */
+    public static JsonPathQuery compile(String expression) {
+        JsonPath jsonPath;
+        try {
+            jsonPath = JsonPath.compile(expression);
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("Invalid JSONPath: " + e.getMessage(), e);
+        }
+        return new JsonPathQuery(expression, jsonPath, parseSegments(expression.trim()));
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * True when {@link #select(JsonParser, JsonGenerator)} can be used instead of building a tree.
+     */
+    public boolean isStreaming() {
+        return segments != null;
+    }
+
+    /**
+     * Writes every value matching the path to out, in document order, reading the current value of
+     * the parser (which must be positioned on its first token). Subtrees that cannot contain a match
+     * are skipped without being read.
+     *
+     * @param maxTreeBytes Cap on the size of a recursive-descent match, which is read into a tree
+     *                     to find the matches nested inside it.
+     * @throws StreamConstraintsException If such a match is larger than maxTreeBytes.
+     */
+    public void select(JsonParser parser, JsonGenerator out, long maxTreeBytes) throws IOException {
+        if (segments == null) {
+            throw new IllegalStateException("JSONPath " + expression + " cannot be evaluated on a stream");
+        }
+        walk(parser, new ArrayList<>(), out, maxTreeBytes);
+    }
+
+    /**
+     * Evaluates the path over a full tree.
+     */
+    public List<JsonNode> select(JsonNode root) {
+        JsonNode result = jsonPath.read(root, TREE_CONFIGURATION);
+        List<JsonNode> matches = new ArrayList<>();
+        if (result != null) {
+            result.forEach(matches::add);
+        }
+        return matches;
+    }
+
+    private void walk(JsonParser parser, List<Object> path, JsonGenerator out, long maxTreeBytes) throws IOException {
+        if (matches(path, 0, 0)) {
+            if (!deepScan) {
+                // A fixed-length path cannot match anything below this value
+                out.copyCurrentStructure(parser);
+                return;
+            }
+            JsonNode node = readTree(parser, maxTreeBytes);
+            out.writeTree(node);
+            walkTree(node, path, out);
+            return;
+        }
+        if (!canExtend(path, 0, 0)) {
+            parser.skipChildren();
+            return;
+        }
+
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                path.add(parser.currentName());
+                parser.nextToken();
+                walk(parser, path, out, maxTreeBytes);
+                path.removeLast();
+            }
+        } else if (token == JsonToken.START_ARRAY) {
+            int index = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                path.add(index++);
+                walk(parser, path, out, maxTreeBytes);
+                path.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Reads the current value into a tree, failing as soon as it has consumed more than maxBytes of
+     * input. A scalar is a single token, so it is only checked once read.
+     */
+    public static JsonNode readTree(JsonParser parser, long maxBytes) throws IOException {
+        long start = offset(parser);
+        JsonParser limited = new JsonParserDelegate(parser) {
+            @Override
+            public JsonToken nextToken() throws IOException {
+                JsonToken token = super.nextToken();
+                checkLength(delegate, start, maxBytes);
+                return token;
+            }
+        };
+        JsonNode node = parser.getCodec().readTree(limited);
+        if (!node.isContainerNode()) {
+            checkLength(parser, start, maxBytes);
+        }
+        return node;
+    }
+
+    private static void checkLength(JsonParser parser, long start, long maxBytes) throws StreamConstraintsException {
+        if (offset(parser) - start > maxBytes) {
+            throw new StreamConstraintsException("JSON value is longer than the maximum allowed (" + maxBytes + " bytes)");
+        }
+    }
+
+    private static long offset(JsonParser parser) {
+        JsonLocation location = parser.currentLocation();
+        return Math.max(location.getByteOffset(), location.getCharOffset());
+    }
+
+    // Nested matches inside a value that already matched a recursive-descent path
+    private void walkTree(JsonNode node, List<Object> path, JsonGenerator out) throws IOException {
+        if (node.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                path.add(field.getKey());
+                visitTree(field.getValue(), path, out);
+                path.removeLast();
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                path.add(i);
+                visitTree(node.get(i), path, out);
+                path.removeLast();
+            }
+        }
+    }
+
+    private void visitTree(JsonNode node, List<Object> path, JsonGenerator out) throws IOException {
+        if (matches(path, 0, 0)) {
+            out.writeTree(node);
+        }
+        if (canExtend(path, 0, 0)) {
+            walkTree(node, path, out);
+        }
+    }
+
+    // Does the concrete path match the pattern exactly?
+    private boolean matches(List<Object> path, int segment, int position) {
+        if (segment == segments.size()) {
+            return position == path.size();
+        }
+        if (position == path.size()) {
+            return false;
+        }
+        Object expected = segments.get(segment);
+        if (expected == DEEP_SCAN) {
+            return matches(path, segment + 1, position) || matches(path, segment, position + 1);
+        }
+        return stepMatches(expected, path.get(position)) && matches(path, segment + 1, position + 1);
+    }
+
+    // Could the pattern match the concrete path or something below it?
+    private boolean canExtend(List<Object> path, int segment, int position) {
+        if (position == path.size()) {
+            return segment < segments.size();
+        }
+        if (segment == segments.size()) {
+            return false;
+        }
+        Object expected = segments.get(segment);
+        if (expected == DEEP_SCAN) {
+            return canExtend(path, segment + 1, position) || canExtend(path, segment, position + 1);
+        }
+        return stepMatches(expected, path.get(position)) && canExtend(path, segment + 1, position + 1);
+    }
+
+    private static boolean stepMatches(Object expected, Object actual) {
+        return expected == WILDCARD || expected.equals(actual);
+    }
+
+    private static List<Object> parseSegments(String expression) {
+        if (!expression.startsWith("$")) {
+            return null;
+        }
+        List<Object> segments = new ArrayList<>();
+        Matcher matcher = SEGMENT.matcher(expression);
+        int position = 1;
+        while (position < expression.length()) {
+            if (!matcher.find(position) || matcher.start() != position) {
+                return null;
+            }
+            String token = matcher.group();
+            position = matcher.end();
+            if (token.equals("..")) {
+                // Recursive descent must be followed by a name, index or wildcard
+                if (!segments.isEmpty() && segments.getLast() == DEEP_SCAN) {
+                    return null;
+                }
+                segments.add(DEEP_SCAN);
+                // "..name" and "..*" are written without the usual leading dot
+                String rest = expression.substring(position);
+                if (!rest.startsWith("[")) {
+                    expression = expression.substring(0, position) + "." + rest;
+                    matcher = SEGMENT.matcher(expression);
+                }
+            } else if (matcher.group(1) != null) {
+                segments.add(matcher.group(1));
+            } else if (matcher.group(2) != null) {
+                try {
+                    segments.add(Integer.parseInt(matcher.group(2)));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else if (matcher.group(3) != null) {
+                segments.add(matcher.group(3));
+            } else if (matcher.group(4) != null) {
+                segments.add(matcher.group(4));
+            } else {
+                segments.add(WILDCARD);
+            }
+        }
+        if (!segments.isEmpty() && segments.getLast() == DEEP_SCAN) {
+            return null;
+        }
+        return segments;
+    }
+}
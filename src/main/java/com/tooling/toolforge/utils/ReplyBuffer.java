@@ -0,0 +1,45 @@
+package com.tooling.toolforge.utils;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Growable buffer that accumulates a streamed reply. Appends come from the upstream thread while
+ * completion or cancellation may read it from another, so access is guarded by a lock.
+ */
+public class ReplyBuffer {
+
+    private final StringBuilder reply;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public ReplyBuffer(int initialCapacity) {
+        this.reply = new StringBuilder(initialCapacity);
+    }
+
+    public void append(CharSequence chunk) {
+        lock.lock();
+        try {
+            reply.append(chunk);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int length() {
+        lock.lock();
+        try {
+            return reply.length();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return reply.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.tooling.toolforge.utils;
+
+import com.tooling.toolforge.dto.history.SearchSnippet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Turns a search query into terms and cuts highlighted snippets out of matching messages.
+ * Matching here is a case-insensitive substring match on the terms; MongoDB's text search
+ * decides which sessions match, with stemming, so a hit can occasionally come without a snippet.
+ */
+public final class SearchHighlighter {
+
+    public static final int MAX_TERMS = 10;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final Pattern TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final String ELLIPSIS = "…";
+
+    private SearchHighlighter() {
+    }
+
+    /**
+     * The distinct lower-cased words of a query, at most MAX_TERMS, ignoring one-character words.
+     */
+    public static List<String> terms(String query) {
+        if (query == null) {
+            return List.of();
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        for (String word : TERM_SEPARATOR.split(query.toLowerCase(Locale.ROOT))) {
+            if (word.length() >= MIN_TERM_LENGTH && terms.size() < MAX_TERMS) {
+                terms.add(word);
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * A case-insensitive pattern matching any of the terms literally.
+     */
+    public static Pattern pattern(List<String> terms) {
+        return Pattern.compile(regex(terms), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    /**
+     * The same alternation as {@link #pattern}, as a regex string MongoDB's $regexMatch accepts.
+     */
+    public static String regex(List<String> terms) {
+        return terms.stream().map(Pattern::quote).collect(Collectors.joining("|"));
+    }
+
+    /**
+     * Cuts a window of about maxChars around the first match out of content and marks every match
+     * inside it.
+     *
+     * @return The snippet, or null when no term occurs in content.
+     */
+    public static SearchSnippet snippet(String role, String content, Pattern pattern, int maxChars) {
+        if (content == null) {
+            return null;
+        }
+        Matcher matcher = pattern.matcher(content);
+        if (!matcher.find()) {
+            return null;
+        }
+        // Start a little before the first match, so it is read in context
+        int start = Math.max(0, matcher.start() - maxChars / 4);
+        int end = Math.min(content.length(), start + maxChars);
+        start = Math.max(0, Math.min(start, end - maxChars));
+        start = wordBoundary(content, start, false);
+        end = wordBoundary(content, end, true);
+
+        String prefix = start > 0 ? ELLIPSIS : "";
+        String window = content.substring(start, end);
+        List<int[]> highlights = new ArrayList<>();
+        Matcher inWindow = pattern.matcher(window);
+        while (inWindow.find()) {
+            highlights.add(new int[]{prefix.length() + inWindow.start(), prefix.length() + inWindow.end()});
+        }
+        String text = prefix + window + (end < content.length() ? ELLIPSIS : "");
+        return new SearchSnippet(role, text, highlights);
+    }
+
+    // Moves a cut point off the middle of a word: forward for the end of a window, backward for the start
+    private static int wordBoundary(String content, int index, boolean forward) {
+        if (index <= 0 || index >= content.length()) {
+            return index;
+        }
+        int limit = 16;
+        int i = index;
+        while (limit-- > 0 && i > 0 && i < content.length() && !Character.isWhitespace(content.charAt(forward ? i : i - 1))) {
+            i += forward ? 1 : -1;
+        }
+        return limit < 0 ? index : i;
+    }
+}
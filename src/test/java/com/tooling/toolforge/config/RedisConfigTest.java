@@ -0,0 +1,87 @@
+package com.tooling.toolforge.config;
+
+import io.lettuce.core.resource.ClientResources;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+class RedisConfigTest {
+
+    private static RedisServer redisServer;
+    private static int port;
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = new RedisServer(port);
+        redisServer.start();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        redisServer.stop();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void poolGaugesFollowBorrowedConnections() {
+        RedisConfig config = new RedisConfig();
+        ReflectionTestUtils.setField(config, "redisHost", "localhost");
+        ReflectionTestUtils.setField(config, "redisPort", port);
+        ReflectionTestUtils.setField(config, "redisPassword", "");
+        ReflectionTestUtils.setField(config, "mode", "standalone");
+        ReflectionTestUtils.setField(config, "commandTimeout", Duration.ofSeconds(2));
+        ReflectionTestUtils.setField(config, "shutdownTimeout", Duration.ZERO);
+        ReflectionTestUtils.setField(config, "poolEnabled", true);
+        ReflectionTestUtils.setField(config, "poolMaxActive", 4);
+        ReflectionTestUtils.setField(config, "poolMaxIdle", 4);
+        ReflectionTestUtils.setField(config, "poolMaxWait", Duration.ofSeconds(1));
+        LettuceConnectionFactory connectionFactory = config.redisConnectionFactory(mock(ObjectProvider.class));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        config.redisPoolMetrics().bindTo(registry);
+
+        try {
+            // The shared connection is borrowed from the pool once and held
+            try (RedisConnection shared = connectionFactory.getConnection()) {
+                shared.ping();
+            }
+            assertEquals(1, gauge(registry, "chat.redis.pool.active"));
+
+            // A pipeline takes a dedicated connection, which comes from the pool as well
+            RedisConnection connection = connectionFactory.getConnection();
+            connection.openPipeline();
+            connection.ping();
+            assertEquals(2, gauge(registry, "chat.redis.pool.active"));
+            assertEquals(0, gauge(registry, "chat.redis.pool.waiters"));
+
+            connection.closePipeline();
+            connection.close();
+            assertEquals(1, gauge(registry, "chat.redis.pool.active"));
+            assertEquals(1, gauge(registry, "chat.redis.pool.idle"));
+        } finally {
+            connectionFactory.destroy();
+        }
+        assertEquals(0, gauge(registry, "chat.redis.pool.idle"));
+    }
+
+    private static double gauge(SimpleMeterRegistry registry, String name) {
+        return registry.get(name).gauge().value();
+    }
+}
@@ -0,0 +1,214 @@
+package com.tooling.toolforge.controller;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.FluxExchangeResult;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Opens 500 concurrent chat streams over HTTP against the running application, backed by real
+ * Redis and MongoDB containers and a stub OpenAI-compatible upstream that answers after 20 ms, and
+ * checks that p99 time-to-first-token stays under 500 ms and every stream completes.
+ * Run with: mvn test -Pload-tests -Dtest=StreamingControllerLoadTest
+ */
+@Tag("load")
+@Slf4j
+@Testcontainers(disabledWithoutDocker = true)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.ai.openai.api-key=load-test",
+        "spring.ai.openai.chat.options.model=stub-model",
+        "spring.data.mongodb.database=toolforge_load",
+        "spring.data.mongodb.ssl.enabled=false",
+        "mongodb.users=toolforge_load_users",
+        "spring.redis.password=",
+        "toolforge.redis.ssl=false",
+        "management.server.port=0",
+        "toolforge.chat.write-behind.journal-dir=target/load-test-journal",
+        // Every stream comes from 127.0.0.1; the per-user limits still apply
+        "toolforge.chat.rate-limit.ip.requests-per-minute=100000",
+        "toolforge.chat.rate-limit.ip.burst=100000",
+        "toolforge.chat.rate-limit.ip.max-concurrent-streams=100000",
+        "toolforge.chat.router.max-concurrent-per-model=1000"
+})
+class StreamingControllerLoadTest {
+
+    private static final int CONCURRENT_STREAMS = 500;
+    private static final int WARM_UP_STREAMS = 100;
+    private static final long P99_TTFT_LIMIT_MS = 500;
+    private static final List<String> ANSWER = List.of("Hello", " there", ", how", " can I help?");
+
+    @Container
+    private static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    @Container
+    private static final GenericContainer<?> REDIS = new GenericContainer<>("redis:7.2").withExposedPorts(6379);
+
+    private static final HttpServer UPSTREAM = startUpstream();
+
+    @LocalServerPort
+    private int port;
+
+    private ConnectionProvider clientConnections;
+    private WebTestClient client;
+
+    @DynamicPropertySource
+    static void containers(DynamicPropertyRegistry registry) {
+        registry.add("spring.redis.host", REDIS::getHost);
+        registry.add("spring.redis.port", () -> REDIS.getMappedPort(6379));
+        registry.add("spring.data.mongodb.uri", MONGO::getReplicaSetUrl);
+        registry.add("spring.ai.openai.base-url", () -> "http://localhost:" + UPSTREAM.getAddress().getPort());
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        UPSTREAM.stop(0);
+    }
+
+    @BeforeEach
+    void setUp() {
+        // Per-turn INFO logging to the console would dominate the measurement
+        ((Logger) LoggerFactory.getLogger(StreamingController.class)).setLevel(Level.WARN);
+        // The client's own pool must not be what limits the streams
+        clientConnections = ConnectionProvider.builder("load-test").maxConnections(CONCURRENT_STREAMS * 2).build();
+        client = WebTestClient.bindToServer(new ReactorClientHttpConnector(HttpClient.create(clientConnections)))
+                .baseUrl("http://localhost:" + port)
+                .responseTimeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ((Logger) LoggerFactory.getLogger(StreamingController.class)).setLevel(null);
+        clientConnections.dispose();
+    }
+
+    @Test
+    void p99TimeToFirstTokenStaysBoundedUnderConcurrentStreams() throws Exception {
+        // One smaller round first so JIT compilation, pool growth and thread start-up are not counted
+        runStreams("warm-up", WARM_UP_STREAMS);
+        long[] ttftNanos = runStreams("load", CONCURRENT_STREAMS);
+
+        Arrays.sort(ttftNanos);
+        long p99Millis = TimeUnit.NANOSECONDS.toMillis(ttftNanos[(int) Math.ceil(CONCURRENT_STREAMS * 0.99) - 1]);
+        log.info("TTFT over {} streams: p50={} ms, p99={} ms", CONCURRENT_STREAMS,
+                TimeUnit.NANOSECONDS.toMillis(ttftNanos[CONCURRENT_STREAMS / 2]), p99Millis);
+
+        assertTrue(p99Millis < P99_TTFT_LIMIT_MS, "p99 time-to-first-token was " + p99Millis + " ms");
+    }
+
+    /**
+     * Opens count streams at once, each for a new session of its own user, and reads every one to the end.
+     *
+     * @return The time from sending each request to its first SSE event.
+     */
+    private long[] runStreams(String round, int count) throws Exception {
+        long[] ttftNanos = new long[count];
+        List<Future<?>> streams = new ArrayList<>(count);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < count; i++) {
+                int stream = i;
+                streams.add(executor.submit(() -> {
+                    long start = System.nanoTime();
+                    FluxExchangeResult<String> result = client.post().uri("/stream/chat")
+                            .header("Userid", round + "-user-" + stream)
+                            .contentType(MediaType.TEXT_PLAIN)
+                            .bodyValue("question " + stream)
+                            .exchange()
+                            .expectStatus().isOk()
+                            .returnResult(String.class);
+                    List<String> events = new ArrayList<>();
+                    result.getResponseBody()
+                            .doOnNext(event -> {
+                                if (events.isEmpty()) {
+                                    ttftNanos[stream] = System.nanoTime() - start;
+                                }
+                                events.add(event);
+                            })
+                            .blockLast(Duration.ofSeconds(30));
+                    // Frames may be coalesced, but nothing is lost
+                    assertEquals(String.join("", ANSWER), String.join("", events).replace("  ", " "));
+                }));
+            }
+        }
+        for (Future<?> stream : streams) {
+            stream.get();
+        }
+        return ttftNanos;
+    }
+
+    /**
+     * An OpenAI-compatible chat completions endpoint that waits 20 ms, then streams the answer a
+     * chunk every 5 ms. Each request gets a virtual thread, so it never limits concurrency itself.
+     */
+    private static HttpServer startUpstream() {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+            server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            server.createContext("/v1/chat/completions", StreamingControllerLoadTest::streamAnswer);
+            server.start();
+            return server;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void streamAnswer(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            Thread.sleep(20);
+            for (int i = 0; i < ANSWER.size(); i++) {
+                String content = ANSWER.get(i).replace("\"", "\\\"");
+                String finishReason = i == ANSWER.size() - 1 ? "\"stop\"" : "null";
+                body.write(("data: {\"id\":\"chatcmpl-load\",\"object\":\"chat.completion.chunk\",\"created\":1,"
+                        + "\"model\":\"stub-model\",\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":\""
+                        + content + "\"},\"finish_reason\":" + finishReason + "}]}\n\n").getBytes(StandardCharsets.UTF_8));
+                body.flush();
+                Thread.sleep(5);
+            }
+            body.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.tooling.toolforge.dto.chat;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.tooling.toolforge.config.MongoConfig;
+import com.tooling.toolforge.utils.SearchHighlighter;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Seeds a MongoDB with thousands of bucketed sessions and checks that p95 search latency for a
+ * user with a long history stays under 50 ms. Words are drawn from a Zipf-like distribution, so
+ * some queries match most of the user's buckets.
+ * Run with: mvn test -Pload-tests -Dtest=ChatSearchLoadTest
+ */
+@Tag("load")
+@Slf4j
+@Testcontainers(disabledWithoutDocker = true)
+class ChatSearchLoadTest {
+
+    private static final String USER_ID = "heavy-user";
+    private static final int USER_SESSIONS = 2_000;
+    private static final int OTHER_USERS = 20;
+    private static final int OTHER_USER_SESSIONS = 100;
+    private static final int BUCKETS_PER_SESSION = 2;
+    private static final int WORDS_PER_MESSAGE = 12;
+    private static final int VOCABULARY = 5_000;
+    private static final int WARM_UP_SEARCHES = 50;
+    private static final int SEARCHES = 500;
+    private static final long P95_SEARCH_LIMIT_MS = 50;
+
+    @Container
+    private static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static MongoClient mongoClient;
+    private static ChatRepositoryCustomImpl repository;
+
+    @BeforeAll
+    static void seed() {
+        mongoClient = MongoClients.create(MONGO.getReplicaSetUrl());
+        MongoTemplate mongoTemplate = new MongoTemplate(mongoClient, "toolforge_test");
+        new MongoConfig(mongoTemplate).ensureIndexes();
+        repository = new ChatRepositoryCustomImpl(mongoTemplate);
+
+        Random random = new Random(42);
+        seedUser(mongoTemplate, random, USER_ID, USER_SESSIONS);
+        for (int u = 0; u < OTHER_USERS; u++) {
+            seedUser(mongoTemplate, random, "user-" + u, OTHER_USER_SESSIONS);
+        }
+    }
+
+    @AfterAll
+    static void disconnect() {
+        mongoClient.close();
+    }
+
+    @Test
+    void p95SearchLatencyStaysUnder50Milliseconds() {
+        Random random = new Random(7);
+        for (int i = 0; i < WARM_UP_SEARCHES; i++) {
+            repository.searchSessions(USER_ID, query(random), 20);
+        }
+
+        long[] latencyNanos = new long[SEARCHES];
+        int hits = 0;
+        for (int i = 0; i < SEARCHES; i++) {
+            List<String> terms = query(random);
+            long start = System.nanoTime();
+            hits += repository.searchSessions(USER_ID, terms, 20).size();
+            latencyNanos[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(latencyNanos);
+        long p95Millis = TimeUnit.NANOSECONDS.toMillis(latencyNanos[(int) Math.ceil(SEARCHES * 0.95) - 1]);
+        log.info("Search over {} sessions of one user: p50={} ms, p95={} ms, max={} ms, {} hits on average",
+                USER_SESSIONS, TimeUnit.NANOSECONDS.toMillis(latencyNanos[SEARCHES / 2]), p95Millis,
+                TimeUnit.NANOSECONDS.toMillis(latencyNanos[SEARCHES - 1]), hits / SEARCHES);
+
+        assertTrue(p95Millis < P95_SEARCH_LIMIT_MS, "p95 search latency was " + p95Millis + " ms");
+    }
+
+    private static void seedUser(MongoTemplate mongoTemplate, Random random, String userId, int sessions) {
+        List<Document> headers = new ArrayList<>(sessions);
+        List<Document> buckets = new ArrayList<>(sessions * BUCKETS_PER_SESSION);
+        for (int s = 0; s < sessions; s++) {
+            String sessionId = userId + "-session-" + s;
+            List<Document> entries = new ArrayList<>();
+            for (int b = 0; b < BUCKETS_PER_SESSION; b++) {
+                entries.clear();
+                for (int i = 0; i < ChatBucket.SIZE; i++) {
+                    long seq = (long) b * ChatBucket.SIZE + i;
+                    entries.add(new Document("seq", seq)
+                            .append("role", i % 2 == 0 ? "user" : "bot")
+                            .append("content", sentence(random, WORDS_PER_MESSAGE)));
+                }
+                buckets.add(new Document("sessionId", sessionId)
+                        .append("userId", userId)
+                        .append("bucket", (long) b)
+                        .append("messages", new ArrayList<>(entries)));
+            }
+            headers.add(new Document("_id", sessionId)
+                    .append("userId", userId)
+                    .append("title", entries.get(0).getString("content"))
+                    .append("messageCount", (long) BUCKETS_PER_SESSION * ChatBucket.SIZE)
+                    .append("lastUpdated", new Date(1_700_000_000_000L + s * 60_000L)));
+        }
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(ChatSession.class)).insertMany(headers);
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(ChatBucket.class)).insertMany(buckets);
+    }
+
+    private static List<String> query(Random random) {
+        return SearchHighlighter.terms(sentence(random, 1 + random.nextInt(2)));
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sentence = new StringBuilder();
+        for (int w = 0; w < words; w++) {
+            sentence.append(w == 0 ? "" : " ").append(word(random));
+        }
+        return sentence.toString();
+    }
+
+    /**
+     * One of VOCABULARY made-up words, the lower ranks far more often than the higher ones.
+     */
+    private static String word(Random random) {
+        int rank = (int) Math.min(VOCABULARY - 1, Math.floor(Math.pow(VOCABULARY, random.nextDouble())) - 1);
+        return "w" + Integer.toString(rank + 36, 36) + "x";
+    }
+}
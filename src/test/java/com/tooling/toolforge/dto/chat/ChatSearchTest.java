@@ -0,0 +1,184 @@
+package com.tooling.toolforge.dto.chat;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.tooling.toolforge.config.MongoConfig;
+import com.tooling.toolforge.dto.history.ChatSearchHit;
+import com.tooling.toolforge.dto.history.SearchSnippet;
+import com.tooling.toolforge.service.ChatBucketMigration;
+import com.tooling.toolforge.service.ChatSessionWriter;
+import com.tooling.toolforge.utils.SearchHighlighter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The $text / $filter / $group search pipeline against a real MongoDB with the app's indexes.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class ChatSearchTest {
+
+    @Container
+    private static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static MongoClient mongoClient;
+    private static MongoTemplate mongoTemplate;
+
+    private ChatSessionWriter writer;
+    private ChatRepositoryCustomImpl repository;
+
+    @BeforeAll
+    static void connect() {
+        mongoClient = MongoClients.create(MONGO.getReplicaSetUrl());
+        mongoTemplate = new MongoTemplate(mongoClient, "toolforge_test");
+        new MongoConfig(mongoTemplate).ensureIndexes();
+    }
+
+    @AfterAll
+    static void disconnect() {
+        mongoClient.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate.remove(new Query(), ChatSession.class);
+        mongoTemplate.remove(new Query(), ChatBucket.class);
+        writer = new ChatSessionWriter(mongoTemplate);
+        repository = new ChatRepositoryCustomImpl(mongoTemplate);
+    }
+
+    @Test
+    void ranksTheUsersSessionsAndHighlightsTheMatchingMessages() {
+        write("kafka", "u1", "How do I tune Kafka consumers?", "Raise fetch.min.bytes for Kafka consumers.",
+                "And Kafka producers?", "Batch them with linger.ms.");
+        write("redis", "u1", "Why is Redis slow?", "Check for a KEYS call; Kafka is unrelated.");
+        write("unrelated", "u1", "What is a monad?", "A monoid in the category of endofunctors.");
+        write("other-user", "u2", "Kafka consumer lag", "Add partitions.");
+
+        List<ChatSearchHit> hits = search("u1", "kafka", 10);
+
+        assertEquals(List.of("kafka", "redis"), hits.stream().map(ChatSearchHit::getSessionId).toList());
+        assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+        ChatSearchHit best = hits.get(0);
+        assertEquals("How do I tune Kafka consumers?", best.getTitle());
+        assertNotNull(best.getLastUpdated());
+        // Three of the four messages match; the server keeps the first two of the bucket
+        assertEquals(2, best.getSnippets().size());
+        for (SearchSnippet snippet : best.getSnippets()) {
+            assertTrue(snippet.getText().toLowerCase().contains("kafka"), snippet.getText());
+            int[] highlight = snippet.getHighlights().get(0);
+            assertEquals("kafka", snippet.getText().substring(highlight[0], highlight[1]).toLowerCase());
+        }
+    }
+
+    @Test
+    void groupsASessionsBucketsIntoOneHitAndHonoursTheLimit() {
+        for (int s = 0; s < 5; s++) {
+            // Spans two buckets, both of which match
+            for (int i = 0; i < ChatBucket.SIZE + 10; i++) {
+                write("session-" + s, "u1", new Message(i % 2 == 0 ? "user" : "bot", "message " + i + " about gradle"));
+            }
+        }
+
+        List<ChatSearchHit> hits = search("u1", "gradle", 3);
+
+        assertEquals(3, hits.size());
+        assertEquals(3, hits.stream().map(ChatSearchHit::getSessionId).distinct().count());
+        // Snippets from both buckets, capped per hit
+        assertTrue(hits.stream().allMatch(hit -> hit.getSnippets().size() == 3));
+    }
+
+    @Test
+    void aStemmedMatchIsAHitEvenWithoutASnippet() {
+        write("deploys", "u1", "The deployment failed", "Roll it back.");
+
+        List<ChatSearchHit> hits = search("u1", "deployments", 10);
+
+        assertEquals(List.of("deploys"), hits.stream().map(ChatSearchHit::getSessionId).toList());
+        assertEquals(List.of(), hits.get(0).getSnippets());
+    }
+
+    @Test
+    void skipsBucketsWhoseSessionWasDeleted() {
+        write("deleted", "u1", "Terraform state locking", "Use a DynamoDB table.");
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is("deleted")), ChatSession.class);
+
+        assertEquals(List.of(), search("u1", "terraform", 10));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void findsEmbeddedSessionsBeforeAndAfterTheyAreMigrated() {
+        mongoTemplate.insert(new Document("_id", "legacy").append("userId", "u1")
+                        .append("lastUpdated", new Date()).append("messages", List.of(
+                        new Document("role", "user").append("content", "Kubernetes liveness probes"),
+                        new Document("role", "bot").append("content", "Probe /healthz."))),
+                mongoTemplate.getCollectionName(ChatSession.class));
+        write("bucketed", "u1", "Kubernetes readiness probes", "Gate traffic on /ready.");
+        mongoTemplate.insert(new Document("_id", "other-user").append("userId", "u2").append("messages", List.of(
+                        new Document("role", "user").append("content", "Kubernetes ingress"))),
+                mongoTemplate.getCollectionName(ChatSession.class));
+
+        List<ChatSearchHit> hits = search("u1", "kubernetes", 10);
+
+        assertEquals(Set.of("legacy", "bucketed"), hits.stream().map(ChatSearchHit::getSessionId).collect(Collectors.toSet()));
+        ChatSearchHit legacy = hits.stream().filter(hit -> hit.getSessionId().equals("legacy")).findFirst().orElseThrow();
+        assertEquals("Kubernetes liveness probes", legacy.getTitle());
+        assertNotNull(legacy.getLastUpdated());
+        assertEquals(1, legacy.getSnippets().size());
+        assertEquals("user", legacy.getSnippets().get(0).getRole());
+        assertEquals(1, search("u1", "kubernetes", 1).size());
+
+        // The migration lock is free
+        RedisTemplate<String, String> redisTemplate = mock(RedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(anyString(), anyString(), any(Duration.class))).thenReturn(true);
+        ChatBucketMigration migration = new ChatBucketMigration(mongoTemplate, redisTemplate, Schedulers.immediate(),
+                new SimpleMeterRegistry(), true, Duration.ofMinutes(1), 20);
+
+        assertEquals(2, migration.migrateBatch());
+
+        // Found once, now through its buckets
+        assertEquals(List.of("legacy"), search("u1", "liveness", 10).stream().map(ChatSearchHit::getSessionId).toList());
+        assertEquals(2, search("u1", "kubernetes", 10).size());
+    }
+
+    private void write(String sessionId, String userId, String... contents) {
+        for (int i = 0; i < contents.length; i++) {
+            write(sessionId, userId, new Message(i % 2 == 0 ? "user" : "bot", contents[i]));
+        }
+    }
+
+    private void write(String sessionId, String userId, Message message) {
+        writer.appendMessages(List.of(new PendingChatMessage(UUID.randomUUID().toString(), sessionId, userId,
+                message.getRole(), message.getContent(), false, System.currentTimeMillis())));
+    }
+
+    private List<ChatSearchHit> search(String userId, String query, int limit) {
+        return repository.searchSessions(userId, SearchHighlighter.terms(query), limit);
+    }
+}
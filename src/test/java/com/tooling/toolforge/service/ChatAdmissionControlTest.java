@@ -0,0 +1,114 @@
+package com.tooling.toolforge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ChatAdmissionControlTest {
+
+    private static final List<String> USER_KEYS = List.of("chat:rl:{user:alice}:bucket", "chat:rl:{user:alice}:streams");
+    private static final List<String> IP_KEYS = List.of("chat:rl:{ip:10.0.0.1}:bucket", "chat:rl:{ip:10.0.0.1}:streams");
+
+    private StringRedisTemplate redisTemplate;
+    private ZSetOperations<String, String> zSetOperations;
+    private ChatAdmissionControl admissionControl;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        redisTemplate = mock(StringRedisTemplate.class);
+        zSetOperations = mock(ZSetOperations.class);
+        when(redisTemplate.opsForZSet()).thenReturn(zSetOperations);
+        // 60 requests per minute with a burst of 2 and 1 concurrent stream, for users and IPs alike
+        admissionControl = new ChatAdmissionControl(redisTemplate, new SimpleMeterRegistry(), 60, 2, 1, 60, 2, 1,
+                Duration.ofMinutes(5), Duration.ofSeconds(5), false);
+    }
+
+    @Test
+    void admitsThroughOneScriptCallPerIdentityAndReleasesBothSlots() {
+        scriptReturns(USER_KEYS, 0L);
+        scriptReturns(IP_KEYS, 0L);
+
+        ChatAdmissionControl.Admission admission = admissionControl.tryAdmit(" alice ", "10.0.0.1");
+
+        assertTrue(admission.allowed());
+        assertFalse(admission.local());
+        verify(redisTemplate).execute(any(), eq(USER_KEYS), any(Object[].class));
+        verify(redisTemplate).execute(any(), eq(IP_KEYS), any(Object[].class));
+
+        admissionControl.release(admission);
+        verify(zSetOperations).remove(USER_KEYS.get(1), admission.streamId());
+        verify(zSetOperations).remove(IP_KEYS.get(1), admission.streamId());
+    }
+
+    @Test
+    void rejectsWithTheRetryAfterAndRemembersTheDenial() {
+        scriptReturns(USER_KEYS, 1_500L);
+
+        ChatAdmissionControl.Admission denied = admissionControl.tryAdmit("alice", "10.0.0.1");
+        ChatAdmissionControl.Admission again = admissionControl.tryAdmit("alice", "10.0.0.2");
+
+        assertFalse(denied.allowed());
+        assertEquals(2, denied.retryAfterSeconds());
+        assertFalse(again.allowed());
+        // The IP is not consumed for a denied user, and the repeat is turned away without Redis
+        verify(redisTemplate, times(1)).execute(any(), anyList(), any(Object[].class));
+        admissionControl.release(denied);
+        verifyNoInteractions(zSetOperations);
+    }
+
+    @Test
+    void givesTheUsersSlotBackWhenTheIpIsLimited() {
+        scriptReturns(USER_KEYS, 0L);
+        scriptReturns(IP_KEYS, 5_000L);
+
+        ChatAdmissionControl.Admission admission = admissionControl.tryAdmit("alice", "10.0.0.1");
+
+        assertFalse(admission.allowed());
+        assertEquals(5, admission.retryAfterSeconds());
+        verify(zSetOperations).remove(eq(USER_KEYS.get(1)), anyString());
+        verify(zSetOperations, never()).remove(eq(IP_KEYS.get(1)), any());
+    }
+
+    @Test
+    void enforcesTheSameLimitsLocallyWhenRedisIsDown() {
+        when(redisTemplate.execute(any(), anyList(), any(Object[].class)))
+                .thenThrow(new RedisConnectionFailureException("down"));
+
+        ChatAdmissionControl.Admission first = admissionControl.tryAdmit(null, "10.0.0.1");
+        ChatAdmissionControl.Admission concurrent = admissionControl.tryAdmit(null, "10.0.0.1");
+
+        assertTrue(first.allowed());
+        assertTrue(first.local());
+        assertFalse(concurrent.allowed());
+        assertEquals(5, concurrent.retryAfterSeconds());
+
+        // Releasing frees the stream slot; the second burst token is still there
+        admissionControl.release(first);
+        assertTrue(admissionControl.tryAdmit(null, "10.0.0.1").allowed());
+        verifyNoInteractions(zSetOperations);
+    }
+
+    @Test
+    void keysOfOneIdentityShareAHashTag() {
+        assertEquals("chat:rl:{user:a{}b}:bucket", ChatAdmissionControl.bucketKey("user:a{}b"));
+        assertEquals("chat:rl:{user:a{}b}:streams", ChatAdmissionControl.streamsKey("user:a{}b"));
+        assertNotEquals(ChatAdmissionControl.bucketKey("user:a"), ChatAdmissionControl.bucketKey("ip:a"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void scriptReturns(List<String> keys, long retryAfterMillis) {
+        when(redisTemplate.execute(any(RedisScript.class), eq(keys), any(Object[].class))).thenReturn(retryAfterMillis);
+    }
+}
@@ -0,0 +1,269 @@
+package com.tooling.toolforge.service;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.tooling.toolforge.config.MongoConfig;
+import com.tooling.toolforge.dto.chat.ChatBucket;
+import com.tooling.toolforge.dto.chat.ChatMessagePart;
+import com.tooling.toolforge.dto.chat.ChatRepositoryCustomImpl;
+import com.tooling.toolforge.dto.chat.ChatSession;
+import com.tooling.toolforge.dto.chat.Message;
+import com.tooling.toolforge.dto.chat.PendingChatMessage;
+import com.tooling.toolforge.dto.chat.SessionMessagesSlice;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * The bucketed message storage against a real MongoDB: {@link ChatSessionWriter}, the paged reads
+ * of {@link ChatRepositoryCustomImpl} and {@link ChatBucketMigration}, in both session layouts.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class ChatBucketStorageTest {
+
+    @Container
+    private static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static MongoClient mongoClient;
+    private static MongoTemplate mongoTemplate;
+
+    private ChatSessionWriter writer;
+    private ChatRepositoryCustomImpl repository;
+    private ChatBucketMigration migration;
+
+    @BeforeAll
+    static void connect() {
+        mongoClient = MongoClients.create(MONGO.getReplicaSetUrl());
+        mongoTemplate = new MongoTemplate(mongoClient, "toolforge_test");
+        new MongoConfig(mongoTemplate).ensureIndexes();
+    }
+
+    @AfterAll
+    static void disconnect() {
+        mongoClient.close();
+    }
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        mongoTemplate.remove(new Query(), ChatSession.class);
+        mongoTemplate.remove(new Query(), ChatBucket.class);
+        mongoTemplate.remove(new Query(), ChatMessagePart.class);
+        writer = new ChatSessionWriter(mongoTemplate);
+        repository = new ChatRepositoryCustomImpl(mongoTemplate);
+        migration = new ChatBucketMigration(mongoTemplate, mock(RedisTemplate.class), Schedulers.immediate(),
+                new SimpleMeterRegistry(), false, Duration.ofMinutes(1), 20);
+    }
+
+    @Test
+    void pagesAcrossABucketBoundaryInBothLayouts() {
+        for (int i = 0; i < 60; i++) {
+            write("bucketed", "u1", message(i));
+        }
+        insertEmbedded("embedded", 60);
+
+        for (String sessionId : List.of("bucketed", "embedded")) {
+            // Messages 45-59 span buckets 0 and 1
+            SessionMessagesSlice page = repository.findMessagesPage(sessionId, 1, 15).orElseThrow();
+            assertEquals(60, page.getTotalMessages(), sessionId);
+            assertEquals(45, page.getStart(), sessionId);
+            assertEquals(contents(45, 60), contents(page), sessionId);
+
+            SessionMessagesSlice before = repository.findMessagesBefore(sessionId, 55, 10).orElseThrow();
+            assertEquals(45, before.getStart(), sessionId);
+            assertEquals(contents(45, 55), contents(before), sessionId);
+
+            SessionMessagesSlice first = repository.findMessagesPage(sessionId, 4, 15).orElseThrow();
+            assertEquals(0, first.getStart(), sessionId);
+            assertEquals(contents(0, 15), contents(first), sessionId);
+        }
+        assertTrue(repository.findMessagesPage("missing", 1, 15).isEmpty());
+    }
+
+    @Test
+    void concurrentWritersGetContiguousSequenceNumbers() throws Exception {
+        int writers = 8;
+        int perWriter = 25;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int offset = w * perWriter;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perWriter; i++) {
+                        // User messages, so whichever writer comes first creates the session
+                        write("busy", "u1", new Message("user", "m" + (offset + i)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<ChatBucket.Entry> entries = entries("busy");
+        assertEquals(LongStream.range(0, writers * perWriter).boxed().toList(),
+                entries.stream().map(ChatBucket.Entry::getSeq).toList());
+        assertEquals(writers * perWriter, entries.stream().map(ChatBucket.Entry::getContent).distinct().count());
+        assertEquals(writers * perWriter, header("busy").get("messageCount", Number.class).longValue());
+    }
+
+    @Test
+    void aRetriedBatchDoesNotDuplicateEntries() {
+        List<PendingChatMessage> batch = List.of(
+                new PendingChatMessage("w1", "new", "u1", "user", "question", false, 1L),
+                new PendingChatMessage("w2", "new", null, "bot", "answer", false, 2L));
+
+        writer.appendMessages(batch);
+        // As if the journal did not get the done records and replayed the batch
+        writer.appendMessages(batch);
+
+        List<ChatBucket.Entry> entries = entries("new");
+        assertEquals(List.of("user", "bot"), entries.stream().map(ChatBucket.Entry::getRole).toList());
+        assertEquals(List.of(0L, 1L), entries.stream().map(ChatBucket.Entry::getSeq).toList());
+        Document header = header("new");
+        assertEquals(2, header.get("messageCount", Number.class).longValue());
+        assertEquals("u1", header.getString("userId"));
+    }
+
+    @Test
+    void aWriteDuringMigrationIsKeptAndMigratedOnTheNextRun() {
+        insertEmbedded("racing", 10);
+        Document read = sessionAsMigrationReadsIt("racing");
+        write("racing", "u1", message(10));
+
+        assertFalse(migration.migrate(read));
+        assertTrue(migration.migrate(sessionAsMigrationReadsIt("racing")));
+
+        assertEquals(LongStream.range(0, 11).boxed().toList(), entries("racing").stream().map(ChatBucket.Entry::getSeq).toList());
+        assertEquals(contents(0, 11), contents(repository.findMessagesPage("racing", 1, 20).orElseThrow()));
+        Document header = header("racing");
+        assertFalse(header.containsKey("messages"));
+        assertEquals(11, header.get("messageCount", Number.class).longValue());
+    }
+
+    @Test
+    void messagesPushedByAnOlderNodeAfterMigrationGoAfterTheBuckets() {
+        insertEmbedded("straggler", 3);
+        assertTrue(migration.migrate(sessionAsMigrationReadsIt("straggler")));
+        // What a node that does not know buckets does for the next turn
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is("straggler")),
+                new Update().push("messages", message(3)), ChatSession.class);
+
+        assertTrue(migration.migrate(sessionAsMigrationReadsIt("straggler")));
+
+        assertEquals(contents(0, 4), contents(repository.findMessagesPage("straggler", 1, 20).orElseThrow()));
+        assertEquals(4, header("straggler").get("messageCount", Number.class).longValue());
+    }
+
+    @Test
+    void aMessageOverTheEntryCapReadsBackUnchanged() {
+        // 64K chars plus one, with a surrogate pair straddling the first cut, then a 3-part message
+        String justOver = "a".repeat(ChatBucket.MAX_CONTENT_CHARS - 1) + "😀" + "tail";
+        String huge = "é".repeat(ChatBucket.MAX_CONTENT_CHARS * 2 + 7);
+        write("huge", "u1", new Message("user", justOver));
+        write("huge", "u1", new Message("bot", huge));
+        write("huge", "u1", new Message("user", "short"));
+
+        SessionMessagesSlice page = repository.findMessagesPage("huge", 1, 20).orElseThrow();
+        assertEquals(List.of(justOver, huge, "short"), page.getMessages().stream().map(Message::getContent).toList());
+        List<ChatBucket.Entry> entries = entries("huge");
+        assertTrue(entries.stream().allMatch(entry -> entry.getContent().length() <= ChatBucket.MAX_CONTENT_CHARS));
+        assertEquals(Arrays.asList(1, 2, null), entries.stream().map(ChatBucket.Entry::getParts).toList());
+
+        // A retried batch rewrites the same parts instead of adding more
+        PendingChatMessage retried = new PendingChatMessage("retry", "huge", "u1", "user", huge, false, 1L);
+        writer.appendMessages(List.of(retried));
+        writer.appendMessages(List.of(retried));
+        assertEquals(huge, repository.findMessagesPage("huge", 1, 1).orElseThrow().getMessages().get(0).getContent());
+        assertEquals(5, mongoTemplate.count(new Query(), ChatMessagePart.class));
+    }
+
+    @Test
+    void migrationKeepsMessagesOverTheEntryCapWhole() {
+        String huge = "x".repeat(ChatBucket.MAX_CONTENT_CHARS * 3);
+        mongoTemplate.insert(new Document("_id", "legacy-huge").append("userId", "u1").append("messages", List.of(
+                        new Document("role", "user").append("content", "question"),
+                        new Document("role", "bot").append("content", huge))),
+                mongoTemplate.getCollectionName(ChatSession.class));
+
+        assertTrue(migration.migrate(sessionAsMigrationReadsIt("legacy-huge")));
+
+        assertFalse(header("legacy-huge").containsKey("messages"));
+        assertEquals(List.of("question", huge), contents(repository.findMessagesPage("legacy-huge", 1, 20).orElseThrow()));
+    }
+
+    private void write(String sessionId, String userId, Message message) {
+        writer.appendMessages(List.of(new PendingChatMessage(UUID.randomUUID().toString(), sessionId, userId,
+                message.getRole(), message.getContent(), false, System.currentTimeMillis())));
+    }
+
+    private void insertEmbedded(String sessionId, int count) {
+        List<Document> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Document("role", i % 2 == 0 ? "user" : "bot").append("content", "m" + i));
+        }
+        mongoTemplate.insert(new Document("_id", sessionId).append("userId", "u1").append("messages", messages),
+                mongoTemplate.getCollectionName(ChatSession.class));
+    }
+
+    private Document sessionAsMigrationReadsIt(String sessionId) {
+        Query query = Query.query(Criteria.where("_id").is(sessionId));
+        query.fields().include("messages", "messageCount", "userId");
+        return mongoTemplate.findOne(query, Document.class, mongoTemplate.getCollectionName(ChatSession.class));
+    }
+
+    private Document header(String sessionId) {
+        return mongoTemplate.findById(sessionId, Document.class, mongoTemplate.getCollectionName(ChatSession.class));
+    }
+
+    private List<ChatBucket.Entry> entries(String sessionId) {
+        return mongoTemplate.find(Query.query(Criteria.where("sessionId").is(sessionId)), ChatBucket.class).stream()
+                .flatMap(bucket -> bucket.getMessages().stream())
+                .sorted((a, b) -> Long.compare(a.getSeq(), b.getSeq()))
+                .toList();
+    }
+
+    private static Message message(int i) {
+        return new Message(i % 2 == 0 ? "user" : "bot", "m" + i);
+    }
+
+    private static List<String> contents(int from, int to) {
+        List<String> contents = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            contents.add("m" + i);
+        }
+        return contents;
+    }
+
+    private static List<String> contents(SessionMessagesSlice slice) {
+        return slice.getMessages().stream().map(Message::getContent).toList();
+    }
+}
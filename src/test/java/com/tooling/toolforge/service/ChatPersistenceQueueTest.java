@@ -0,0 +1,299 @@
+package com.tooling.toolforge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tooling.toolforge.dto.chat.PendingChatMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+class ChatPersistenceQueueTest {
+
+    @TempDir
+    Path journalDir;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<ChatPersistenceQueue> started = new ArrayList<>();
+    private ChatSessionWriter chatSessionWriter;
+    // Every batch the writer was called with, by writeId
+    private final List<List<String>> writes = new CopyOnWriteArrayList<>();
+    // Every message the writer accepted, in order
+    private final List<PendingChatMessage> contents = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        chatSessionWriter = mock(ChatSessionWriter.class);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (ChatPersistenceQueue queue : started) {
+            queue.stop();
+        }
+    }
+
+    @Test
+    void replaysPendingJournalRecordsExactlyOnce() throws Exception {
+        Files.write(journalPath(), List.of(
+                "P\t" + objectMapper.writeValueAsString(pending("w1", "user")),
+                "P\t" + objectMapper.writeValueAsString(pending("w2", "bot")),
+                "D\tw1",
+                "P\t{\"writeId\":\"w3\",\"sessi"), StandardCharsets.UTF_8); // Torn by a crash mid-write
+        writerSucceeds();
+
+        ChatPersistenceQueue queue = start(8388608);
+        awaitWrites(1);
+
+        assertEquals(List.of(List.of("w2")), writes);
+        queue.stop();
+        started.remove(queue);
+        assertEquals(List.of(), pendingIds());
+
+        // Nothing is left to replay on the next start
+        start(8388608);
+        Thread.sleep(100);
+        assertEquals(1, writes.size());
+    }
+
+    @Test
+    void retriesATransientFailureWithTheSameWriteIds() throws Exception {
+        journal(pending("w1", "user"), pending("w2", "bot"));
+        doAnswer(invocation -> {
+            record(invocation.getArgument(0));
+            throw new DataAccessResourceFailureException("connection refused");
+        }).doAnswer(invocation -> record(invocation.getArgument(0)))
+                .when(chatSessionWriter).appendMessages(anyList());
+
+        ChatPersistenceQueue queue = start(8388608);
+
+        // The ChatSessionWriter turns the repeated writeIds into the slots reserved the first time
+        awaitWrites(2);
+        assertEquals(List.of(List.of("w1", "w2"), List.of("w1", "w2")), writes);
+        queue.stop();
+        started.remove(queue);
+        assertEquals(List.of(), pendingIds());
+    }
+
+    @Test
+    void keepsTheBatchJournaledWhileMongoIsDown() throws Exception {
+        doThrow(new DataAccessResourceFailureException("connection refused")).when(chatSessionWriter).appendMessages(anyList());
+
+        ChatPersistenceQueue queue = start(8388608);
+        queue.enqueue("s1", "u1", "user", "hello", false);
+
+        // Retried past max-attempts, from the journal
+        verify(chatSessionWriter, timeout(1000).atLeast(5)).appendMessages(anyList());
+        assertEquals(1, pendingIds().size());
+        assertFalse(Files.exists(journalDir.resolve("chat-write-behind.dead-letter")));
+    }
+
+    @Test
+    void keepsASessionsTurnsInOrderWhenMongoRecoversAfterMaxAttempts() throws Exception {
+        List<String> failing = List.of("s1");
+        AtomicInteger failures = new AtomicInteger();
+        doAnswer(invocation -> {
+            List<PendingChatMessage> batch = invocation.getArgument(0);
+            // s1's writes fail for twice max-attempts, s2's always succeed
+            if (batch.stream().anyMatch(pending -> failing.contains(pending.getSessionId()))
+                    && failures.incrementAndGet() <= 6) {
+                throw new DataAccessResourceFailureException("connection refused");
+            }
+            return record(batch);
+        }).when(chatSessionWriter).appendMessages(anyList());
+
+        ChatPersistenceQueue queue = start(8388608);
+        queue.enqueue("s1", "u1", "user", "turn 1", false);
+        verify(chatSessionWriter, timeout(1000).atLeast(3)).appendMessages(anyList());
+        queue.enqueue("s1", null, "bot", "turn 2", false);
+        queue.enqueue("s2", "u2", "user", "other session", false);
+        queue.enqueue("s1", "u1", "user", "turn 3", false);
+
+        awaitWritten(4);
+        assertEquals(List.of("turn 1", "turn 2", "turn 3"), written("s1"));
+        assertEquals(List.of("other session"), written("s2"));
+        queue.stop();
+        started.remove(queue);
+        assertEquals(List.of(), pendingIds());
+    }
+
+    @Test
+    void writesMessagesThatDidNotFitOnTheQueueInOrder() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return record(invocation.getArgument(0));
+        }).when(chatSessionWriter).appendMessages(anyList());
+
+        ChatPersistenceQueue queue = start(8388608, 1);
+        queue.enqueue("s1", "u1", "user", "turn 1", false);
+        verify(chatSessionWriter, timeout(1000)).appendMessages(anyList());
+        // Turn 2 takes the only slot; turns 3 and 4 only reach the journal
+        queue.enqueue("s1", null, "bot", "turn 2", false);
+        queue.enqueue("s1", "u1", "user", "turn 3", false);
+        queue.enqueue("s1", null, "bot", "turn 4", false);
+        release.countDown();
+
+        awaitWritten(4);
+        assertEquals(List.of("turn 1", "turn 2", "turn 3", "turn 4"), written("s1"));
+        Thread.sleep(100);
+        assertEquals(4, contents.size());
+    }
+
+    @Test
+    void deadLettersOnlyTheMessageMongoRejects() throws Exception {
+        doAnswer(invocation -> {
+            List<PendingChatMessage> batch = invocation.getArgument(0);
+            if (batch.stream().anyMatch(pending -> pending.getContent().equals("poison"))) {
+                throw new DataIntegrityViolationException("document too large");
+            }
+            return record(batch);
+        }).when(chatSessionWriter).appendMessages(anyList());
+
+        PendingChatMessage poison = pending("w2", "bot");
+        poison.setContent("poison");
+        // Replayed messages are all queued before the flusher starts, so they go out as one batch
+        journal(pending("w1", "user"), poison, pending("w3", "user"));
+
+        ChatPersistenceQueue queue = start(8388608);
+
+        awaitWrites(2);
+        assertEquals(List.of(List.of("w1"), List.of("w3")), writes);
+        queue.stop();
+        started.remove(queue);
+
+        List<String> deadLetters = Files.readAllLines(journalDir.resolve("chat-write-behind.dead-letter"), StandardCharsets.UTF_8);
+        assertEquals(1, deadLetters.size());
+        assertTrue(deadLetters.get(0).contains("\"content\":\"poison\""));
+        assertTrue(deadLetters.get(0).contains("document too large"));
+        assertEquals(List.of(), pendingIds());
+    }
+
+    @Test
+    void compactsTheJournalUnderSteadyTraffic() throws Exception {
+        doAnswer(invocation -> {
+            List<PendingChatMessage> batch = invocation.getArgument(0);
+            if (batch.stream().anyMatch(pending -> pending.getSessionId().equals("down"))) {
+                throw new DataAccessResourceFailureException("connection refused");
+            }
+            return record(batch);
+        }).when(chatSessionWriter).appendMessages(anyList());
+
+        ChatPersistenceQueue queue = start(4096);
+        queue.enqueue("down", "u2", "user", "hey", false);
+        // Never idle for a flush interval
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 30; i++) {
+                queue.enqueue("s1", "u1", i % 2 == 0 ? "user" : "bot", "message " + round + "-" + i, false);
+            }
+            awaitWritten(30 * (round + 1));
+        }
+
+        // About 50 KB of records went through the journal; it was rewritten as it grew
+        assertTrue(Files.size(journalPath()) < 3 * 4096, "journal is " + Files.size(journalPath()) + " bytes");
+        assertEquals(1, pendingIds().size());
+        assertTrue(Files.readAllLines(journalPath(), StandardCharsets.UTF_8).get(0).contains("\"sessionId\":\"down\""));
+    }
+
+    private ChatPersistenceQueue start(long journalCompactBytes) throws Exception {
+        return start(journalCompactBytes, 100);
+    }
+
+    private ChatPersistenceQueue start(long journalCompactBytes, int capacity) throws Exception {
+        ChatPersistenceQueue queue = new ChatPersistenceQueue(chatSessionWriter, objectMapper, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(queue, "capacity", capacity);
+        ReflectionTestUtils.setField(queue, "batchSize", 10);
+        ReflectionTestUtils.setField(queue, "flushInterval", Duration.ofMillis(20));
+        ReflectionTestUtils.setField(queue, "offerTimeout", Duration.ofMillis(100));
+        ReflectionTestUtils.setField(queue, "retryInitialBackoff", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(queue, "retryMaxBackoff", Duration.ofMillis(5));
+        ReflectionTestUtils.setField(queue, "maxAttempts", 3);
+        ReflectionTestUtils.setField(queue, "journalDir", journalDir);
+        ReflectionTestUtils.setField(queue, "journalCompactBytes", journalCompactBytes);
+        queue.start();
+        started.add(queue);
+        return queue;
+    }
+
+    private void journal(PendingChatMessage... messages) throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (PendingChatMessage message : messages) {
+            lines.add("P\t" + objectMapper.writeValueAsString(message));
+        }
+        Files.write(journalPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    private void writerSucceeds() {
+        doAnswer(invocation -> record(invocation.getArgument(0))).when(chatSessionWriter).appendMessages(anyList());
+    }
+
+    private Object record(List<PendingChatMessage> batch) {
+        writes.add(batch.stream().map(PendingChatMessage::getWriteId).toList());
+        contents.addAll(batch);
+        return null;
+    }
+
+    private void awaitWritten(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (contents.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, contents.size());
+    }
+
+    /**
+     * The contents of a session's successfully written messages, in write order.
+     */
+    private List<String> written(String sessionId) {
+        return contents.stream().filter(pending -> pending.getSessionId().equals(sessionId))
+                .map(PendingChatMessage::getContent).toList();
+    }
+
+    private void awaitWrites(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (writes.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, writes.size());
+    }
+
+    /**
+     * The writeIds the journal still holds as pending.
+     */
+    private List<String> pendingIds() throws Exception {
+        List<String> pending = new ArrayList<>();
+        for (String line : Files.readAllLines(journalPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("P\t")) {
+                pending.add(objectMapper.readValue(line.substring(2), PendingChatMessage.class).getWriteId());
+            } else if (line.startsWith("D\t")) {
+                pending.remove(line.substring(2));
+            }
+        }
+        return pending;
+    }
+
+    private Path journalPath() {
+        return journalDir.resolve("chat-write-behind.journal");
+    }
+
+    private static PendingChatMessage pending(String writeId, String role) {
+        return new PendingChatMessage(writeId, "s1", null, role, "content " + writeId, false, 1L);
+    }
+}
@@ -0,0 +1,98 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.utils.ReplyBuffer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ChatResponseCacheTest {
+
+    private static final String MODEL = "primary-model";
+
+    private RedisTemplate<String, String> redisTemplate;
+    private ValueOperations<String, String> valueOperations;
+    private ZSetOperations<String, String> zSetOperations;
+    private final HashService hashService = new HashService(1000, 16 * 1024 * 1024, 4);
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        redisTemplate = mock(RedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        zSetOperations = mock(ZSetOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(redisTemplate.opsForZSet()).thenReturn(zSetOperations);
+    }
+
+    @Test
+    void keysIgnoreWhitespaceButNotModelOrContext() {
+        ChatResponseCache cache = cache(MODEL, 1, 100, 2);
+
+        String key = cache.keyFor(List.of(new UserMessage("  What is   JSON? ")));
+        assertNotNull(key);
+        assertEquals(key, cache.keyFor(List.of(new UserMessage("What is JSON?"))));
+        assertNotEquals(key, cache.keyFor(List.of(new UserMessage("What is json?"))));
+        assertNotEquals(key, cache(MODEL + "-2", 1, 100, 2).keyFor(List.of(new UserMessage("What is JSON?"))));
+        // Longer conversations are not eligible
+        assertNull(cache.keyFor(List.of(new UserMessage("a"), new AssistantMessage("b"), new UserMessage("c"))));
+    }
+
+    @Test
+    void storesWithTheTtlAndEvictsTheOldestBeyondTheCap() {
+        ChatResponseCache cache = cache(MODEL, 1, 100, 2);
+        when(zSetOperations.size(anyString())).thenReturn(3L);
+        when(zSetOperations.range(anyString(), eq(0L), eq(0L))).thenReturn(Set.of("chat:rc:oldest"));
+
+        cache.store("chat:rc:new", "answer", MODEL);
+
+        verify(valueOperations).set("chat:rc:new", "answer", Duration.ofHours(6));
+        verify(zSetOperations).add(eq("chat:rc:index"), eq("chat:rc:new"), anyDouble());
+        verify(redisTemplate).delete(Set.of("chat:rc:oldest"));
+        verify(zSetOperations).remove("chat:rc:index", "chat:rc:oldest");
+        // Served from the local tier afterwards
+        assertEquals("answer", cache.lookup("chat:rc:new"));
+        verify(valueOperations, never()).get(anyString());
+    }
+
+    @Test
+    void doesNotStoreAnswersFromAnotherModelOrOverTheSizeCap() {
+        ChatResponseCache cache = cache(MODEL, 1, 10, 2);
+
+        cache.store("chat:rc:hedged", "answer", "fallback-model");
+        cache.store("chat:rc:long", "far too long an answer", MODEL);
+
+        verifyNoInteractions(valueOperations, zSetOperations);
+        assertNull(cache.lookup("chat:rc:hedged"));
+    }
+
+    @Test
+    void replaysInFramesWithoutSplittingSurrogatePairs() {
+        ChatResponseCache cache = cache(MODEL, 1, 100, 3);
+        String answer = "ab😀cdefg";
+        ReplyBuffer reply = new ReplyBuffer(16);
+
+        List<String> frames = cache.replay(answer, reply).collectList().block(Duration.ofSeconds(5));
+
+        assertEquals(List.of("ab😀", "cde", "fg"), frames);
+        assertEquals(answer, reply.toString());
+    }
+
+    private ChatResponseCache cache(String model, int maxContextMessages, int maxAnswerChars, int replayFrameChars) {
+        return new ChatResponseCache(redisTemplate, hashService, new SimpleMeterRegistry(), true, maxContextMessages,
+                maxAnswerChars, 2, Duration.ofHours(6), 10, Duration.ofMinutes(5), replayFrameChars, Duration.ofMillis(1),
+                model, "0.7");
+    }
+}
@@ -0,0 +1,124 @@
+package com.tooling.toolforge.service;
+
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ChatSessionLifecycleTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void appendSendsItsCommandsOnTheSharedConnection() throws Exception {
+        RedisTemplate<String, String> redisTemplate = mock(RedisTemplate.class);
+        RedisClusterAsyncCommands<byte[], byte[]> commands = mock(RedisClusterAsyncCommands.class);
+        RedisFuture<Long> done = mock(RedisFuture.class);
+        RedisFuture<Boolean> expired = mock(RedisFuture.class);
+        when(commands.rpush(any(byte[].class), any(byte[][].class))).thenReturn(done);
+        when(commands.expire(any(byte[].class), anyLong())).thenReturn(expired);
+        when(commands.zadd(any(byte[].class), anyDouble(), any(byte[].class))).thenReturn(done);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.getNativeConnection()).thenReturn(commands);
+        when(redisTemplate.execute(any(RedisCallback.class))).thenAnswer(invocation ->
+                ((RedisCallback<Object>) invocation.getArgument(0)).doInRedis(connection));
+
+        ChatSessionLifecycle lifecycle = new ChatSessionLifecycle(redisTemplate, mock(ContextAssembler.class),
+                Schedulers.immediate(), new SimpleMeterRegistry(), Duration.ofHours(24), Duration.ofMinutes(30),
+                Duration.ZERO, 500, Duration.ZERO, 1000, 100);
+        lifecycle.append("session-1", "U:hello");
+
+        verify(redisTemplate, never()).executePipelined(any(SessionCallback.class));
+        verify(commands).rpush(aryEq(bytes("session-1")), aryEq(bytes("U:hello")));
+        verify(commands).expire(aryEq(bytes("session-1")), eq(86400L));
+        verify(commands).expire(aryEq(bytes("chat:summary:{session-1}")), eq(86400L));
+        verify(commands).zadd(aryEq(bytes(ChatSessionLifecycle.ACTIVITY_KEY)), anyDouble(), aryEq(bytes("session-1")));
+
+        when(expired.get(anyLong(), any(TimeUnit.class))).thenThrow(new ExecutionException(new RedisCommandTimeoutException()));
+        assertThrows(DataAccessException.class, () -> lifecycle.append("session-1", "B:hi"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void readAndAppendDecodesTheScriptReply() {
+        RedisTemplate<String, String> redisTemplate = mock(RedisTemplate.class);
+        ContextAssembler contextAssembler = mock(ContextAssembler.class);
+        when(contextAssembler.getMaxMessages()).thenReturn(20);
+        when(redisTemplate.execute(any(RedisScript.class), eq(List.of("session-1", "chat:summary:{session-1}")),
+                eq("20"), eq("U:hello"), eq("86400"), eq("0")))
+                .thenReturn(List.of(1L, 42L, List.of("U:a", "B:b"), List.of("upTo", "22", "text", "User: x")));
+
+        ChatSessionLifecycle lifecycle = new ChatSessionLifecycle(redisTemplate, contextAssembler,
+                Schedulers.immediate(), new SimpleMeterRegistry(), Duration.ofHours(24), Duration.ofMinutes(30),
+                Duration.ZERO, 500, Duration.ZERO, 1000, 100);
+        ContextAssembler.ConversationSnapshot snapshot = lifecycle.readAndAppend("session-1", "U:hello", false);
+
+        assertEquals(List.of("U:a", "B:b"), snapshot.tail());
+        assertEquals(42, snapshot.size());
+        assertEquals(Map.of("upTo", "22", "text", "User: x"), snapshot.summary());
+
+        when(redisTemplate.execute(any(RedisScript.class), anyList(), any(Object[].class))).thenReturn(List.of(0L));
+        assertNull(lifecycle.readAndAppend("session-2", "U:hello", false));
+    }
+
+    @Test
+    void summaryKeysShareTheListsHashSlot() {
+        assertEquals("chat:summary:{3f2b9c1e}", ContextAssembler.summaryKey("3f2b9c1e"));
+        assertEquals("chat:summary:user:{42}:chat", ContextAssembler.summaryKey("user:{42}:chat"));
+        // Keys Redis hashes whole but that contain a '}' cannot be the tag themselves
+        for (String key : List.of("3f2b9c1e", "user:{42}:chat", "a{}b", "a}b", "}{", "{}", "x{y", "{}{a}")) {
+            assertEquals(SlotHash.getSlot(key), SlotHash.getSlot(ContextAssembler.summaryKey(key)), key);
+        }
+    }
+
+    @Test
+    void groupsKeysByPrefix() {
+        assertEquals("session", ChatSessionLifecycle.prefixOf("3f2b9c1e-8d7a-4e5f-9a0b-1c2d3e4f5a6b"));
+        assertEquals("chat:summary", ChatSessionLifecycle.prefixOf("chat:summary:3f2b9c1e"));
+        assertEquals("chat:rl", ChatSessionLifecycle.prefixOf("chat:rl:bucket:user:42"));
+        assertEquals("cache", ChatSessionLifecycle.prefixOf("cache:entry"));
+    }
+
+    @Test
+    void readsJdkSerializedKeysWithoutDeserializingThem() {
+        assertEquals("chat:summary", ChatSessionLifecycle.keyPrefix("chat:summary:3f2b9c1e".getBytes(StandardCharsets.UTF_8)));
+        // Written while redisTemplate still used JDK serialization
+        byte[] sessionKey = RedisSerializer.java().serialize("3f2b9c1e-8d7a-4e5f-9a0b-1c2d3e4f5a6b");
+        assertEquals("session", ChatSessionLifecycle.keyPrefix(sessionKey));
+        assertEquals("chat:summary", ChatSessionLifecycle.keyPrefix(RedisSerializer.java().serialize("chat:summary:é")));
+
+        // Anything but a whole serialized String is only counted
+        assertEquals("legacy-jdk", ChatSessionLifecycle.keyPrefix(RedisSerializer.java().serialize(42L)));
+        assertEquals("legacy-jdk", ChatSessionLifecycle.keyPrefix(Arrays.copyOf(sessionKey, sessionKey.length - 1)));
+        assertEquals("legacy-jdk", ChatSessionLifecycle.keyPrefix(Arrays.copyOf(sessionKey, sessionKey.length + 1)));
+        assertEquals("legacy-jdk", ChatSessionLifecycle.keyPrefix(new byte[]{(byte) 0xAC, (byte) 0xED}));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
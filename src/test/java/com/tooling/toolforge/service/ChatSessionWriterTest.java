@@ -0,0 +1,37 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.dto.chat.ChatBucket;
+import com.tooling.toolforge.dto.chat.ChatMessagePart;
+import com.tooling.toolforge.dto.chat.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatSessionWriterTest {
+
+    @Test
+    void keepsAShortMessageInItsEntry() {
+        ChatSessionWriter.StoredMessage stored = ChatSessionWriter.store("s1", 4, new Message("user", "hello"));
+
+        assertEquals(new ChatBucket.Entry(4, "user", "hello"), stored.entry());
+        assertEquals(List.of(), stored.parts());
+    }
+
+    @Test
+    void splitsALongMessageIntoPartsWithoutCuttingASurrogatePair() {
+        String content = "a".repeat(ChatBucket.MAX_CONTENT_CHARS - 1) + "😀" + "b".repeat(ChatBucket.MAX_CONTENT_CHARS);
+
+        ChatSessionWriter.StoredMessage stored = ChatSessionWriter.store("s1", 7, new Message("bot", content));
+
+        assertEquals(ChatBucket.MAX_CONTENT_CHARS - 1, stored.entry().getContent().length());
+        assertEquals(2, stored.entry().getParts());
+        assertEquals(List.of("s1:7:1", "s1:7:2"), stored.parts().stream().map(ChatMessagePart::getId).toList());
+        assertTrue(stored.parts().stream().allMatch(part -> part.getContent().length() <= ChatBucket.MAX_CONTENT_CHARS));
+        assertTrue(stored.parts().get(0).getContent().startsWith("😀"));
+        StringBuilder joined = new StringBuilder(stored.entry().getContent());
+        stored.parts().forEach(part -> joined.append(part.getContent()));
+        assertEquals(content, joined.toString());
+    }
+}
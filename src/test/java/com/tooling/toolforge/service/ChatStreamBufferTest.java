@@ -0,0 +1,143 @@
+package com.tooling.toolforge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.ReactiveStreamOperations;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.codec.ServerSentEvent;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the buffer against an in-memory stand-in for the Redis Stream commands it uses.
+ */
+class ChatStreamBufferTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final List<MapRecord<String, Object, Object>> written = new CopyOnWriteArrayList<>();
+    private ReactiveStringRedisTemplate reactiveRedisTemplate;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        reactiveRedisTemplate = mock(ReactiveStringRedisTemplate.class);
+        ReactiveStreamOperations<String, Object, Object> streamOperations = mock(ReactiveStreamOperations.class);
+        ReactiveValueOperations<String, String> valueOperations = mock(ReactiveValueOperations.class);
+        when(reactiveRedisTemplate.opsForStream()).thenReturn(streamOperations);
+        when(reactiveRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(reactiveRedisTemplate.hasKey(anyString())).thenReturn(Mono.just(false));
+        when(valueOperations.set(anyString(), anyString(), any(Duration.class))).thenReturn(Mono.just(true));
+        // The append script: ARGV is the expiry, the turn id and then id, field, value per entry
+        when(reactiveRedisTemplate.execute(any(RedisScript.class), anyList(), anyList())).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            List<String> args = invocation.getArgument(2);
+            for (int i = 2; i < args.size(); i += 3) {
+                written.add(StreamRecords.<String, Object, Object>mapBacked(Map.of(args.get(i + 1), args.get(i + 2)))
+                        .withStreamKey(keys.get(0))
+                        .withId(RecordId.of(args.get(i))));
+            }
+            return Flux.just(1L);
+        });
+        when(streamOperations.range(anyString(), any(Range.class), any(Limit.class))).thenAnswer(invocation -> {
+            Range<String> range = invocation.getArgument(1);
+            long after = Long.parseLong(range.getLowerBound().getValue().orElseThrow().substring(2));
+            return Flux.fromIterable(written).filter(record -> record.getId().getSequence() > after);
+        });
+    }
+
+    private ChatStreamBuffer buffer(Duration grace) {
+        return new ChatStreamBuffer(reactiveRedisTemplate, mock(RedisTemplate.class), new SimpleMeterRegistry(),
+                true, Duration.ofMinutes(5), grace, Duration.ofMillis(10), 100, Duration.ofSeconds(2));
+    }
+
+    @Test
+    void tagsFramesWithEventIdsAndBuffersThemWithAnEndMarker() {
+        List<ServerSentEvent<String>> events = buffer(Duration.ofSeconds(60))
+                .publish("session-1", Flux.just("a", "b", "c"))
+                .collectList().block(TIMEOUT);
+
+        assertEquals(List.of("a", "b", "c"), events.stream().map(ServerSentEvent::data).toList());
+        String turnId = events.get(0).id().substring(0, events.get(0).id().lastIndexOf(':'));
+        assertEquals(List.of(turnId + ":1", turnId + ":2", turnId + ":3"), events.stream().map(ServerSentEvent::id).toList());
+
+        assertEquals(4, written.size());
+        assertEquals("chat:stream:{session-1}:" + turnId, written.get(0).getStream());
+        assertEquals("c", written.get(2).getValue().get("d"));
+        assertEquals("complete", written.get(3).getValue().get("end"));
+    }
+
+    @Test
+    void generationSurvivesADisconnectAndIsResumedLocallyAfterTheLastEventId() {
+        ChatStreamBuffer buffer = buffer(Duration.ofSeconds(60));
+        Sinks.Many<String> frames = Sinks.many().unicast().onBackpressureBuffer();
+        AtomicBoolean generationCancelled = new AtomicBoolean();
+
+        Flux<ServerSentEvent<String>> first = buffer.publish("session-1",
+                frames.asFlux().doOnCancel(() -> generationCancelled.set(true)));
+        frames.tryEmitNext("a");
+        frames.tryEmitNext("b");
+        String lastEventId = first.take(1).blockLast(TIMEOUT).id();
+
+        ChatStreamBuffer.ResumePoint point = buffer.findResumePoint("session-1", lastEventId);
+        frames.tryEmitNext("c");
+        frames.tryEmitComplete();
+        List<String> resumed = buffer.resume(point).map(ServerSentEvent::data).collectList().block(TIMEOUT);
+
+        assertFalse(generationCancelled.get());
+        assertEquals(List.of("b", "c"), resumed);
+    }
+
+    @Test
+    void cancelsTheGenerationWhenNobodyComesBackWithinTheGracePeriod() throws InterruptedException {
+        ChatStreamBuffer buffer = buffer(Duration.ofMillis(50));
+        AtomicBoolean generationCancelled = new AtomicBoolean();
+
+        buffer.publish("session-1", Flux.<String>never().doOnCancel(() -> generationCancelled.set(true)))
+                .subscribe().dispose();
+        Thread.sleep(500);
+
+        assertTrue(generationCancelled.get());
+        assertEquals("cancelled", written.get(written.size() - 1).getValue().get("end"));
+    }
+
+    @Test
+    void anotherNodeFollowsTheTurnThroughTheRedisStream() {
+        Sinks.Many<String> frames = Sinks.many().unicast().onBackpressureBuffer();
+        String firstId = buffer(Duration.ofSeconds(60)).publish("session-1", frames.asFlux())
+                .doOnSubscribe(subscription -> frames.tryEmitNext("a"))
+                .blockFirst(TIMEOUT).id();
+        String turnId = firstId.substring(0, firstId.lastIndexOf(':'));
+
+        Flux<String> remote = buffer(Duration.ofSeconds(60))
+                .resume(new ChatStreamBuffer.ResumePoint("session-1", turnId, 0))
+                .map(ServerSentEvent::data);
+        frames.tryEmitNext("b");
+        frames.tryEmitComplete();
+
+        assertEquals(List.of("a", "b"), remote.collectList().block(TIMEOUT));
+    }
+}
@@ -0,0 +1,149 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.utils.ReplyBuffer;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+import reactor.test.publisher.TestPublisher;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChatStreamCoalescerTest {
+
+    private static final int FRAME_CHARS = 10;
+    private static final Duration FRAME_DELAY = Duration.ofMillis(100);
+
+    private final RecordingScheduler timers = new RecordingScheduler();
+    private final ChatStreamCoalescer coalescer = new ChatStreamCoalescer(true, FRAME_CHARS, FRAME_DELAY, timers);
+    private final TestPublisher<String> upstream = TestPublisher.create();
+    private final ReplyBuffer reply = new ReplyBuffer(16);
+
+    @Test
+    void sendsTheFirstChunkAloneAndAFrameOnceItHoldsFrameChars() {
+        StepVerifier.withVirtualTime(() -> coalescer.coalesce(upstream.flux(), reply))
+                .then(() -> upstream.next("Hi"))
+                .expectNext("Hi")
+                .then(() -> upstream.next("abc", "defg"))
+                .expectNoEvent(FRAME_DELAY.dividedBy(2))
+                .then(() -> upstream.next("hij"))
+                .expectNext("abcdefghij")
+                .then(upstream::complete)
+                .verifyComplete();
+
+        assertEquals("Hiabcdefghij", reply.toString());
+    }
+
+    @Test
+    void sendsAFrameOnceItsFirstChunkIsFrameDelayOld() {
+        StepVerifier.withVirtualTime(() -> coalescer.coalesce(upstream.flux(), reply))
+                .then(() -> upstream.next("Hi"))
+                .expectNext("Hi")
+                .then(() -> upstream.next(" th"))
+                .thenAwait(FRAME_DELAY.dividedBy(2))
+                .then(() -> upstream.next("ere"))
+                // Timed from the frame's first chunk, not its last; a single leading space is doubled
+                .expectNoEvent(FRAME_DELAY.dividedBy(2).minusMillis(1))
+                .thenAwait(Duration.ofMillis(1))
+                .expectNext("  there")
+                .then(upstream::complete)
+                .verifyComplete();
+
+        assertEquals("Hi there", reply.toString());
+    }
+
+    @Test
+    void leavesNoFrameTimerScheduledAfterCompletion() {
+        StepVerifier.withVirtualTime(() -> coalescer.coalesce(upstream.flux(), reply))
+                .then(() -> upstream.next("Hi", "!"))
+                .expectNext("Hi")
+                .then(upstream::complete)
+                .expectNext("!")
+                .verifyComplete();
+
+        assertEquals(1, timers.scheduled.size());
+        assertEquals(0, timers.pending());
+    }
+
+    @Test
+    void leavesNoFrameTimerScheduledAfterCancel() {
+        StepVerifier.withVirtualTime(() -> coalescer.coalesce(upstream.flux(), reply))
+                .then(() -> upstream.next("Hi"))
+                .expectNext("Hi")
+                .then(() -> upstream.next("!"))
+                .thenCancel()
+                .verify();
+
+        upstream.assertCancelled();
+        assertEquals(1, timers.scheduled.size());
+        assertEquals(0, timers.pending());
+        assertEquals("Hi!", reply.toString());
+    }
+
+    @Test
+    void theReplyHoldsTheRawChunksWhateverTheFraming() {
+        List<String> chunks = List.of("Sure", ",", " here", " is", " the", " answer", ":\n\n", "```java", "\n", "int x;",
+                "\n```", "  Done", ".");
+        StepVerifier.withVirtualTime(() -> coalescer.coalesce(upstream.flux(), reply))
+                .then(() -> {
+                    for (int i = 0; i < 7; i++) {
+                        upstream.next(chunks.get(i));
+                    }
+                })
+                .thenAwait(FRAME_DELAY)
+                .then(() -> {
+                    for (int i = 7; i < chunks.size(); i++) {
+                        upstream.next(chunks.get(i));
+                    }
+                    upstream.complete();
+                })
+                .expectNextCount(6)
+                .verifyComplete();
+
+        assertEquals(String.join("", chunks), reply.toString());
+    }
+
+    /**
+     * Schedules on whatever Schedulers.parallel() is at the time, the virtual-time scheduler inside
+     * StepVerifier.withVirtualTime, and remembers each timer.
+     */
+    private static final class RecordingScheduler implements Scheduler {
+        private final List<Timer> scheduled = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Disposable schedule(Runnable task) {
+            return schedule(task, 0, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+            AtomicBoolean ran = new AtomicBoolean();
+            Disposable timer = Schedulers.parallel().schedule(() -> {
+                ran.set(true);
+                task.run();
+            }, delay, unit);
+            scheduled.add(new Timer(ran, timer));
+            return timer;
+        }
+
+        @Override
+        public Worker createWorker() {
+            return Schedulers.parallel().createWorker();
+        }
+
+        // Timers that have neither run nor been disposed
+        long pending() {
+            return scheduled.stream().filter(timer -> !timer.ran().get() && !timer.disposable().isDisposed()).count();
+        }
+
+        private record Timer(AtomicBoolean ran, Disposable disposable) {
+        }
+    }
+}
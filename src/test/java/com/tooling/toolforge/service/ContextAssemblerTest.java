@@ -0,0 +1,141 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.utils.ConversationCodec;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the summary and trim script against a real redis-server.
+ */
+class ContextAssemblerTest {
+
+    private static final String KEY = "session-1";
+
+    private static RedisServer redisServer;
+    private static LettuceConnectionFactory connectionFactory;
+    private static RedisTemplate<String, String> redisTemplate;
+
+    private ContextAssembler contextAssembler;
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = new RedisServer(port);
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory("localhost", port);
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(StringRedisSerializer.UTF_8);
+        redisTemplate.setValueSerializer(StringRedisSerializer.UTF_8);
+        redisTemplate.setHashKeySerializer(StringRedisSerializer.UTF_8);
+        redisTemplate.setHashValueSerializer(StringRedisSerializer.UTF_8);
+        redisTemplate.afterPropertiesSet();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        redisTemplate.delete(List.of(KEY, ContextAssembler.summaryKey(KEY)));
+        contextAssembler = new ContextAssembler(redisTemplate);
+        ReflectionTestUtils.setField(contextAssembler, "maxMessages", 4);
+        ReflectionTestUtils.setField(contextAssembler, "maxChars", 24000);
+        ReflectionTestUtils.setField(contextAssembler, "summaryMaxChars", 2000);
+        ReflectionTestUtils.setField(contextAssembler, "summaryLineChars", 160);
+        ReflectionTestUtils.setField(contextAssembler, "maxEntries", 6L);
+    }
+
+    @Test
+    void compactFoldsEverythingBeforeTheWindowIntoTheSummary() {
+        pushTurns(0, 10);
+
+        assertEquals(6, contextAssembler.compact(KEY));
+
+        assertEquals(List.of(entry(6), entry(7), entry(8), entry(9)), redisTemplate.opsForList().range(KEY, 0, -1));
+        Map<String, String> summary = summary();
+        assertEquals("0", summary.get("upTo"));
+        assertEquals("6", summary.get("trimmed"));
+        assertEquals(6, summary.get("text").split("\n").length);
+        assertTrue(summary.get("text").startsWith("User: turn 0\nAssistant: turn 1"));
+        assertEquals(0, contextAssembler.compact(KEY));
+    }
+
+    @Test
+    void trimsToMaxEntriesAndKeepsTheOffsetRelativeToTheList() {
+        pushTurns(0, 8);
+
+        List<Message> prompt = contextAssembler.assemble(KEY, "next");
+
+        // Turns 0-3 are summarized, 0-1 trimmed to get back to max-entries
+        assertEquals(6, redisTemplate.opsForList().size(KEY));
+        assertEquals(Map.of("upTo", "2", "trimmed", "2", "text", "User: turn 0\nAssistant: turn 1\nUser: turn 2\nAssistant: turn 3"),
+                summary());
+        assertInstanceOf(SystemMessage.class, prompt.get(0));
+        assertEquals(6, prompt.size());
+
+        // Two more turns: only the two that aged out since are read and added
+        pushTurns(8, 10);
+        contextAssembler.assemble(KEY, "next");
+        assertEquals(6, redisTemplate.opsForList().size(KEY));
+        assertEquals(entry(4), redisTemplate.opsForList().index(KEY, 0));
+        Map<String, String> summary = summary();
+        assertEquals("2", summary.get("upTo"));
+        assertEquals("4", summary.get("trimmed"));
+        assertTrue(summary.get("text").endsWith("User: turn 4\nAssistant: turn 5"));
+    }
+
+    @Test
+    void aStaleSnapshotNeitherTrimsAgainNorMovesTheOffsetBack() {
+        pushTurns(0, 8);
+        ContextAssembler.ConversationSnapshot snapshot = new ContextAssembler.ConversationSnapshot(
+                redisTemplate.opsForList().range(KEY, -4, -1), 8, Map.of());
+
+        contextAssembler.assemble(KEY, "next", snapshot);
+        Map<String, String> afterFirst = summary();
+        // A second turn that read the conversation before the first one trimmed it
+        contextAssembler.assemble(KEY, "next", snapshot);
+
+        assertEquals(6, redisTemplate.opsForList().size(KEY));
+        assertEquals(entry(2), redisTemplate.opsForList().index(KEY, 0));
+        assertEquals(afterFirst, summary());
+    }
+
+    private Map<String, String> summary() {
+        return redisTemplate.<String, String>opsForHash().entries(ContextAssembler.summaryKey(KEY));
+    }
+
+    private static void pushTurns(int from, int to) {
+        for (int i = from; i < to; i++) {
+            redisTemplate.opsForList().rightPush(KEY, entry(i));
+        }
+    }
+
+    private static String entry(int turn) {
+        return ConversationCodec.encode(turn % 2 == 0 ? ConversationCodec.ROLE_USER : ConversationCodec.ROLE_BOT, "turn " + turn);
+    }
+}
@@ -0,0 +1,109 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.model.hash.HashResult;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashServiceTest {
+
+    private final HashService hashService = new HashService(1000, 16 * 1024 * 1024, 4);
+
+    @Test
+    void matchesKnownTestVectors() {
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", hashService.hash(HashAlgorithm.MD5, "abc"));
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", hashService.hash(HashAlgorithm.SHA1, "abc"));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hashService.generateSHA256("abc"));
+        assertEquals("ddaf35a193617abacc417349ae20413112e6fa4e89a97ea20a9eeee64b55d39a"
+                + "2192992a274fc1a836ba3c23a3feebbd454d4423643ce80e2a9ac94fa54ca49f", hashService.hash(HashAlgorithm.SHA512, "abc"));
+        assertEquals("e3069283", hashService.hash(HashAlgorithm.CRC32C, "123456789"));
+        assertEquals("ef46db3751d8e999", hashService.hash(HashAlgorithm.XXH64, ""));
+        assertEquals("44bc2cf5ad770999", hashService.hash(HashAlgorithm.XXH64, "abc"));
+        assertEquals("fbcea83c8a378bf1", hashService.hash(HashAlgorithm.XXH64, "Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    void streamingMatchesOneShotForEveryAlgorithm() throws IOException {
+        byte[] data = new byte[300_000 + 13];
+        new Random(1).nextBytes(data);
+
+        // Tiny, uneven reads exercise the partial-block paths of every hasher
+        HashResult result = hashService.hash(List.of(HashAlgorithm.values()), new ByteArrayInputStream(data) {
+            @Override
+            public int read(byte[] b) {
+                return read(b, 0, Math.min(b.length, 1 + pos % 37));
+            }
+        });
+
+        assertEquals(data.length, result.getBytes());
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            assertEquals(hashService.hash(algorithm, data), result.getHashes().get(algorithm.getId()), algorithm.getId());
+        }
+    }
+
+    @Test
+    void sharesPooledHashersSafelyBetweenVirtualThreads() throws Exception {
+        List<Future<String>> hashes = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 2000; i++) {
+                String input = "input-" + i;
+                // Streams that fail half-way must hand their hashers back clean as well
+                executor.submit(() -> hashService.hash(List.of(HashAlgorithm.SHA256), new InputStream() {
+                    private boolean sent;
+
+                    @Override
+                    public int read() throws IOException {
+                        if (sent) {
+                            throw new IOException("dropped");
+                        }
+                        sent = true;
+                        return 'x';
+                    }
+                }));
+                hashes.add(executor.submit(() -> hashService.hash(HashAlgorithm.SHA256, input)));
+            }
+        }
+
+        for (int i = 0; i < hashes.size(); i++) {
+            byte[] expected = MessageDigest.getInstance("SHA-256").digest(("input-" + i).getBytes(StandardCharsets.UTF_8));
+            assertEquals(HexFormat.of().formatHex(expected), hashes.get(i).get());
+        }
+    }
+
+    @Test
+    void batchKeepsInputOrderWhenHashedInParallel() {
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            inputs.add(("input-" + i + "-").repeat(200));
+        }
+
+        List<String> hashes = hashService.hashBatch(HashAlgorithm.SHA256, inputs);
+
+        assertEquals(inputs.size(), hashes.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            assertEquals(hashService.generateSHA256(inputs.get(i)), hashes.get(i));
+        }
+    }
+
+    @Test
+    void rejectsOversizedBatchesAndUnknownAlgorithms() {
+        HashService small = new HashService(2, 1024, 2);
+        assertThrows(IllegalArgumentException.class, () -> small.hashBatch(HashAlgorithm.MD5, List.of("a", "b", "c")));
+        assertThrows(IllegalArgumentException.class, () -> small.hashBatch(HashAlgorithm.MD5, List.of("x".repeat(2000))));
+        assertThrows(IllegalArgumentException.class, () -> HashAlgorithm.fromId("sha3"));
+        assertEquals(HashAlgorithm.SHA256, HashAlgorithm.fromId("SHA-256"));
+    }
+}
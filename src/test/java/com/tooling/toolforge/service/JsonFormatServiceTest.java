@@ -0,0 +1,61 @@
+package com.tooling.toolforge.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.exc.StreamConstraintsException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonFormatServiceTest {
+
+    private final JsonFormatService jsonFormatService = new JsonFormatService(1024);
+
+    @Test
+    void prettyPrintsWithTheRequestedIndent() throws IOException {
+        assertEquals("{\n    \"a\" : [\n        1,\n        {\n            \"b\" : null\n        }\n    ]\n}",
+                format("{\"a\":[1,{\"b\":null}]}", 4, false));
+    }
+
+    @Test
+    void minifiesAndKeepsNumbersAsWritten() throws IOException {
+        assertEquals("{\"price\":0.10000000000000000001,\"big\":123456789012345678901234567890,\"s\":\"é\\n\"}",
+                format("{ \"price\" : 0.10000000000000000001,\n \"big\": 123456789012345678901234567890, \"s\": \"é\\n\" }", 2, true));
+    }
+
+    @Test
+    void formatsScalarDocuments() throws IOException {
+        assertEquals("\"text\"", format("  \"text\"  ", 2, false));
+    }
+
+    @Test
+    void reportsLineAndColumnOfSyntaxErrors() {
+        JsonProcessingException e = assertThrows(JsonProcessingException.class,
+                () -> format("{\n  \"a\": 1,\n  \"b\": tru\n}", 2, false));
+        assertEquals(3, e.getLocation().getLineNr());
+        assertTrue(e.getLocation().getColumnNr() > 0);
+    }
+
+    @Test
+    void rejectsTrailingContentAndEmptyInput() {
+        assertThrows(JsonProcessingException.class, () -> format("{} {}", 2, false));
+        assertThrows(JsonProcessingException.class, () -> format("   ", 2, false));
+        assertThrows(JsonProcessingException.class, () -> format("[1, 2", 2, false));
+    }
+
+    @Test
+    void enforcesTheSizeCap() {
+        String large = "[" + "\"0123456789\",".repeat(200) + "1]";
+        assertThrows(StreamConstraintsException.class, () -> format(large, 2, true));
+    }
+
+    private String format(String json, int indent, boolean minify) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jsonFormatService.format(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), out, indent, minify);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
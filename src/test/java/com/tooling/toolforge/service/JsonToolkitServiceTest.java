@@ -0,0 +1,148 @@
+package com.tooling.toolforge.service;
+
+import com.fasterxml.jackson.core.exc.StreamConstraintsException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tooling.toolforge.model.json.JsonDiffResponse;
+import com.tooling.toolforge.model.json.JsonPatchOperation;
+import com.tooling.toolforge.model.json.JsonValidationError;
+import com.tooling.toolforge.model.json.JsonValidationResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonToolkitServiceTest {
+
+    private static final String DOCUMENT = """
+            {"store": {"books": [
+              {"title": "A", "price": 8.95, "tags": ["x"]},
+              {"title": "B", "price": 12.99, "author": {"name": "N"}}
+            ], "name": "S"}}""";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JsonToolkitService service =
+            new JsonToolkitService(objectMapper, new HashService(1000, 1 << 20, 1), 1 << 20, 1 << 16, 16, 3, 100);
+
+    @Test
+    void streamingQueriesMatchTheTreeEvaluator() throws IOException {
+        for (String path : List.of("$.store.books[*].title", "$..name", "$.store.books[1]", "$['store']['name']",
+                "$.store.*", "$..books[0].tags[*]", "$", "$.missing")) {
+            assertTrue(service.compilePath(path).isStreaming(), path);
+            List<String> streamed = elements(query(path, DOCUMENT));
+            List<String> tree = elements(treeQuery(path));
+            // Recursive descent streams matches in document order; Jayway orders them level by level
+            if (path.contains("..")) {
+                streamed = streamed.stream().sorted().toList();
+                tree = tree.stream().sorted().toList();
+            }
+            assertEquals(tree, streamed, path);
+        }
+    }
+
+    @Test
+    void filtersFallBackToTheTreeEvaluator() throws IOException {
+        String path = "$.store.books[?(@.price > 10)].title";
+        assertFalse(service.compilePath(path).isStreaming());
+        assertEquals("[\"B\"]", query(path, DOCUMENT));
+        assertThrows(IllegalArgumentException.class, () -> query("$.store[?(@.price >", DOCUMENT));
+    }
+
+    @Test
+    void recursiveDescentMatchesAreHeldToTheTreeCap() throws IOException {
+        // Larger than max-tree-bytes, well under max-bytes
+        String big = "{\"a\": {\"id\": [" + String.join(",", Collections.nCopies(20_000, "\"item\"")) + "]}}";
+
+        assertThrows(StreamConstraintsException.class, () -> query("$..a", big));
+        assertTrue(query("$.a.id[0]", big).contains("item"));
+        assertEquals("[]", query("$..missing", big));
+    }
+
+    @Test
+    void validatesTopLevelArraysItemByItem() throws IOException {
+        String schema = """
+                {"type": "array", "items": {"$ref": "#/$defs/book"},
+                 "$defs": {"book": {"type": "object", "required": ["title"], "properties": {"price": {"type": "number"}}}}}""";
+        assertTrue(service.compileSchema(schema).perItem());
+
+        JsonValidationResponse result = validate(schema, "[{\"title\": \"A\"}, {\"price\": \"free\"}, {\"title\": \"C\"}]");
+        assertFalse(result.isValid());
+        assertEquals(List.of("$[1]", "$[1].price"), result.getErrors().stream().map(JsonValidationError::getPath).sorted().toList());
+        assertTrue(validate(schema, "[]").isValid());
+        assertFalse(validate(schema, "{\"title\": \"A\"}").isValid());
+    }
+
+    @Test
+    void itemsValidatedOneAtATimeAreHeldToTheTreeCap() throws IOException {
+        String schema = "{\"type\": \"array\", \"items\": {\"type\": \"object\"}}";
+        // One item larger than max-tree-bytes, the document well under max-bytes
+        String bigObject = "{\"id\": [" + String.join(",", Collections.nCopies(20_000, "\"item\"")) + "]}";
+        String bigString = "\"" + "x".repeat(100_000) + "\"";
+
+        assertThrows(StreamConstraintsException.class, () -> validate(schema, "[{}, " + bigObject + ", {}]"));
+        assertThrows(StreamConstraintsException.class, () -> validate(schema, "[{}, " + bigString + "]"));
+        assertThrows(StreamConstraintsException.class, () -> validate(schema, bigString));
+        assertTrue(validate(schema, "[" + String.join(",", Collections.nCopies(20_000, "{\"a\": 1}")) + "]").isValid());
+    }
+
+    @Test
+    void validatesWholeDocumentsAndStopsAtTheErrorLimit() throws IOException {
+        String schema = "{\"type\": \"array\", \"maxItems\": 1, \"items\": {\"type\": \"integer\"}}";
+        assertFalse(service.compileSchema(schema).perItem());
+
+        JsonValidationResponse result = validate(schema, "[\"a\", \"b\", \"c\", \"d\"]");
+        assertFalse(result.isValid());
+        assertTrue(result.isTruncated());
+        assertEquals(3, result.getErrors().size());
+        assertTrue(validate("{\"type\": \"object\", \"required\": [\"a\"]}", "{\"a\": 1}").isValid());
+    }
+
+    @Test
+    void refusesExternalSchemaReferences() {
+        assertThrows(IllegalArgumentException.class,
+                () -> validate("{\"$ref\": \"http://localhost:1/schema.json\"}", "{}"));
+    }
+
+    @Test
+    void diffProducesAJsonPatch() throws IOException {
+        JsonDiffResponse diff = service.diff(stream("{\"a\": 1, \"b\": [1, 2, 3], \"c/d\": {\"e\": true}}"),
+                stream("{\"a\": 2, \"b\": [1], \"c/d\": {}, \"f\": null}"));
+        assertFalse(diff.isIdentical());
+        assertEquals(List.of("replace /a", "remove /b/2", "remove /b/1", "remove /c~1d/e", "add /f"),
+                diff.getOperations().stream().map(operation -> operation.getOp() + " " + operation.getPath()).toList());
+        assertTrue(diff.getOperations().stream().filter(operation -> operation.getOp().equals("add"))
+                .map(JsonPatchOperation::getValue).allMatch(value -> value.isNull()));
+        assertTrue(service.diff(stream("[1, {\"a\": 2}]"), stream(" [1, {\"a\": 2}] ")).isIdentical());
+    }
+
+    private String query(String path, String json) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.query(path, stream(json), out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private String treeQuery(String path) throws IOException {
+        return objectMapper.writeValueAsString(service.compilePath(path).select(objectMapper.readTree(DOCUMENT)));
+    }
+
+    private List<String> elements(String jsonArray) throws IOException {
+        List<String> elements = new ArrayList<>();
+        objectMapper.readTree(jsonArray).forEach(node -> elements.add(node.toString()));
+        return elements;
+    }
+
+    private JsonValidationResponse validate(String schema, String json) throws IOException {
+        return service.validate(schema, stream(json));
+    }
+
+    private static InputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,174 @@
+package com.tooling.toolforge.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.openai.OpenAiChatModel;
+import org.springframework.ai.openai.OpenAiChatOptions;
+import org.springframework.ai.openai.api.OpenAiApi;
+import org.springframework.retry.support.RetryTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the router against a local stub of the OpenAI-compatible streaming endpoint.
+ * The stub answers "fast-model" immediately, "slow-model" after two seconds, stalls "stalling-model"
+ * for three seconds mid-answer and fails "broken-model".
+ */
+class ModelRouterTest {
+
+    private static final Pattern MODEL = Pattern.compile("\"model\"\\s*:\\s*\"([^\"]+)\"");
+    private static final List<Message> PROMPT = List.of(new UserMessage("hi"));
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private OpenRouterService openRouterService;
+    private final Map<String, AtomicInteger> requestsByModel = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/v1/chat/completions", this::handleCompletion);
+        server.start();
+
+        OpenAiApi api = OpenAiApi.builder()
+                .baseUrl("http://localhost:" + server.getAddress().getPort())
+                .apiKey("test")
+                .build();
+        OpenAiChatModel chatModel = OpenAiChatModel.builder()
+                .openAiApi(api)
+                .defaultOptions(OpenAiChatOptions.builder().model("slow-model").build())
+                .retryTemplate(RetryTemplate.builder().maxAttempts(1).build())
+                .build();
+        openRouterService = new OpenRouterService(ChatClient.builder(chatModel));
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void hedgesToFallbackWhenPrimaryIsSlowToStart() {
+        ModelRouter router = router("slow-model", List.of("fast-model"), Duration.ofMillis(200), 5);
+        AtomicReference<String> answeredBy = new AtomicReference<>();
+
+        long start = System.nanoTime();
+        String answer = String.join("", router.stream(PROMPT, answeredBy::set).collectList().block(Duration.ofSeconds(5)));
+        long elapsedMillis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+
+        assertEquals("fast-model says hello", answer);
+        assertEquals("fast-model", answeredBy.get());
+        assertTrue(elapsedMillis < 1500, "hedged answer took " + elapsedMillis + " ms");
+        assertEquals(1, requests("slow-model"));
+        assertEquals(1, requests("fast-model"));
+    }
+
+    @Test
+    void failsOverImmediatelyWhenPrimaryErrors() {
+        ModelRouter router = router("broken-model", List.of("fast-model"), Duration.ofSeconds(10), 5);
+
+        String answer = String.join("", router.stream(PROMPT, model -> {}).collectList().block(Duration.ofSeconds(5)));
+
+        assertEquals("fast-model says hello", answer);
+    }
+
+    @Test
+    void opensCircuitAfterConsecutiveFailures() {
+        ModelRouter router = router("broken-model", List.of(), Duration.ofSeconds(1), 2);
+
+        assertThrows(RuntimeException.class, () -> router.stream(PROMPT, model -> {}).blockLast(Duration.ofSeconds(5)));
+        assertThrows(RuntimeException.class, () -> router.stream(PROMPT, model -> {}).blockLast(Duration.ofSeconds(5)));
+        assertThrows(ModelRouter.ModelUnavailableException.class, () -> router.stream(PROMPT, model -> {}).blockLast(Duration.ofSeconds(5)));
+
+        assertEquals(2, requests("broken-model"));
+    }
+
+    @Test
+    void failsAStreamThatStallsMidAnswer() throws InterruptedException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ModelRouter router = new ModelRouter(openRouterService, meterRegistry, "stalling-model", List.of(), 1,
+                Duration.ofSeconds(10), Duration.ofSeconds(30), Duration.ofMillis(300), 5, Duration.ofMinutes(1));
+
+        long start = System.nanoTime();
+        assertThrows(RuntimeException.class, () -> router.stream(PROMPT, model -> {}).blockLast(Duration.ofSeconds(5)));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 2000);
+
+        // The stalled stream gives its permit back (just after the error reaches the subscriber)
+        long deadline = System.nanoTime() + Duration.ofSeconds(1).toNanos();
+        while (meterRegistry.get("chat.upstream.inflight").gauge().value() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, meterRegistry.get("chat.upstream.inflight").gauge().value());
+    }
+
+    private ModelRouter router(String primary, List<String> fallbacks, Duration hedgeAfter, int failureThreshold) {
+        return new ModelRouter(openRouterService, new SimpleMeterRegistry(), primary, fallbacks, 10, hedgeAfter,
+                Duration.ofSeconds(30), Duration.ofSeconds(30), failureThreshold, Duration.ofMinutes(1));
+    }
+
+    private int requests(String model) {
+        AtomicInteger count = requestsByModel.get(model);
+        return count == null ? 0 : count.get();
+    }
+
+    private void handleCompletion(HttpExchange exchange) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Matcher matcher = MODEL.matcher(body);
+        String model = matcher.find() ? matcher.group(1) : "unknown";
+        requestsByModel.computeIfAbsent(model, key -> new AtomicInteger()).incrementAndGet();
+
+        if (model.equals("broken-model")) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (model.equals("slow-model")) {
+                Thread.sleep(2000);
+            }
+            for (String chunk : List.of(model, " says", " hello")) {
+                out.write(("data: " + chunkJson(model, chunk) + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                if (model.equals("stalling-model") && chunk.equals(" says")) {
+                    Thread.sleep(3000);
+                }
+            }
+            out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | InterruptedException e) {
+            // The router cancelled this stream
+        }
+    }
+
+    private static String chunkJson(String model, String content) {
+        return "{\"id\":\"stub\",\"object\":\"chat.completion.chunk\",\"created\":0,\"model\":\"" + model + "\","
+                + "\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":\"" + content + "\"},"
+                + "\"finish_reason\":null}]}";
+    }
+}
@@ -0,0 +1,134 @@
+package com.tooling.toolforge.service;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.tooling.toolforge.dto.user.UserProfile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * The upsert pipeline against a real MongoDB: what it stores, returns and reports as created.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class UserProfileStorageTest {
+
+    @Container
+    private static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+
+    private static MongoClient mongoClient;
+    private static MongoTemplate mongoTemplate;
+
+    private RedisTemplate<String, String> redisTemplate;
+    private UserProfileStore store;
+
+    @BeforeAll
+    static void connect() {
+        mongoClient = MongoClients.create(MONGO.getReplicaSetUrl());
+        mongoTemplate = new MongoTemplate(mongoClient, "toolforge_test");
+    }
+
+    @AfterAll
+    static void disconnect() {
+        mongoClient.close();
+    }
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        mongoTemplate.remove(new Query(), UserProfile.class);
+        redisTemplate = mock(RedisTemplate.class);
+        ReactiveStringRedisTemplate reactiveRedisTemplate = mock(ReactiveStringRedisTemplate.class);
+        when(reactiveRedisTemplate.listenToChannel(anyString())).thenReturn(Flux.never());
+        store = new UserProfileStore(mongoTemplate, mongoClient, mongoTemplate.getConverter(), redisTemplate,
+                reactiveRedisTemplate, new SimpleMeterRegistry(), "", 100, Duration.ofMinutes(10));
+        store.start();
+    }
+
+    @Test
+    void returnsTheStoredUserAndWhetherItWasCreated() throws InterruptedException {
+        UserProfile signUp = profile("u1", "Ada@x.io");
+        signUp.setDisplayName("Ada");
+        UserProfileStore.Upserted created = store.upsert(signUp);
+
+        assertTrue(created.created());
+        assertEquals("ada@x.io", created.profile().getEmail());
+        assertEquals(created.profile().getCreatedAt(), created.profile().getUpdatedAt());
+
+        // Creation is told by createdAt == updatedAt, so the next sign-in must be a millisecond later
+        Thread.sleep(2);
+        // A sign-in that leaves displayName out gets the stored one back
+        UserProfileStore.Upserted updated = store.upsert(profile("u1", "ada@x.io"));
+
+        assertFalse(updated.created());
+        assertEquals("Ada", updated.profile().getDisplayName());
+        assertEquals(created.profile().getCreatedAt(), updated.profile().getCreatedAt());
+        assertTrue(updated.profile().getUpdatedAt().isAfter(updated.profile().getCreatedAt()));
+    }
+
+    @Test
+    void evictsTheReplacedEmailAndForgetsIt() {
+        store.upsert(profile("u1", "old@x.io"));
+        store.upsert(profile("u1", "new@x.io"));
+
+        verify(redisTemplate).convertAndSend(UserProfileStore.INVALIDATION_CHANNEL, "old@x.io");
+        verify(redisTemplate).convertAndSend(UserProfileStore.INVALIDATION_CHANNEL, "new@x.io");
+        assertEquals("old@x.io", storedDocument("u1").getString("replacedEmail"));
+
+        store.upsert(profile("u1", "new@x.io"));
+
+        assertFalse(storedDocument("u1").containsKey("replacedEmail"));
+        verify(redisTemplate, times(1)).convertAndSend(UserProfileStore.INVALIDATION_CHANNEL, "old@x.io");
+    }
+
+    @Test
+    void storesValuesThatLookLikeFieldPathsAsTheyAre() {
+        UserProfile signUp = profile("u1", "$email@x.io");
+        signUp.setDisplayName("$displayName");
+
+        UserProfile stored = store.upsert(signUp).profile();
+
+        assertEquals("$email@x.io", stored.getEmail());
+        assertEquals("$displayName", stored.getDisplayName());
+    }
+
+    @Test
+    void doesNotReportUsersStoredWithoutCreatedAtAsCreated() {
+        mongoTemplate.getCollection("users").insertOne(new Document("_id", "u1").append("email", "a@x.io")
+                .append("updatedAt", new Date(1_700_000_000_000L)));
+
+        UserProfileStore.Upserted updated = store.upsert(profile("u1", "a@x.io"));
+
+        assertFalse(updated.created());
+        assertNull(updated.profile().getCreatedAt());
+    }
+
+    private static Document storedDocument(String uid) {
+        return mongoTemplate.getCollection("users").find(new Document("_id", uid)).first();
+    }
+
+    private static UserProfile profile(String uid, String email) {
+        UserProfile profile = new UserProfile();
+        profile.setUid(uid);
+        profile.setEmail(email);
+        return profile;
+    }
+}
@@ -0,0 +1,148 @@
+package com.tooling.toolforge.service;
+
+import com.tooling.toolforge.dto.user.UserProfile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class UserProfileStoreTest {
+
+    private MongoTemplate mongoTemplate;
+    private RedisTemplate<String, String> redisTemplate;
+    private UserProfileStore store;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        // Reads the stored user the way the application's converter does, dates included
+        MongoCustomConversions conversions = new MongoCustomConversions(List.of());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        when(mongoTemplate.indexOps(UserProfile.class)).thenReturn(mock(IndexOperations.class));
+        redisTemplate = mock(RedisTemplate.class);
+        ReactiveStringRedisTemplate reactiveRedisTemplate = mock(ReactiveStringRedisTemplate.class);
+        when(reactiveRedisTemplate.listenToChannel(anyString())).thenReturn(Flux.never());
+
+        store = new UserProfileStore(mongoTemplate, null, null, redisTemplate, reactiveRedisTemplate,
+                new SimpleMeterRegistry(), "", 100, Duration.ofMinutes(10));
+        store.start();
+    }
+
+    @Test
+    void cachesLookupsIncludingMisses() {
+        when(mongoTemplate.findOne(any(Query.class), eq(UserProfile.class))).thenReturn(profile("u1", "a@x.io"), (UserProfile) null);
+
+        assertEquals("u1", store.findByEmail(" A@x.io").orElseThrow().getUid());
+        assertEquals("u1", store.findByEmail("a@X.IO").orElseThrow().getUid());
+        assertEquals(Optional.empty(), store.findByEmail("b@x.io"));
+        assertEquals(Optional.empty(), store.findByEmail("b@x.io"));
+
+        verify(mongoTemplate, times(2)).findOne(any(Query.class), eq(UserProfile.class));
+    }
+
+    @Test
+    void batchLookupReadsOnlyTheMissesInOneQuery() {
+        when(mongoTemplate.findOne(any(Query.class), eq(UserProfile.class))).thenReturn(profile("u1", "a@x.io"));
+        when(mongoTemplate.find(any(Query.class), eq(UserProfile.class))).thenReturn(List.of(profile("u2", "b@x.io")));
+        store.findByEmail("a@x.io");
+
+        Map<String, UserProfile> found = store.findByEmails(List.of("a@x.io", "B@x.io", "c@x.io"));
+
+        assertEquals(List.of("a@x.io", "b@x.io"), List.copyOf(found.keySet()));
+        verify(mongoTemplate, times(1)).find(any(Query.class), eq(UserProfile.class));
+    }
+
+    @Test
+    void upsertReturnsTheStoredUser() {
+        Date created = new Date(1_700_000_000_000L);
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(Document.class), any()))
+                .thenReturn(stored("u1", "a@x.io", created, created))
+                .thenReturn(stored("u1", "a@x.io", created, new Date(created.getTime() + 1)).append("displayName", "Ada"));
+
+        UserProfileStore.Upserted first = store.upsert(profile("u1", "A@x.io"));
+        assertTrue(first.created());
+        assertEquals(created.toInstant(), first.profile().getCreatedAt());
+
+        // Fields the request leaves out come back as stored
+        UserProfileStore.Upserted second = store.upsert(profile("u1", "a@x.io"));
+        assertFalse(second.created());
+        assertEquals("Ada", second.profile().getDisplayName());
+        assertEquals(created.toInstant(), second.profile().getCreatedAt());
+    }
+
+    @Test
+    void upsertEvictsTheOldAndNewEmailEverywhere() {
+        when(mongoTemplate.findOne(any(Query.class), eq(UserProfile.class))).thenReturn(profile("u1", "old@x.io"));
+        store.findByEmail("old@x.io");
+        Date created = new Date(1_700_000_000_000L);
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(Document.class), any()))
+                .thenReturn(stored("u1", "new@x.io", created, new Date()).append("replacedEmail", "old@x.io"));
+
+        assertFalse(store.upsert(profile("u1", "New@x.io")).created());
+
+        verify(redisTemplate).convertAndSend(UserProfileStore.INVALIDATION_CHANNEL, "new@x.io");
+        verify(redisTemplate).convertAndSend(UserProfileStore.INVALIDATION_CHANNEL, "old@x.io");
+        store.findByEmail("old@x.io");
+        verify(mongoTemplate, times(2)).findOne(any(Query.class), eq(UserProfile.class));
+    }
+
+    @Test
+    void upsertRetriesWhenAConcurrentSignInInsertedTheSameUid() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(Document.class), any()))
+                .thenThrow(new DuplicateKeyException("E11000 duplicate key error collection: users.users index: _id_ dup key: { _id: \"u1\" }"))
+                .thenReturn(stored("u1", "a@x.io", new Date(1_700_000_000_000L), new Date()));
+
+        assertFalse(store.upsert(profile("u1", "a@x.io")).created());
+        verify(mongoTemplate, times(2)).findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(Document.class), any());
+    }
+
+    @Test
+    void upsertReportsAnEmailOwnedByAnotherUid() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(Document.class), any()))
+                .thenThrow(new DuplicateKeyException("E11000 duplicate key error collection: users.users index: email dup key: { email: \"a@x.io\" }"));
+
+        DuplicateKeyException e = assertThrows(DuplicateKeyException.class, () -> store.upsert(profile("u2", "a@x.io")));
+        assertTrue(UserProfileStore.isEmailConflict(e));
+        verify(mongoTemplate, times(1)).findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class), eq(Document.class), any());
+    }
+
+    private static UserProfile profile(String uid, String email) {
+        UserProfile profile = new UserProfile();
+        profile.setUid(uid);
+        profile.setEmail(email);
+        return profile;
+    }
+
+    private static Document stored(String uid, String email, Date createdAt, Date updatedAt) {
+        return new Document("_id", uid).append("email", email).append("createdAt", createdAt).append("updatedAt", updatedAt);
+    }
+}
@@ -0,0 +1,47 @@
+package com.tooling.toolforge.utils;
+
+import com.tooling.toolforge.dto.history.SearchSnippet;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchHighlighterTest {
+
+    @Test
+    void splitsQueriesIntoDistinctLowerCaseTerms() {
+        assertEquals(List.of("redis", "stream", "replay"), SearchHighlighter.terms("Redis stream, a REDIS (replay)!"));
+        assertEquals(List.of(), SearchHighlighter.terms(" - ? "));
+        assertEquals(SearchHighlighter.MAX_TERMS, SearchHighlighter.terms("aa bb cc dd ee ff gg hh ii jj kk ll").size());
+    }
+
+    @Test
+    void quotesTermsInTheRegex() {
+        Pattern pattern = SearchHighlighter.pattern(List.of("c++", "a.b"));
+        assertTrue(pattern.matcher("uses C++ here").find());
+        assertFalse(pattern.matcher("axb").find());
+    }
+
+    @Test
+    void cutsAWindowAroundTheFirstMatchAndMarksEveryMatch() {
+        String content = "word ".repeat(100) + "the Redis cache and redis streams " + "tail ".repeat(100);
+        SearchSnippet snippet = SearchHighlighter.snippet("user", content, SearchHighlighter.pattern(List.of("redis")), 80);
+
+        assertNotNull(snippet);
+        assertEquals("user", snippet.getRole());
+        assertTrue(snippet.getText().startsWith("…"));
+        assertTrue(snippet.getText().endsWith("…"));
+        assertEquals(2, snippet.getHighlights().size());
+        for (int[] range : snippet.getHighlights()) {
+            assertEquals("redis", snippet.getText().substring(range[0], range[1]).toLowerCase());
+        }
+    }
+
+    @Test
+    void returnsNullWithoutAMatch() {
+        assertNull(SearchHighlighter.snippet("user", "nothing here", SearchHighlighter.pattern(List.of("redis")), 80));
+        assertNull(SearchHighlighter.snippet("user", null, SearchHighlighter.pattern(List.of("redis")), 80));
+    }
+}